@@ -1,8 +1,8 @@
 #include "modbus_base.h"
 #include <modbus.h>
 #include <stddef.h> // NULL
+#include <string.h> // memcpy
 #include <errno.h> // errno
-#include <map>
 namespace UnistdNamespace {
 #include <unistd.h> // pipe
 }
@@ -12,8 +12,6 @@ using namespace CommonNamespace;
 
 class ModbusBasePrivate {
   friend class ModbusBase;
-private:
-  std::map<ModbusMapping*, modbus_mapping_t*> mappings;
 };
 
 ModbusBase::ModbusBase() {
@@ -98,6 +96,21 @@ uint32_t ModbusBase::getInt32FromInt16(const uint16_t* tabInt16, int index) {
   return MODBUS_GET_INT32_FROM_INT16(tabInt16, index);
 }
 
+int ModbusBase::getBytes(const uint8_t* src, int length, int8_t* bulkValues, int bulkLength) {
+  int nb = length < bulkLength ? length : bulkLength;
+  if (nb <= 0) {
+    return 0;
+  }
+  memcpy(bulkValues, src, nb);
+  return nb;
+}
+
+void ModbusBase::copyBytes(uint8_t* dest, const uint8_t* src, int length) {
+  if (length > 0) {
+    memcpy(dest, src, length);
+  }
+}
+
 float ModbusBase::getFloat(const uint16_t* src) {
 #if __FLOAT_WORD_ORDER__ != __ORDER_BIG_ENDIAN__
   // reverse the word order
@@ -121,17 +134,16 @@ void ModbusBase::setFloat(float f, uint16_t* dest) {
 }
 
 int ModbusBase::getHeaderLength() {
-  MutexLock lock(*mutex);
+  // the header length is fixed by the backend of the context
   return modbus_get_header_length(static_cast<modbus_t*>(context));
 }
 
 int ModbusBase::getErrNo() {
-  MutexLock lock(*mutex);
+  // errno is thread local
   return errno;
 }
 
 const char* ModbusBase::strError(int errNo) {
-  MutexLock lock(*mutex);
   return modbus_strerror(errNo);
 }
 
@@ -214,9 +226,84 @@ int ModbusBase::writeAndReadRegisters(int writeAddr, int writeNb, const uint16_t
     readAddr, readNb, dest);
 }
 
+int ModbusBase::readBits(int addr, uint8_t* readValues, int readLength) {
+  return readBits(addr, readLength, readValues);
+}
+
+int ModbusBase::readInputBits(int addr, uint8_t* readValues, int readLength) {
+  return readInputBits(addr, readLength, readValues);
+}
+
+int ModbusBase::readRegisters(int addr, int16_t* readValues, int readLength) {
+  return readRegisters(addr, readLength, reinterpret_cast<uint16_t*>(readValues));
+}
+
+int ModbusBase::readInputRegisters(int addr, int16_t* readValues, int readLength) {
+  return readInputRegisters(addr, readLength, reinterpret_cast<uint16_t*>(readValues));
+}
+
+int ModbusBase::writeBits(int addr, uint8_t* writeValues, int writeLength) {
+  return writeBits(addr, writeLength, writeValues);
+}
+
+int ModbusBase::writeRegisters(int addr, int16_t* writeValues, int writeLength) {
+  return writeRegisters(addr, writeLength, reinterpret_cast<uint16_t*>(writeValues));
+}
+
+// returns true if "nb" values of "size" bytes fit into a buffer
+static bool fits(int nb, int size, int directCapacity) {
+  if (nb < 0 || nb * size > directCapacity) {
+    errno = EINVAL;
+    return false;
+  }
+  return true;
+}
+
+int ModbusBase::readBits(int addr, int nb, void* directValues, int directCapacity) {
+  if (!fits(nb, sizeof(uint8_t), directCapacity)) {
+    return -1;
+  }
+  return readBits(addr, nb, static_cast<uint8_t*>(directValues));
+}
+
+int ModbusBase::readInputBits(int addr, int nb, void* directValues, int directCapacity) {
+  if (!fits(nb, sizeof(uint8_t), directCapacity)) {
+    return -1;
+  }
+  return readInputBits(addr, nb, static_cast<uint8_t*>(directValues));
+}
+
+int ModbusBase::readRegisters(int addr, int nb, void* directValues, int directCapacity) {
+  if (!fits(nb, sizeof(uint16_t), directCapacity)) {
+    return -1;
+  }
+  return readRegisters(addr, nb, static_cast<uint16_t*>(directValues));
+}
+
+int ModbusBase::readInputRegisters(int addr, int nb, void* directValues, int directCapacity) {
+  if (!fits(nb, sizeof(uint16_t), directCapacity)) {
+    return -1;
+  }
+  return readInputRegisters(addr, nb, static_cast<uint16_t*>(directValues));
+}
+
+int ModbusBase::writeBits(int addr, int nb, void* directValues, int directCapacity) {
+  if (!fits(nb, sizeof(uint8_t), directCapacity)) {
+    return -1;
+  }
+  return writeBits(addr, nb, static_cast<const uint8_t*>(directValues));
+}
+
+int ModbusBase::writeRegisters(int addr, int nb, void* directValues, int directCapacity) {
+  if (!fits(nb, sizeof(uint16_t), directCapacity)) {
+    return -1;
+  }
+  return writeRegisters(addr, nb, static_cast<const uint16_t*>(directValues));
+}
+
 ModbusMapping* ModbusBase::mappingNew(int nbCoilStatus, int nbInputStatus, int nbHoldingRegisters,
     int nbInputRegisters) {
-  MutexLock lock(*mutex);
+  // the mapping is independent of the context
   modbus_mapping_t* map = modbus_mapping_new(nbCoilStatus, nbInputStatus, nbHoldingRegisters,
                                              nbInputRegisters);
   if (map == NULL) {
@@ -227,51 +314,96 @@ ModbusMapping* ModbusBase::mappingNew(int nbCoilStatus, int nbInputStatus, int n
   ModbusMapping* mbMapping = new ModbusMapping(
     map->nb_bits, map->nb_input_bits, map->nb_input_registers, map->nb_registers, 
     map->tab_bits, map->tab_input_bits, map->tab_input_registers, map->tab_registers);
-  d->mappings[mbMapping] = map;
+  // the handle carries the libmodbus mapping for the replies
+  mbMapping->setMapping(map);
   return mbMapping;
 }
 
 void ModbusBase::mappingFree(ModbusMapping* mbMapping) {
-  MutexLock lock(*mutex);
-  std::map<ModbusMapping*, modbus_mapping_t*>::iterator it = d->mappings.find(mbMapping);
-  if (it != d->mappings.end()) {
-    modbus_mapping_free(it->second);
-    d->mappings.erase(it);
+  freeMapping(mbMapping);
+}
+
+void ModbusBase::freeMapping(ModbusMapping* mbMapping) {
+  if (mbMapping->getMapping() != NULL) {
+    modbus_mapping_free(static_cast<modbus_mapping_t*>(mbMapping->getMapping()));
   }
   delete mbMapping;
 }
 
 int ModbusBase::receive(uint8_t* returnRequest) {
+  return receive(returnRequest, NULL /* errNo */);
+}
+
+int ModbusBase::receiveWithErrNo(uint8_t* returnRequest) {
+  int errNo = 0;
+  int ret = receive(returnRequest, &errNo);
+  return withErrNo(ret, errNo);
+}
+
+int ModbusBase::receiveAndDecode(uint8_t* returnRequest, int* returnHeader) {
+  int errNo = 0;
+  int length = receive(returnRequest, &errNo);
+  if (length < 0) {
+    return withErrNo(length, errNo);
+  }
+  returnHeader[DECODED_LENGTH] = length;
+  // if the request has been filtered (other unit)
+  if (length == 0) {
+    return 0;
+  }
+  int h = modbus_get_header_length(static_cast<modbus_t*>(context));
+  int functionCode = returnRequest[h];
+  returnHeader[DECODED_UNIT_ID] = returnRequest[h - 1];
+  returnHeader[DECODED_FUNCTION_CODE] = functionCode;
+  returnHeader[DECODED_ADDRESS] = MODBUS_GET_INT16_FROM_INT8(returnRequest, h + 1);
+  switch (functionCode) {
+  case MODBUS_FC_READ_COILS:
+  case MODBUS_FC_READ_DISCRETE_INPUTS:
+  case MODBUS_FC_READ_HOLDING_REGISTERS:
+  case MODBUS_FC_READ_INPUT_REGISTERS:
+  case MODBUS_FC_WRITE_MULTIPLE_COILS:
+  case MODBUS_FC_WRITE_MULTIPLE_REGISTERS:
+  case MODBUS_FC_WRITE_AND_READ_REGISTERS:
+    returnHeader[DECODED_QUANTITY] = MODBUS_GET_INT16_FROM_INT8(returnRequest, h + 3);
+    break;
+  case MODBUS_FC_WRITE_SINGLE_COIL:
+  case MODBUS_FC_WRITE_SINGLE_REGISTER:
+    returnHeader[DECODED_QUANTITY] = 1;
+    break;
+  default:
+    returnHeader[DECODED_QUANTITY] = 0;
+    break;
+  }
+  // only the MBAP header (TCP) contains a transaction id
+  returnHeader[DECODED_TRANSACTION_ID] = h > 1 ? MODBUS_GET_INT16_FROM_INT8(returnRequest, 0) : -1;
+  return length;
+}
+
+int ModbusBase::receive(uint8_t* returnRequest, int* errNo) {
   MutexLock lock(*mutex);
   // get current socket
   int socket = modbus_get_socket(static_cast<modbus_t*>(context));
-  bool found = false;
-  for (int i = 0; i < socketCount; i++) {
-    if (sockets[i] == socket) {
-       found = true;
-       break;
-    }
-  }
-  if (!found) {
-    return -1;
+  if (!hasSocket(socket)) {
+    errno = EBADF;
+    return captureErrNo(-1, errNo);
   }
   // wait for reading
   if (wait4read(socket, SELECT_MASK_RECEIVE, lock) < 0) {
-    return -1;
+    return captureErrNo(-1, errNo);
   }
   // receive data
-  return modbus_receive(static_cast<modbus_t*>(context), returnRequest);
+  return captureErrNo(modbus_receive(static_cast<modbus_t*>(context), returnRequest), errNo);
 }
 
 int ModbusBase::reply(const uint8_t* request, int requestLength, ModbusMapping* mbMapping) {
   MutexLock lock(*mutex);
   // get libmodbus mapping
-  std::map<ModbusMapping*, modbus_mapping_t*>::iterator it = d->mappings.find(mbMapping);
-  if (it != d->mappings.end()) {
-    // send response
-    return modbus_reply(static_cast<modbus_t*>(context), request, requestLength, it->second);
+  modbus_mapping_t* map = static_cast<modbus_mapping_t*>(mbMapping->getMapping());
+  if (map == NULL) {
+    return -1;
   }
-  return -1;
+  // send response
+  return modbus_reply(static_cast<modbus_t*>(context), request, requestLength, map);
 }
 
 int ModbusBase::replyException(const uint8_t* request, unsigned int exceptionCode) {
@@ -279,7 +411,83 @@ int ModbusBase::replyException(const uint8_t* request, unsigned int exceptionCod
   return modbus_reply_exception(static_cast<modbus_t*>(context), request, exceptionCode);
 }
 
+int ModbusBase::replyTo(int socket, const uint8_t* request, int requestLength, ModbusMapping* mbMapping) {
+  return replyTo(socket, request, requestLength, mbMapping, NULL /* errNo */);
+}
+
+int ModbusBase::replyToWithErrNo(int socket, const uint8_t* request, int requestLength,
+                                 ModbusMapping* mbMapping) {
+  int errNo = 0;
+  int ret = replyTo(socket, request, requestLength, mbMapping, &errNo);
+  return withErrNo(ret, errNo);
+}
+
+int ModbusBase::replyTo(int socket, const uint8_t* request, int requestLength, ModbusMapping* mbMapping,
+                        int* errNo) {
+  MutexLock lock(*mutex);
+  if (!hasSocket(socket)) {
+    errno = EBADF;
+    return captureErrNo(-1, errNo);
+  }
+  // get libmodbus mapping
+  modbus_mapping_t* map = static_cast<modbus_mapping_t*>(mbMapping->getMapping());
+  if (map == NULL) {
+    errno = EINVAL;
+    return captureErrNo(-1, errNo);
+  }
+  // send response via the given socket and restore the current socket
+  // (a receive call may be waiting for data on it)
+  int s = modbus_get_socket(static_cast<modbus_t*>(context));
+  modbus_set_socket(static_cast<modbus_t*>(context), socket);
+  int ret = captureErrNo(modbus_reply(static_cast<modbus_t*>(context), request, requestLength, map),
+                         errNo);
+  modbus_set_socket(static_cast<modbus_t*>(context), s);
+  return ret;
+}
+
+int ModbusBase::replyExceptionTo(int socket, const uint8_t* request, unsigned int exceptionCode) {
+  return replyExceptionTo(socket, request, exceptionCode, NULL /* errNo */);
+}
+
+int ModbusBase::replyExceptionToWithErrNo(int socket, const uint8_t* request, unsigned int exceptionCode) {
+  int errNo = 0;
+  int ret = replyExceptionTo(socket, request, exceptionCode, &errNo);
+  return withErrNo(ret, errNo);
+}
+
+int ModbusBase::replyExceptionTo(int socket, const uint8_t* request, unsigned int exceptionCode,
+                                 int* errNo) {
+  MutexLock lock(*mutex);
+  if (!hasSocket(socket)) {
+    errno = EBADF;
+    return captureErrNo(-1, errNo);
+  }
+  // send exception response via the given socket and restore the current socket
+  int s = modbus_get_socket(static_cast<modbus_t*>(context));
+  modbus_set_socket(static_cast<modbus_t*>(context), socket);
+  int ret = captureErrNo(modbus_reply_exception(static_cast<modbus_t*>(context), request, exceptionCode),
+                         errNo);
+  modbus_set_socket(static_cast<modbus_t*>(context), s);
+  return ret;
+}
+
+int ModbusBase::captureErrNo(int ret, int* errNo) {
+  // store the errno before the lock is released
+  if (ret < 0 && errNo != NULL) {
+    *errNo = errno != 0 ? errno : EIO;
+  }
+  return ret;
+}
+
+int ModbusBase::withErrNo(int ret, int errNo) {
+  return ret < 0 ? -errNo : ret;
+}
+
 int ModbusBase::wait4read(int fd, int selectMask, MutexLock& lock) {
+  if (fd < 0 || fd >= FD_SETSIZE) {
+    errno = EBADF;
+    return -1;
+  }
   // add fd to a set
   fd_set readFds;
   FD_ZERO(&readFds);
@@ -289,8 +497,17 @@ int ModbusBase::wait4read(int fd, int selectMask, MutexLock& lock) {
 }
 
 int ModbusBase::wait4read(fd_set* readFds, int fdMax, int selectMask, MutexLock& lock) {
+  return wait4read(readFds, fdMax, selectMask, lock, NULL /* timeout */);
+}
+
+int ModbusBase::wait4read(fd_set* readFds, int fdMax, int selectMask, MutexLock& lock,
+                          struct timeval* timeout) {
   // add read end of pipe to fd set
   int pipeReadFd = pipeFds[0];
+  if (pipeReadFd >= FD_SETSIZE) {
+    errno = EMFILE;
+    return -1;
+  }
   FD_SET(pipeReadFd, readFds);
   if (pipeReadFd > fdMax) {
       fdMax = pipeReadFd;
@@ -299,13 +516,14 @@ int ModbusBase::wait4read(fd_set* readFds, int fdMax, int selectMask, MutexLock&
   this->selectMask = selectMask;
   lock.unlock();
   int count = select(fdMax + 1, readFds, NULL /* writeFds */, 
-                     NULL /* exceptFds */, NULL /* timeout */);
+                     NULL /* exceptFds */, timeout);
   lock.lock();
   this->selectMask = SELECT_MASK_NONE;
   // if data were sent to the pipe
   if (FD_ISSET(pipeReadFd, readFds)) {
     // return error status
     count = -1;
+    errno = EINTR;
   }
   // always clear pipe (data may be send to the pipe between "select" and "lock" call)
   char ch;
@@ -345,3 +563,11 @@ void ModbusBase::close(int socket, MutexLock& lock) {
   }
 }
 
+bool ModbusBase::hasSocket(int socket) {
+  for (int i = 0; i < socketCount; i++) {
+    if (sockets[i] == socket) {
+      return true;
+    }
+  }
+  return false;
+}
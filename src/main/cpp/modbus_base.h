@@ -10,6 +10,10 @@
 
 /*
  * All method excl. client methods are thread safe.
+ *
+ * The "...WithErrNo" methods return the result of a successful call or the
+ * negated errno of a failed call, so that the error is reported without a
+ * further call to "getErrNo".
  */
 class ModbusBasePrivate;
 class ModbusBase {
@@ -45,6 +49,15 @@ public:
   static const unsigned int MODBUS_EXCEPTION_GATEWAY_PATH = 10;
   static const unsigned int MODBUS_EXCEPTION_GATEWAY_TARGET = 11;
 
+  // indices of the decoded request (receiveAndDecode)
+  static const int DECODED_LENGTH = 0;
+  static const int DECODED_UNIT_ID = 1;
+  static const int DECODED_FUNCTION_CODE = 2;
+  static const int DECODED_ADDRESS = 3;
+  static const int DECODED_QUANTITY = 4;
+  static const int DECODED_TRANSACTION_ID = 5; // -1 for RTU
+  static const int DECODED_SIZE = 6;
+
   // modbus specific error numbers
   static const unsigned int ERRNO_MODBUS_ENOBASE = 112345678;
   static const unsigned int ERRNO_EMBXGTAR = (ERRNO_MODBUS_ENOBASE + MODBUS_EXCEPTION_GATEWAY_TARGET);
@@ -61,6 +74,12 @@ public:
   virtual void setBitsFromByte(uint8_t* dest, int index, const uint8_t value);
   virtual uint16_t getInt16FromInt8(const uint8_t* tabInt8, int index);
   virtual uint32_t getInt32FromInt16(const uint16_t* tabInt16, int index);
+  // copies up to "length" bytes of a buffer (e.g. a received request) to a
+  // Java array with one call and returns the number of copied bytes
+  virtual int getBytes(const uint8_t* src, int length, int8_t* bulkValues, int bulkLength);
+  // copies "length" bytes between native buffers, e.g. a received request
+  // which is processed after the receive buffer has been reused
+  static void copyBytes(uint8_t* dest, const uint8_t* src, int length);
   virtual float getFloat(const uint16_t* src);
   virtual void setFloat(float f, uint16_t* dest);
   virtual int getHeaderLength();
@@ -82,14 +101,41 @@ public:
   virtual int writeRegisters(int addr, int nb, const uint16_t* src);
   virtual int writeAndReadRegisters(int writeAddr, int writeNb, const uint16_t* src,
                                     int readAddr, int readNb, uint16_t* dest);
+  // client with Java arrays (boolean[], short[]): the number of values is
+  // the length of the array
+  virtual int readBits(int addr, uint8_t* readValues, int readLength);
+  virtual int readInputBits(int addr, uint8_t* readValues, int readLength);
+  virtual int readRegisters(int addr, int16_t* readValues, int readLength);
+  virtual int readInputRegisters(int addr, int16_t* readValues, int readLength);
+  virtual int writeBits(int addr, uint8_t* writeValues, int writeLength);
+  virtual int writeRegisters(int addr, int16_t* writeValues, int writeLength);
+  // client with direct buffers: "nb" values at the start of the buffer,
+  // registers in native byte order
+  virtual int readBits(int addr, int nb, void* directValues, int directCapacity);
+  virtual int readInputBits(int addr, int nb, void* directValues, int directCapacity);
+  virtual int readRegisters(int addr, int nb, void* directValues, int directCapacity);
+  virtual int readInputRegisters(int addr, int nb, void* directValues, int directCapacity);
+  virtual int writeBits(int addr, int nb, void* directValues, int directCapacity);
+  virtual int writeRegisters(int addr, int nb, void* directValues, int directCapacity);
 
   // server
   virtual ModbusMapping* mappingNew(int nbCoilStatus, int nbInputStatus, 
                                     int nbHoldingRegisters, int nbInputRegisters);
   virtual void mappingFree(ModbusMapping* mbMapping);
+  // frees a mapping without a context, e.g. after the context has been
+  // freed while a backend call still used the mapping
+  static void freeMapping(ModbusMapping* mbMapping);
   virtual int receive(uint8_t* returnRequest);
   virtual int reply(const uint8_t* request, int requestLength, ModbusMapping* mbMapping);
   virtual int replyException(const uint8_t* request, unsigned int exceptionCode);
+  virtual int replyTo(int socket, const uint8_t* request, int requestLength, ModbusMapping* mbMapping);
+  virtual int replyExceptionTo(int socket, const uint8_t* request, unsigned int exceptionCode);
+  virtual int receiveWithErrNo(uint8_t* returnRequest);
+  // receives a request like "receiveWithErrNo" and decodes its header to
+  // "returnHeader" (DECODED_SIZE values) if the request has not been filtered
+  virtual int receiveAndDecode(uint8_t* returnRequest, int* returnHeader);
+  virtual int replyToWithErrNo(int socket, const uint8_t* request, int requestLength, ModbusMapping* mbMapping);
+  virtual int replyExceptionToWithErrNo(int socket, const uint8_t* request, unsigned int exceptionCode);
 
 protected:
   static const unsigned int SELECT_MASK_NONE = 0;
@@ -110,7 +156,19 @@ protected:
   virtual ~ModbusBase();
   virtual int wait4read(int fd, int selectMask, CommonNamespace::MutexLock& lock);
   virtual int wait4read(fd_set* readFds, int fdMax, int selectMask, CommonNamespace::MutexLock& lock);
+  virtual int wait4read(fd_set* readFds, int fdMax, int selectMask, CommonNamespace::MutexLock& lock,
+                        struct timeval* timeout);
   virtual void close(int socket, CommonNamespace::MutexLock& lock);
+  virtual bool hasSocket(int socket);
+  // sets "errNo" to the errno if "ret" is an error and "errNo" is not NULL
+  static int captureErrNo(int ret, int* errNo);
+  // returns "ret" if it is not an error, otherwise the negated "errNo"
+  static int withErrNo(int ret, int errNo);
+  // "errNo" is set to the errno of a failed call if it is not NULL
+  virtual int receive(uint8_t* returnRequest, int* errNo);
+  virtual int replyTo(int socket, const uint8_t* request, int requestLength, ModbusMapping* mbMapping,
+                      int* errNo);
+  virtual int replyExceptionTo(int socket, const uint8_t* request, unsigned int exceptionCode, int* errNo);
 private:
   ModbusBasePrivate* d;
 };
@@ -1,4 +1,5 @@
 #include "modbus_mapping.h"
+#include <string.h> // memcpy
 
 class ModbusMappingPrivate {
   friend class ModbusMapping;
@@ -11,6 +12,7 @@ private:
   uint8_t* tabInputBits;
   uint16_t* tabInputRegisters;
   uint16_t* tabRegisters;
+  void* mapping;
 };
 
 ModbusMapping::ModbusMapping(int nbBits, int nbInputBits, int nbInputRegisters, int nbRegisters,
@@ -24,6 +26,7 @@ ModbusMapping::ModbusMapping(int nbBits, int nbInputBits, int nbInputRegisters,
   d->tabInputBits = tabInputBits;
   d->tabInputRegisters = tabInputRegisters;
   d->tabRegisters = tabRegisters;
+  d->mapping = 0;
 }
 
 ModbusMapping::~ModbusMapping() {
@@ -62,3 +65,88 @@ uint16_t* ModbusMapping::getTabRegisters() {
   return d->tabRegisters;
 }
 
+void* ModbusMapping::getMapping() {
+  return d->mapping;
+}
+
+void ModbusMapping::setMapping(void* mapping) {
+  d->mapping = mapping;
+}
+
+// returns true if the range is within a table of "nb" values
+static bool isInRange(int address, int quantity, int nb) {
+  return address >= 0 && quantity >= 0 && address + quantity <= nb;
+}
+
+int ModbusMapping::getBits(bool input, int address, int8_t* bulkValues, int bulkLength) {
+  return copyBitsTo(input, address, bulkLength, reinterpret_cast<uint8_t*>(bulkValues));
+}
+
+int ModbusMapping::setBits(bool input, int address, int8_t* bulkValues, int bulkLength) {
+  return copyBitsFrom(input, address, bulkLength, reinterpret_cast<uint8_t*>(bulkValues));
+}
+
+int ModbusMapping::getRegisters(bool input, int address, int16_t* bulkValues, int bulkLength) {
+  return copyRegistersTo(input, address, bulkLength, reinterpret_cast<uint16_t*>(bulkValues));
+}
+
+int ModbusMapping::setRegisters(bool input, int address, int16_t* bulkValues, int bulkLength) {
+  return copyRegistersFrom(input, address, bulkLength, reinterpret_cast<uint16_t*>(bulkValues));
+}
+
+int ModbusMapping::copyBitsTo(bool input, int address, int nb, uint8_t* dest) {
+  if (!isInRange(address, nb, input ? d->nbInputBits : d->nbBits)) {
+    return -1;
+  }
+  memcpy(dest, (input ? d->tabInputBits : d->tabBits) + address, nb);
+  return nb;
+}
+
+int ModbusMapping::copyBitsFrom(bool input, int address, int nb, const uint8_t* src) {
+  if (!isInRange(address, nb, input ? d->nbInputBits : d->nbBits)) {
+    return -1;
+  }
+  memcpy((input ? d->tabInputBits : d->tabBits) + address, src, nb);
+  return nb;
+}
+
+int ModbusMapping::copyRegistersTo(bool input, int address, int nb, uint16_t* dest) {
+  if (!isInRange(address, nb, input ? d->nbInputRegisters : d->nbRegisters)) {
+    return -1;
+  }
+  memcpy(dest, (input ? d->tabInputRegisters : d->tabRegisters) + address, nb * sizeof(uint16_t));
+  return nb;
+}
+
+int ModbusMapping::copyRegistersFrom(bool input, int address, int nb, const uint16_t* src) {
+  if (!isInRange(address, nb, input ? d->nbInputRegisters : d->nbRegisters)) {
+    return -1;
+  }
+  memcpy((input ? d->tabInputRegisters : d->tabRegisters) + address, src, nb * sizeof(uint16_t));
+  return nb;
+}
+
+ModbusTable ModbusMapping::getBitsBuffer(bool input) {
+  // an empty table has no memory but a buffer requires an address
+  static uint8_t empty;
+  ModbusTable table;
+  table.address = input ? d->tabInputBits : d->tabBits;
+  table.capacity = input ? d->nbInputBits : d->nbBits;
+  if (table.address == NULL) {
+    table.address = &empty;
+    table.capacity = 0;
+  }
+  return table;
+}
+
+ModbusTable ModbusMapping::getRegistersBuffer(bool input) {
+  static uint16_t empty;
+  ModbusTable table;
+  table.address = input ? d->tabInputRegisters : d->tabRegisters;
+  table.capacity = (input ? d->nbInputRegisters : d->nbRegisters) * sizeof(uint16_t);
+  if (table.address == NULL) {
+    table.address = &empty;
+    table.capacity = 0;
+  }
+  return table;
+}
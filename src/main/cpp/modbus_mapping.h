@@ -3,6 +3,12 @@
 
 #include <stdint.h>
 
+// memory of a table (a direct ByteBuffer in Java)
+struct ModbusTable {
+  void* address;
+  int capacity; // bytes
+};
+
 class ModbusMappingPrivate;
 class ModbusMapping {
 public:
@@ -20,6 +26,30 @@ public:
   virtual uint16_t* getTabInputRegisters();
   virtual uint16_t* getTabRegisters();
 
+  // bulk copies of values starting at "address" between a table ("input":
+  // input bits/registers) and a Java array, one call for all values.
+  // Return the number of values or -1 if the range exceeds the table.
+  virtual int getBits(bool input, int address, int8_t* bulkValues, int bulkLength);
+  virtual int setBits(bool input, int address, int8_t* bulkValues, int bulkLength);
+  virtual int getRegisters(bool input, int address, int16_t* bulkValues, int bulkLength);
+  virtual int setRegisters(bool input, int address, int16_t* bulkValues, int bulkLength);
+  // like above but between a table and a native array, e.g. of a master call
+  virtual int copyBitsTo(bool input, int address, int nb, uint8_t* dest);
+  virtual int copyBitsFrom(bool input, int address, int nb, const uint8_t* src);
+  virtual int copyRegistersTo(bool input, int address, int nb, uint16_t* dest);
+  virtual int copyRegistersFrom(bool input, int address, int nb, const uint16_t* src);
+
+  // views of the tables without copies, valid until the mapping is freed.
+  // The registers are stored in native byte order.
+  virtual ModbusTable getBitsBuffer(bool input);
+  virtual ModbusTable getRegistersBuffer(bool input);
+
+#ifndef SWIG
+  // the libmodbus mapping (modbus_mapping_t*) of the handle
+  void* getMapping();
+  void setMapping(void* mapping);
+#endif
+
 private:
   ModbusMappingPrivate* d;
 };
@@ -0,0 +1,27 @@
+#ifndef MODBUS_REQUEST_HANDLER_H
+#define MODBUS_REQUEST_HANDLER_H
+
+#include "modbus_mapping.h"
+
+/*
+ * Data access for the native serve loop (ModbusTcpPi::serve). It is
+ * implemented in Java (SWIG director).
+ *
+ * The methods return 0 or an exception code (ModbusBase::MODBUS_EXCEPTION_...).
+ */
+class ModbusRequestHandler {
+public:
+  virtual ~ModbusRequestHandler() {}
+
+  // fills the mapping with the requested values before the response is sent
+  virtual int read(int unitId, int functionCode, int address, int quantity, ModbusMapping* mapping) {
+    return 1; // MODBUS_EXCEPTION_ILLEGAL_FUNCTION
+  }
+
+  // applies the written values of the mapping after the response has been sent
+  virtual int write(int unitId, int functionCode, int address, int quantity, ModbusMapping* mapping) {
+    return 1; // MODBUS_EXCEPTION_ILLEGAL_FUNCTION
+  }
+};
+
+#endif // MODBUS_REQUEST_HANDLER_H
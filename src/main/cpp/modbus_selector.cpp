@@ -0,0 +1,113 @@
+#include "modbus_selector.h"
+#include "common/MutexLock.h"
+#include <stddef.h> // NULL
+#include <errno.h> // errno
+#include <sys/time.h> // timeval
+#include <fcntl.h> // fcntl
+#include <vector>
+namespace UnistdNamespace {
+#include <unistd.h> // pipe
+}
+
+using namespace CommonNamespace;
+
+class ModbusSelectorPrivate {
+  friend class ModbusSelector;
+private:
+  std::vector<ModbusTcpPi*> contexts;
+  std::vector<int> keys;
+  int selectTimeout;
+  int pipeFds[2];
+  Mutex* mutex;
+};
+
+ModbusSelector::ModbusSelector() {
+  d = new ModbusSelectorPrivate();
+  d->selectTimeout = -1;
+  // self pipe for aborting the select call (see ModbusBase)
+  UnistdNamespace::pipe(d->pipeFds);
+  fcntl(d->pipeFds[0], F_SETFL, O_NONBLOCK);
+  fcntl(d->pipeFds[1], F_SETFL, O_NONBLOCK);
+  d->mutex = new Mutex(); // MutexException
+}
+
+ModbusSelector::~ModbusSelector() {
+  delete d->mutex;
+  UnistdNamespace::close(d->pipeFds[1]);
+  UnistdNamespace::close(d->pipeFds[0]);
+  delete d;
+}
+
+int ModbusSelector::add(ModbusTcpPi* context, int key) {
+  MutexLock lock(*d->mutex);
+  d->contexts.push_back(context);
+  d->keys.push_back(key);
+  return 0;
+}
+
+int ModbusSelector::remove(int key) {
+  MutexLock lock(*d->mutex);
+  for (size_t i = 0; i < d->keys.size(); i++) {
+    if (d->keys[i] == key) {
+      d->contexts.erase(d->contexts.begin() + i);
+      d->keys.erase(d->keys.begin() + i);
+      return 0;
+    }
+  }
+  return -1;
+}
+
+void ModbusSelector::setSelectTimeout(int timeout) {
+  MutexLock lock(*d->mutex);
+  d->selectTimeout = timeout;
+}
+
+int ModbusSelector::selectReadWithErrNo(int* readKeys, int* readFds, int capacity) {
+  MutexLock lock(*d->mutex);
+  // the contexts do not add sockets beyond FD_SETSIZE
+  if (d->pipeFds[0] >= FD_SETSIZE) {
+    return -EMFILE;
+  }
+  // add the read end of the pipe and the sockets of all contexts to fd set
+  fd_set readFdSet;
+  FD_ZERO(&readFdSet);
+  FD_SET(d->pipeFds[0], &readFdSet);
+  int fdMax = d->pipeFds[0];
+  for (size_t i = 0; i < d->contexts.size(); i++) {
+    fdMax = d->contexts[i]->addReadFds(&readFdSet, fdMax);
+  }
+  struct timeval timeout;
+  timeout.tv_sec = d->selectTimeout / 1000;
+  timeout.tv_usec = (d->selectTimeout % 1000) * 1000;
+  bool hasTimeout = d->selectTimeout >= 0;
+  // the contexts may be added or removed while waiting
+  lock.unlock();
+  int count = select(fdMax + 1, &readFdSet, NULL /* writeFds */, NULL /* exceptFds */,
+                     hasTimeout ? &timeout : NULL);
+  int errNo = errno;
+  lock.lock();
+  // always clear pipe
+  char ch;
+  while (0 < UnistdNamespace::read(d->pipeFds[0], &ch, 1)) {
+  }
+  if (count < 0) {
+    return errNo == EINTR ? 0 : -errNo;
+  }
+  if (count == 0) {
+    return 0;
+  }
+  // set sockets of the contexts which are still added to return parameters
+  count = 0;
+  for (size_t i = 0; i < d->contexts.size() && count < capacity; i++) {
+    int n = d->contexts[i]->getReadFds(&readFdSet, readFds + count, capacity - count);
+    for (int j = 0; j < n; j++) {
+      readKeys[count++] = d->keys[i];
+    }
+  }
+  return count;
+}
+
+void ModbusSelector::wakeup() {
+  // write anything to pipe to abort a blocking select call
+  UnistdNamespace::write(d->pipeFds[1], "x", 1);
+}
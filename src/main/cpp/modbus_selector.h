@@ -0,0 +1,34 @@
+#ifndef MODBUS_SELECTOR_H
+#define MODBUS_SELECTOR_H
+
+#include "modbus_tcppi.h"
+
+/*
+ * Waits for the server and client sockets of many listening TCP contexts
+ * with one select call, so that one thread can serve many ports.
+ *
+ * All methods are thread safe. A context must be removed before it is
+ * closed.
+ */
+class ModbusSelectorPrivate;
+class ModbusSelector {
+public:
+  ModbusSelector();
+  virtual ~ModbusSelector();
+
+  // adds a listening context whose ready sockets are returned with "key"
+  virtual int add(ModbusTcpPi* context, int key);
+  // returns -1 if no context has been added with "key"
+  virtual int remove(int key);
+  virtual void setSelectTimeout(int timeout);
+  // waits for readable sockets and writes up to "capacity" sockets with the
+  // keys of their contexts to "readFds" and "readKeys". Returns the count of
+  // the sockets, 0 after a timeout or "wakeup" or the negated errno.
+  virtual int selectReadWithErrNo(int* readKeys, int* readFds, int capacity);
+  // aborts a blocking select call, e.g. after contexts have been added
+  virtual void wakeup();
+private:
+  ModbusSelectorPrivate* d;
+};
+
+#endif // MODBUS_SELECTOR_H
@@ -2,6 +2,14 @@
 #include "common/MutexLock.h"
 #include <modbus.h> // modbus_tcp_pi_listen
 #include <stddef.h> // NULL
+#include <sys/ioctl.h> // ioctl, FIONREAD
+#include <sys/socket.h> // recv, setsockopt
+#include <netinet/in.h> // IPPROTO_TCP
+#include <netinet/tcp.h> // TCP_CORK, TCP_KEEPIDLE
+#include <sys/time.h> // timeval
+#include <netdb.h> // getaddrinfo
+#include <string.h> // memset
+#include <string>
 namespace UnistdNamespace {
 #include <unistd.h> // write
 }
@@ -11,12 +19,18 @@ using namespace CommonNamespace;
 class ModbusTcpPiPrivate {
   friend class ModbusTcpPi;
 private:
+  std::string node;
+  std::string service;
   int serverSocket;
+  int socketCapacity;
+  int selectTimeout;
 };
 
 ModbusTcpPi::ModbusTcpPi() {
   d = new ModbusTcpPiPrivate();
   d->serverSocket = -1;
+  d->socketCapacity = 0;
+  d->selectTimeout = -1;
 }
 
 ModbusTcpPi::~ModbusTcpPi() {
@@ -26,39 +40,125 @@ ModbusTcpPi::~ModbusTcpPi() {
 int ModbusTcpPi::newTcpPi(const char *node, const char* service) {
   MutexLock lock(*mutex);
   context = modbus_new_tcp_pi(node, service);
-  return context == NULL ? -1 : 0;
+  if (context == NULL) {
+    return -1;
+  }
+  // keep the address for listening with own socket options
+  d->node = node == NULL ? "" : node;
+  d->service = service == NULL ? "" : service;
+  return 0;
 }
 
 int ModbusTcpPi::tcpPiListen(int nbConnections) {
+  return tcpPiListen(nbConnections, false /* reusePort */);
+}
+
+int ModbusTcpPi::tcpPiListen(int nbConnections, bool reusePort) {
   MutexLock lock(*mutex);
-  d->serverSocket = modbus_tcp_pi_listen(static_cast<modbus_t*>(context), nbConnections);
+  if (reusePort) {
+    d->serverSocket = listenReusePort(nbConnections);
+  } else {
+    d->serverSocket = modbus_tcp_pi_listen(static_cast<modbus_t*>(context), nbConnections);
+  }
   if (d->serverSocket < 0) {
     return -1;
   }
+  // sockets are waited for with select, which cannot handle higher fds
+  if (d->serverSocket >= FD_SETSIZE) {
+    close(d->serverSocket);
+    d->serverSocket = -1;
+    errno = EMFILE;
+    return -1;
+  }
   delete[] sockets;
-  sockets = new int[nbConnections];
+  // the socket list grows with the connections up to the max. count
+  d->socketCapacity = nbConnections < 16 ? nbConnections : 16;
+  sockets = new int[d->socketCapacity];
   socketCount = 0;
   maxSocketCount = nbConnections;
   return d->serverSocket;
 }
 
+int ModbusTcpPi::listenReusePort(int nbConnections) {
+  // like modbus_tcp_pi_listen with SO_REUSEPORT
+  struct addrinfo hints;
+  memset(&hints, 0, sizeof(hints));
+  hints.ai_flags = AI_PASSIVE;
+#ifdef AI_ADDRCONFIG
+  hints.ai_flags |= AI_ADDRCONFIG;
+#endif
+  hints.ai_family = AF_UNSPEC;
+  hints.ai_socktype = SOCK_STREAM;
+  struct addrinfo* list;
+  const char* node = d->node.empty() ? NULL : d->node.c_str();
+  const char* service = d->service.empty() ? "502" : d->service.c_str();
+  int rc = getaddrinfo(node, service, &hints, &list);
+  if (rc != 0) {
+    errno = rc == EAI_SYSTEM ? errno : ECONNREFUSED;
+    return -1;
+  }
+  int s = -1;
+  for (struct addrinfo* ai = list; ai != NULL; ai = ai->ai_next) {
+    s = socket(ai->ai_family, ai->ai_socktype, ai->ai_protocol);
+    if (s < 0) {
+      continue;
+    }
+    int enable = 1;
+    if (setsockopt(s, SOL_SOCKET, SO_REUSEADDR, &enable, sizeof(enable)) == 0
+        && setsockopt(s, SOL_SOCKET, SO_REUSEPORT, &enable, sizeof(enable)) == 0
+        && bind(s, ai->ai_addr, ai->ai_addrlen) == 0
+        && listen(s, nbConnections) == 0) {
+      break;
+    }
+    int errNo = errno;
+    UnistdNamespace::close(s);
+    errno = errNo;
+    s = -1;
+  }
+  freeaddrinfo(list);
+  return s;
+}
+
 int ModbusTcpPi::tcpPiAccept(int serverSocket) {
+  return tcpPiAccept(serverSocket, NULL /* errNo */);
+}
+
+int ModbusTcpPi::tcpPiAcceptWithErrNo(int serverSocket) {
+  int errNo = 0;
+  int ret = tcpPiAccept(serverSocket, &errNo);
+  return withErrNo(ret, errNo);
+}
+
+int ModbusTcpPi::tcpPiAccept(int serverSocket, int* errNo) {
   MutexLock lock(*mutex);
   if (d->serverSocket < 0) {
-    return -1;
+    errno = EBADF;
+    return captureErrNo(-1, errNo);
   }
   // wait for reading
   if (wait4read(serverSocket, SELECT_MASK_ACCEPT, lock) < 0) {
-    return -1;
+    return captureErrNo(-1, errNo);
   }
   // accept connection
-  int socket = modbus_tcp_pi_accept(static_cast<modbus_t*>(context), &serverSocket);
+  int socket = captureErrNo(modbus_tcp_pi_accept(static_cast<modbus_t*>(context), &serverSocket), errNo);
   if (socket >= 0) {
-    // if max. socket count has already been reached
-    if (socketCount == maxSocketCount) {
+    // if max. socket count has already been reached or the socket cannot
+    // be added to an fd set
+    if (socketCount == maxSocketCount || socket >= FD_SETSIZE) {
       // reject connection by closing the socket
       close(socket);
-      return -1;
+      errno = EMFILE;
+      return captureErrNo(-1, errNo);
+    }
+    if (socketCount == d->socketCapacity) {
+      int capacity = d->socketCapacity * 2 < maxSocketCount ? d->socketCapacity * 2 : maxSocketCount;
+      int* s = new int[capacity];
+      for (int i = 0; i < socketCount; i++) {
+        s[i] = sockets[i];
+      }
+      delete[] sockets;
+      sockets = s;
+      d->socketCapacity = capacity;
     }
     sockets[socketCount++] = socket;
   }
@@ -66,10 +166,57 @@ int ModbusTcpPi::tcpPiAccept(int serverSocket) {
   return socket;
 }
 
+int ModbusTcpPi::tcpPiAttach(int socket) {
+  MutexLock lock(*mutex);
+  // use the context for an already accepted client socket
+  delete[] sockets;
+  sockets = new int[1];
+  sockets[0] = socket;
+  socketCount = 1;
+  maxSocketCount = 1;
+  d->socketCapacity = 1;
+  modbus_set_socket(static_cast<modbus_t*>(context), socket);
+  return 0;
+}
+
+int ModbusTcpPi::tcpPiDetach(int socket) {
+  MutexLock lock(*mutex);
+  // remove socket from list without closing it
+  bool found = false;
+  for (int i = 0; i < socketCount; i++) {
+    if (found) {
+      sockets[i - 1] = sockets[i];
+    } else if (sockets[i] == socket) {
+      found = true;
+    }
+  }
+  if (!found) {
+    return -1;
+  }
+  socketCount--;
+  return 0;
+}
+
+void ModbusTcpPi::setSelectTimeout(int timeout) {
+  MutexLock lock(*mutex);
+  d->selectTimeout = timeout;
+}
+
 int ModbusTcpPi::selectRead(int* readFds) {
+  return selectRead(readFds, NULL /* errNo */);
+}
+
+int ModbusTcpPi::selectReadWithErrNo(int* readFds) {
+  int errNo = 0;
+  int ret = selectRead(readFds, &errNo);
+  return withErrNo(ret, errNo);
+}
+
+int ModbusTcpPi::selectRead(int* readFds, int* errNo) {
   MutexLock lock(*mutex);
   if (d->serverSocket < 0) {
-    return -1;
+    errno = EBADF;
+    return captureErrNo(-1, errNo);
   }
   // add server socket to fd set
   fd_set readFdSet;
@@ -79,29 +226,243 @@ int ModbusTcpPi::selectRead(int* readFds) {
   // add client sockets to fd set
   for (int i = 0; i < socketCount; i++) {
     int s = sockets[i];
+    if (s >= FD_SETSIZE) {
+      continue;
+    }
     FD_SET(s, &readFdSet);
     if (s > fdMax) {
       fdMax = s;
     }
   }
   // wait for reading
-  if (wait4read(&readFdSet, fdMax, SELECT_MASK_ALL, lock) < 0) {
-    return -1;
+  struct timeval timeout;
+  timeout.tv_sec = d->selectTimeout / 1000;
+  timeout.tv_usec = (d->selectTimeout % 1000) * 1000;
+  int count = wait4read(&readFdSet, fdMax, SELECT_MASK_ALL, lock,
+                        d->selectTimeout < 0 ? NULL : &timeout);
+  if (count <= 0) {
+    // error or timeout
+    return captureErrNo(count, errNo);
   }
   // set sockets to return parameter
-  int count = 0;
+  count = 0;
   if (FD_ISSET(d->serverSocket, &readFdSet)) {
     readFds[count++] = d->serverSocket; 
   }
   for (int i = 0; i < socketCount; i++) {
      int s = sockets[i];
-     if (FD_ISSET(s, &readFdSet)) {
+     if (s < FD_SETSIZE && FD_ISSET(s, &readFdSet)) {
        readFds[count++] = s; 
      }
   }
   return count;
 }
 
+int ModbusTcpPi::addReadFds(fd_set* readFdSet, int fdMax) {
+  MutexLock lock(*mutex);
+  if (d->serverSocket < 0) {
+    return fdMax;
+  }
+  FD_SET(d->serverSocket, readFdSet);
+  if (d->serverSocket > fdMax) {
+    fdMax = d->serverSocket;
+  }
+  for (int i = 0; i < socketCount; i++) {
+    int s = sockets[i];
+    if (s >= FD_SETSIZE) {
+      continue;
+    }
+    FD_SET(s, readFdSet);
+    if (s > fdMax) {
+      fdMax = s;
+    }
+  }
+  return fdMax;
+}
+
+int ModbusTcpPi::getReadFds(fd_set* readFdSet, int* readFds, int capacity) {
+  MutexLock lock(*mutex);
+  if (d->serverSocket < 0) {
+    return 0;
+  }
+  int count = 0;
+  if (FD_ISSET(d->serverSocket, readFdSet) && count < capacity) {
+    readFds[count++] = d->serverSocket;
+  }
+  // sockets accepted after the select call are not set
+  for (int i = 0; i < socketCount && count < capacity; i++) {
+    int s = sockets[i];
+    if (s < FD_SETSIZE && FD_ISSET(s, readFdSet)) {
+      readFds[count++] = s;
+    }
+  }
+  return count;
+}
+
+bool ModbusTcpPi::isRequestPending(int socket) {
+  MutexLock lock(*mutex);
+  if (!hasSocket(socket)) {
+    return false;
+  }
+  // peek the MBAP header (transaction id, protocol id, length, unit id)
+  uint8_t header[7];
+  if (recv(socket, header, sizeof(header), MSG_PEEK | MSG_DONTWAIT) != sizeof(header)) {
+    return false;
+  }
+  // the length field counts the unit id and the PDU
+  int aduLength = 6 + ((header[4] << 8) | header[5]);
+  int available = 0;
+  if (ioctl(socket, FIONREAD, &available) < 0) {
+    return false;
+  }
+  // a request is only pending if it has been received completely
+  return available >= aduLength;
+}
+
+int ModbusTcpPi::setCork(int socket, bool cork) {
+  MutexLock lock(*mutex);
+  if (!hasSocket(socket)) {
+    return -1;
+  }
+  // while corked, responses are collected and sent in as few segments as
+  // possible when the cork is removed
+  int value = cork ? 1 : 0;
+  return setsockopt(socket, IPPROTO_TCP, TCP_CORK, &value, sizeof(value));
+}
+
+int ModbusTcpPi::setKeepAlive(int socket, int idle, int interval, int count) {
+  MutexLock lock(*mutex);
+  if (!hasSocket(socket)) {
+    return -1;
+  }
+  // detect peers which have vanished without closing the connection
+  int value = 1;
+  if (setsockopt(socket, SOL_SOCKET, SO_KEEPALIVE, &value, sizeof(value)) < 0
+      || setsockopt(socket, IPPROTO_TCP, TCP_KEEPIDLE, &idle, sizeof(idle)) < 0
+      || setsockopt(socket, IPPROTO_TCP, TCP_KEEPINTVL, &interval, sizeof(interval)) < 0
+      || setsockopt(socket, IPPROTO_TCP, TCP_KEEPCNT, &count, sizeof(count)) < 0) {
+    return -1;
+  }
+  return 0;
+}
+
+int ModbusTcpPi::serve(ModbusRequestHandler* handler) {
+  int serverSocket;
+  int readFdsLength;
+  {
+    MutexLock lock(*mutex);
+    serverSocket = d->serverSocket;
+    readFdsLength = 1 + maxSocketCount;
+  }
+  if (serverSocket < 0) {
+    errno = EBADF;
+    return -1;
+  }
+  int* readFds = new int[readFdsLength];
+  uint8_t request[MODBUS_TCP_MAX_ADU_LENGTH];
+  int header[DECODED_SIZE];
+  int ret = 0;
+  while (true) {
+    int errNo = 0;
+    int count = selectRead(readFds, &errNo);
+    // if the server socket has been closed by "close"
+    {
+      MutexLock lock(*mutex);
+      if (d->serverSocket < 0) {
+        break;
+      }
+    }
+    if (count < 0) {
+      // if select has been aborted
+      if (errNo == EINTR) {
+        continue;
+      }
+      errno = errNo;
+      ret = -1;
+      break;
+    }
+    for (int i = 0; i < count; i++) {
+      if (readFds[i] == serverSocket) {
+        // a rejected connection is closed by "tcpPiAccept"
+        tcpPiAccept(serverSocket, NULL /* errNo */);
+      } else {
+        serveRequest(handler, readFds[i], request, header);
+      }
+    }
+  }
+  delete[] readFds;
+  return ret;
+}
+
+void ModbusTcpPi::serveRequest(ModbusRequestHandler* handler, int socket, uint8_t* request, int* header) {
+  setSocket(socket);
+  int length = receiveAndDecode(request, header);
+  if (length <= 0) {
+    // if "Connection reset by peer" or keepalive timeout
+    if (length == -ECONNRESET || length == -ETIMEDOUT) {
+      close(socket);
+    }
+    // filtered requests return 0
+    return;
+  }
+  int unitId = header[DECODED_UNIT_ID];
+  int functionCode = header[DECODED_FUNCTION_CODE];
+  int address = header[DECODED_ADDRESS];
+  int quantity = header[DECODED_QUANTITY];
+  bool isRead = functionCode == MODBUS_FC_READ_COILS || functionCode == MODBUS_FC_READ_DISCRETE_INPUTS
+      || functionCode == MODBUS_FC_READ_HOLDING_REGISTERS || functionCode == MODBUS_FC_READ_INPUT_REGISTERS;
+  bool isWrite = functionCode == MODBUS_FC_WRITE_SINGLE_COIL || functionCode == MODBUS_FC_WRITE_MULTIPLE_COILS
+      || functionCode == MODBUS_FC_WRITE_SINGLE_REGISTER || functionCode == MODBUS_FC_WRITE_MULTIPLE_REGISTERS;
+  ModbusMapping* mapping = createMapping(functionCode, address, quantity);
+  if (mapping == NULL) {
+    replyExceptionTo(socket, request, MODBUS_EXCEPTION_SLAVE_OR_SERVER_FAILURE, NULL /* errNo */);
+    return;
+  }
+  // get the values from the backend
+  int exceptionCode = isRead ? handler->read(unitId, functionCode, address, quantity, mapping) : 0;
+  int errNo = 0;
+  int ret;
+  if (exceptionCode != 0) {
+    ret = replyExceptionTo(socket, request, exceptionCode, &errNo);
+  } else {
+    // send response (the values of a write request are stored in the mapping)
+    ret = replyTo(socket, request, length, mapping, &errNo);
+    if (ret >= 0 && isWrite) {
+      handler->write(unitId, functionCode, address, quantity, mapping);
+    }
+  }
+  mappingFree(mapping);
+  // if the connection has been reset while sending the response
+  if (ret < 0 && (errNo == ECONNRESET || errNo == EPIPE)) {
+    close(socket);
+  }
+}
+
+ModbusMapping* ModbusTcpPi::createMapping(int functionCode, int address, int quantity) {
+  // the mapping covers the requested addresses only
+  int maxAddress = address + quantity;
+  int nbBits = 0, nbInputBits = 0, nbRegisters = 0, nbInputRegisters = 0;
+  switch (functionCode) {
+  case MODBUS_FC_READ_COILS:
+  case MODBUS_FC_WRITE_SINGLE_COIL:
+  case MODBUS_FC_WRITE_MULTIPLE_COILS:
+    nbBits = maxAddress;
+    break;
+  case MODBUS_FC_READ_DISCRETE_INPUTS:
+    nbInputBits = maxAddress;
+    break;
+  case MODBUS_FC_READ_HOLDING_REGISTERS:
+  case MODBUS_FC_WRITE_SINGLE_REGISTER:
+  case MODBUS_FC_WRITE_MULTIPLE_REGISTERS:
+    nbRegisters = maxAddress;
+    break;
+  case MODBUS_FC_READ_INPUT_REGISTERS:
+    nbInputRegisters = maxAddress;
+    break;
+  }
+  return mappingNew(nbBits, nbInputBits, nbRegisters, nbInputRegisters);
+}
+
 void ModbusTcpPi::close() {
   MutexLock lock(*mutex);
   // close client sockets
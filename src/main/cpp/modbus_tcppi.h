@@ -2,6 +2,7 @@
 #define MODBUS_TCPPI_H
 
 #include "modbus_base.h"
+#include "modbus_request_handler.h"
 #include <stdint.h>
 
 /*
@@ -19,13 +20,45 @@ public:
   
   // server
   virtual int tcpPiListen(int nbConnections);
+  // listens like "tcpPiListen" and allows further listeners on the same port
+  // (SO_REUSEPORT) if "reusePort" is true. The kernel distributes the
+  // connections among the listeners.
+  virtual int tcpPiListen(int nbConnections, bool reusePort);
   virtual int tcpPiAccept(int socket);
+  virtual int tcpPiAcceptWithErrNo(int socket);
+  virtual int tcpPiAttach(int socket);
+  virtual int tcpPiDetach(int socket);
 
+  virtual void setSelectTimeout(int timeout);
   virtual int selectRead(int* readFds);
+  virtual int selectReadWithErrNo(int* readFds);
+  virtual bool isRequestPending(int socket);
+  virtual int setCork(int socket, bool cork);
+  virtual int setKeepAlive(int socket, int idle, int interval, int count);
+  // accepts connections and answers their requests until the server socket
+  // is closed by "close" (returns 0) or an error occurs (returns -1)
+  virtual int serve(ModbusRequestHandler* handler);
 
   virtual void close();
   virtual void close(int socket);
   virtual void closeClients();
+
+#ifndef SWIG
+  // shared select (ModbusSelector): adds the server and client sockets (all
+  // below FD_SETSIZE as higher ones are rejected by "tcpPiAccept") to
+  // "readFdSet" and returns the new max. fd
+  virtual int addReadFds(fd_set* readFdSet, int fdMax);
+  // writes up to "capacity" sockets of this context which are set in
+  // "readFdSet" to "readFds" and returns their count
+  virtual int getReadFds(fd_set* readFdSet, int* readFds, int capacity);
+#endif
+
+protected:
+  virtual int tcpPiAccept(int socket, int* errNo);
+  virtual int selectRead(int* readFds, int* errNo);
+  virtual void serveRequest(ModbusRequestHandler* handler, int socket, uint8_t* request, int* header);
+  virtual ModbusMapping* createMapping(int functionCode, int address, int quantity);
+  virtual int listenReusePort(int nbConnections);
 private:
   ModbusTcpPiPrivate* d;
 };
@@ -1,11 +1,17 @@
 package havis.util.modbus;
 
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
 public class Field {
 
 	private RegisterType registerType;
 	private DataType dataType;
 	private int address;
 	private int addressQuantity;
+	private Charset charset = StandardCharsets.UTF_8;
+	private StringPadding padding = StringPadding.NONE;
+	private boolean byteSwap;
 
 	public Field() {
 	}
@@ -48,4 +54,38 @@ public class Field {
 	public void setAddressQuantity(int addressQuantity) {
 		this.addressQuantity = addressQuantity;
 	}
-}
\ No newline at end of file
+
+	/**
+	 * @return the charset of a STRING field (default: UTF-8)
+	 */
+	public Charset getCharset() {
+		return charset;
+	}
+
+	public void setCharset(Charset charset) {
+		this.charset = charset;
+	}
+
+	/**
+	 * @return the padding of a STRING field (default: NONE)
+	 */
+	public StringPadding getPadding() {
+		return padding;
+	}
+
+	public void setPadding(StringPadding padding) {
+		this.padding = padding;
+	}
+
+	/**
+	 * @return true if the first character of a STRING field is stored in the
+	 *         low byte of a register instead of the high byte
+	 */
+	public boolean isByteSwap() {
+		return byteSwap;
+	}
+
+	public void setByteSwap(boolean byteSwap) {
+		this.byteSwap = byteSwap;
+	}
+}
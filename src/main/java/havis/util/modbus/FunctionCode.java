@@ -0,0 +1,20 @@
+package havis.util.modbus;
+
+/**
+ * The function codes of the {@link ModbusBase} constants as compile time
+ * constants, which do not require the native library
+ */
+public final class FunctionCode {
+
+	public static final short READ_COILS = 1;
+	public static final short READ_DISCRETE_INPUTS = 2;
+	public static final short READ_HOLDING_REGISTERS = 3;
+	public static final short READ_INPUT_REGISTERS = 4;
+	public static final short WRITE_SINGLE_COIL = 5;
+	public static final short WRITE_SINGLE_REGISTER = 6;
+	public static final short WRITE_MULTIPLE_COILS = 15;
+	public static final short WRITE_MULTIPLE_REGISTERS = 16;
+
+	private FunctionCode() {
+	}
+}
@@ -0,0 +1,103 @@
+package havis.util.modbus;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+/**
+ * Request mapping with tables on the Java heap. It is used for processing
+ * requests without the native library, e.g. by an in-memory transport.
+ */
+public class HeapMapping implements RegisterMapping {
+
+	private final ByteBuffer bits;
+	private final ByteBuffer inputBits;
+	private final ByteBuffer registers;
+	private final ByteBuffer inputRegisters;
+
+	public HeapMapping(int nbBits, int nbInputBits, int nbRegisters, int nbInputRegisters) {
+		bits = ByteBuffer.allocate(nbBits);
+		inputBits = ByteBuffer.allocate(nbInputBits);
+		registers = ByteBuffer.allocate(nbRegisters * 2).order(ByteOrder.nativeOrder());
+		inputRegisters = ByteBuffer.allocate(nbInputRegisters * 2).order(ByteOrder.nativeOrder());
+	}
+
+	@Override
+	public int getNbBits() {
+		return bits.capacity();
+	}
+
+	@Override
+	public int getNbInputBits() {
+		return inputBits.capacity();
+	}
+
+	@Override
+	public int getNbRegisters() {
+		return registers.capacity() / 2;
+	}
+
+	@Override
+	public int getNbInputRegisters() {
+		return inputRegisters.capacity() / 2;
+	}
+
+	@Override
+	public int getBits(boolean input, int address, byte[] bulkValues) {
+		ByteBuffer table = getBitsBuffer(input);
+		if (address < 0 || address + bulkValues.length > table.capacity()) {
+			return -1;
+		}
+		table.position(address);
+		table.get(bulkValues);
+		return bulkValues.length;
+	}
+
+	@Override
+	public int setBits(boolean input, int address, byte[] bulkValues) {
+		ByteBuffer table = getBitsBuffer(input);
+		if (address < 0 || address + bulkValues.length > table.capacity()) {
+			return -1;
+		}
+		table.position(address);
+		table.put(bulkValues);
+		return bulkValues.length;
+	}
+
+	@Override
+	public int getRegisters(boolean input, int address, short[] bulkValues) {
+		ShortBuffer table = getRegistersView(input);
+		if (address < 0 || address + bulkValues.length > table.capacity()) {
+			return -1;
+		}
+		table.position(address);
+		table.get(bulkValues);
+		return bulkValues.length;
+	}
+
+	@Override
+	public int setRegisters(boolean input, int address, short[] bulkValues) {
+		ShortBuffer table = getRegistersView(input);
+		if (address < 0 || address + bulkValues.length > table.capacity()) {
+			return -1;
+		}
+		table.position(address);
+		table.put(bulkValues);
+		return bulkValues.length;
+	}
+
+	@Override
+	public ByteBuffer getBitsBuffer(boolean input) {
+		return (input ? inputBits : bits).duplicate();
+	}
+
+	@Override
+	public ByteBuffer getRegistersBuffer(boolean input) {
+		return (input ? inputRegisters : registers).duplicate().order(ByteOrder.nativeOrder());
+	}
+
+	@Override
+	public ShortBuffer getRegistersView(boolean input) {
+		return getRegistersBuffer(input).asShortBuffer();
+	}
+}
@@ -0,0 +1,312 @@
+package havis.util.modbus;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Register image in a memory mapped file which can be shared by several
+ * processes. All values are stored in little endian byte order:
+ *
+ * <pre>
+ * offset  size  content
+ *      0     4  magic 0x4D425249 ("MBRI")
+ *      4     4  layout version (1)
+ *      8     4  number of coils
+ *     12     4  number of discrete inputs
+ *     16     4  number of holding registers
+ *     20     4  number of input registers
+ *     24     8  reserved
+ *     32     8  sequence of coils
+ *     40     8  sequence of discrete inputs
+ *     48     8  sequence of holding registers
+ *     56     8  sequence of input registers
+ *     64        coils (1 byte per coil: 0 or 1)
+ *               discrete inputs (1 byte per input: 0 or 1)
+ *               padding to an even offset
+ *               holding registers (2 bytes per register)
+ *               input registers (2 bytes per register)
+ * </pre>
+ *
+ * Each register type is guarded by its sequence (seqlock). A writer increments
+ * the even sequence to an odd value with an atomic compare and set, changes
+ * the values and increments the sequence to the next even value. A reader
+ * copies the values and retries if the sequence was odd or has changed in the
+ * meantime. Readers never block writers. A writer which dies while holding an
+ * odd sequence blocks all further access to the register type.
+ */
+public class MappedRegisterImage implements Closeable {
+
+	public static final int MAGIC = 0x4D425249;
+	public static final int VERSION = 1;
+	public static final int HEADER_LENGTH = 64;
+
+	private static final int COUNT_OFFSET = 8;
+	private static final int SEQUENCE_OFFSET = 32;
+
+	private static final VarHandle SEQUENCE = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+	private final FileChannel channel;
+	private final MappedByteBuffer buffer;
+	private final int[] counts = new int[RegisterType.values().length];
+	private final int[] offsets = new int[RegisterType.values().length];
+
+	/**
+	 * Opens an existing image or creates a new one with the given sizes. The
+	 * sizes of an existing image must match.
+	 */
+	public MappedRegisterImage(Path path, int coils, int discreteInputs, int holdingRegisters, int inputRegisters) throws IOException {
+		counts[RegisterType.COILS.ordinal()] = coils;
+		counts[RegisterType.DISCRETE_INPUTS.ordinal()] = discreteInputs;
+		counts[RegisterType.HOLDING_REGISTERS.ordinal()] = holdingRegisters;
+		counts[RegisterType.INPUT_REGISTERS.ordinal()] = inputRegisters;
+		offsets[RegisterType.COILS.ordinal()] = HEADER_LENGTH;
+		offsets[RegisterType.DISCRETE_INPUTS.ordinal()] = HEADER_LENGTH + coils;
+		offsets[RegisterType.HOLDING_REGISTERS.ordinal()] = (HEADER_LENGTH + coils + discreteInputs + 1) & ~1;
+		offsets[RegisterType.INPUT_REGISTERS.ordinal()] = offsets[RegisterType.HOLDING_REGISTERS.ordinal()] + holdingRegisters * 2;
+		int length = offsets[RegisterType.INPUT_REGISTERS.ordinal()] + inputRegisters * 2;
+
+		channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			boolean isNew = channel.size() == 0;
+			if (!isNew && channel.size() != length) {
+				throw new IOException("Register image " + path + " has an invalid size: " + channel.size() + " (expected: " + length + ")");
+			}
+			buffer = channel.map(MapMode.READ_WRITE, 0, length);
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+			if (isNew) {
+				buffer.putInt(0, MAGIC);
+				buffer.putInt(4, VERSION);
+				for (RegisterType type : RegisterType.values()) {
+					buffer.putInt(COUNT_OFFSET + type.ordinal() * 4, counts[type.ordinal()]);
+				}
+			} else {
+				if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+					throw new IOException("Register image " + path + " has an invalid header");
+				}
+				for (RegisterType type : RegisterType.values()) {
+					if (buffer.getInt(COUNT_OFFSET + type.ordinal() * 4) != counts[type.ordinal()]) {
+						throw new IOException("Register image " + path + " has an invalid number of " + type);
+					}
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	public int getCount(RegisterType type) {
+		return counts[type.ordinal()];
+	}
+
+	/**
+	 * @return the current sequence of a register type. It changes with each
+	 *         write.
+	 */
+	public long getSequence(RegisterType type) {
+		return (long) SEQUENCE.getVolatile(buffer, SEQUENCE_OFFSET + type.ordinal() * 8);
+	}
+
+	private void checkRange(RegisterType type, int address, int quantity) {
+		if (address < 0 || quantity < 0 || address + quantity > counts[type.ordinal()]) {
+			throw new IndexOutOfBoundsException("Invalid " + type + " range: " + address + "+" + quantity + " (size: " + counts[type.ordinal()] + ")");
+		}
+	}
+
+	private boolean isBits(RegisterType type) {
+		return type == RegisterType.COILS || type == RegisterType.DISCRETE_INPUTS;
+	}
+
+	/**
+	 * Reads a consistent snapshot of values. Bits are returned as 0 or 1,
+	 * registers as unsigned 16 bit values.
+	 */
+	public void read(RegisterType type, int address, int quantity, int[] dest) {
+		checkRange(type, address, quantity);
+		int sequenceOffset = SEQUENCE_OFFSET + type.ordinal() * 8;
+		int offset = offsets[type.ordinal()];
+		boolean isBits = isBits(type);
+		while (true) {
+			long sequence = (long) SEQUENCE.getAcquire(buffer, sequenceOffset);
+			// if a write is in progress
+			if ((sequence & 1) != 0) {
+				Thread.onSpinWait();
+				continue;
+			}
+			for (int i = 0; i < quantity; i++) {
+				dest[i] = isBits ? buffer.get(offset + address + i) : buffer.getShort(offset + (address + i) * 2) & 0xFFFF;
+			}
+			// do not move the reads of the values behind the check
+			VarHandle.acquireFence();
+			if ((long) SEQUENCE.getVolatile(buffer, sequenceOffset) == sequence) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Writes values. Bits are written as 0 for 0 and 1 for all other values,
+	 * registers as unsigned 16 bit values.
+	 */
+	public void write(RegisterType type, int address, int quantity, int[] src) {
+		checkRange(type, address, quantity);
+		int sequenceOffset = SEQUENCE_OFFSET + type.ordinal() * 8;
+		int offset = offsets[type.ordinal()];
+		boolean isBits = isBits(type);
+		long sequence = acquire(sequenceOffset);
+		try {
+			for (int i = 0; i < quantity; i++) {
+				if (isBits) {
+					buffer.put(offset + address + i, (byte) (src[i] != 0 ? 1 : 0));
+				} else {
+					buffer.putShort(offset + (address + i) * 2, (short) src[i]);
+				}
+			}
+		} finally {
+			// publish the values
+			SEQUENCE.setRelease(buffer, sequenceOffset, sequence + 2);
+		}
+	}
+
+	/**
+	 * Copies a consistent snapshot of bits (1 byte per bit) to a buffer at an
+	 * index, e.g. to a table of a mapping without intermediate arrays
+	 */
+	public void read(RegisterType type, int address, int quantity, ByteBuffer dest, int index) {
+		readRegion(type, address, quantity, dest, index);
+	}
+
+	/**
+	 * Copies a consistent snapshot of registers to a buffer at an index, e.g.
+	 * to a register view of a mapping without intermediate arrays
+	 */
+	public void read(RegisterType type, int address, int quantity, ShortBuffer dest, int index) {
+		readRegion(type, address, quantity, dest, index);
+	}
+
+	/**
+	 * Writes bits (1 byte per bit) from a buffer at an index. The bytes are
+	 * copied unchanged, so they must be 0 or 1.
+	 */
+	public void write(RegisterType type, int address, int quantity, ByteBuffer src, int index) {
+		writeRegion(type, address, quantity, src, index);
+	}
+
+	/**
+	 * Writes registers from a buffer at an index
+	 */
+	public void write(RegisterType type, int address, int quantity, ShortBuffer src, int index) {
+		writeRegion(type, address, quantity, src, index);
+	}
+
+	private void readRegion(RegisterType type, int address, int quantity, Buffer dest, int index) {
+		checkRange(type, address, quantity);
+		checkBuffer(type, dest);
+		int sequenceOffset = SEQUENCE_OFFSET + type.ordinal() * 8;
+		ByteBuffer region = getRegion(type, address, quantity);
+		while (true) {
+			long sequence = (long) SEQUENCE.getAcquire(buffer, sequenceOffset);
+			// if a write is in progress
+			if ((sequence & 1) != 0) {
+				Thread.onSpinWait();
+				continue;
+			}
+			// bulk copy of the mapped region
+			region.clear();
+			if (dest instanceof ByteBuffer) {
+				ByteBuffer to = ((ByteBuffer) dest).duplicate();
+				to.position(index);
+				to.put(region);
+			} else {
+				ShortBuffer to = ((ShortBuffer) dest).duplicate();
+				to.position(index);
+				to.put(region.asShortBuffer());
+			}
+			// do not move the reads of the values behind the check
+			VarHandle.acquireFence();
+			if ((long) SEQUENCE.getVolatile(buffer, sequenceOffset) == sequence) {
+				return;
+			}
+		}
+	}
+
+	private void writeRegion(RegisterType type, int address, int quantity, Buffer src, int index) {
+		checkRange(type, address, quantity);
+		checkBuffer(type, src);
+		int sequenceOffset = SEQUENCE_OFFSET + type.ordinal() * 8;
+		ByteBuffer region = getRegion(type, address, quantity);
+		long sequence = acquire(sequenceOffset);
+		try {
+			// bulk copy to the mapped region
+			if (src instanceof ByteBuffer) {
+				ByteBuffer from = ((ByteBuffer) src).duplicate();
+				from.position(index);
+				from.limit(index + quantity);
+				region.put(from);
+			} else {
+				ShortBuffer from = ((ShortBuffer) src).duplicate();
+				from.position(index);
+				from.limit(index + quantity);
+				region.asShortBuffer().put(from);
+			}
+		} finally {
+			// publish the values
+			SEQUENCE.setRelease(buffer, sequenceOffset, sequence + 2);
+		}
+	}
+
+	private void checkBuffer(RegisterType type, Buffer buffer) {
+		if (isBits(type) != buffer instanceof ByteBuffer) {
+			throw new IllegalArgumentException("Invalid buffer for " + type + ": " + buffer.getClass().getName());
+		}
+	}
+
+	/**
+	 * @return the values of a range in little endian byte order
+	 */
+	private ByteBuffer getRegion(RegisterType type, int address, int quantity) {
+		int size = isBits(type) ? 1 : 2;
+		ByteBuffer region = buffer.duplicate();
+		region.position(offsets[type.ordinal()] + address * size);
+		region.limit(region.position() + quantity * size);
+		return region.slice().order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * Acquires the sequence of a register type by changing it to an odd value
+	 *
+	 * @return the previous even sequence
+	 */
+	private long acquire(int sequenceOffset) {
+		while (true) {
+			long sequence = (long) SEQUENCE.getVolatile(buffer, sequenceOffset);
+			if ((sequence & 1) == 0 && SEQUENCE.compareAndSet(buffer, sequenceOffset, sequence, sequence + 1)) {
+				return sequence;
+			}
+			Thread.onSpinWait();
+		}
+	}
+
+	/**
+	 * Writes all changes to the storage device
+	 */
+	public void force() {
+		buffer.force();
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+}
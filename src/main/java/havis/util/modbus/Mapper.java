@@ -1,35 +1,81 @@
 package havis.util.modbus;
 
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
 import java.nio.charset.Charset;
-import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import havis.util.modbus.UInt16Array;
-import havis.util.modbus.UInt8Array;
 import havis.util.modbus.slave.ModbusSlaveException;
 
 public class Mapper {
 
 	private static final Logger log = Logger.getLogger(Mapper.class.getName());
 	private Floater floater;
+	// last encoded register values of the STRING and FLOAT fields, the other
+	// types are cheaper to encode than to compare and copy
+	private Map<Field, EncodedValue> cache = new ConcurrentHashMap<>();
+
+	/**
+	 * A value with its register words
+	 */
+	private static final class EncodedValue {
+		final Object value;
+		final short[] words;
+		// encoding parameters of the field, which may be changed in place
+		final DataType dataType;
+		final Charset charset;
+		final StringPadding padding;
+		final boolean byteSwap;
+
+		EncodedValue(Field field, Object value, short[] words) {
+			this.value = value;
+			this.words = words;
+			dataType = field.getDataType();
+			charset = field.getCharset();
+			padding = field.getPadding();
+			byteSwap = field.isByteSwap();
+		}
+
+		boolean isEncodingOf(Field field, Object other) {
+			if (words.length != field.getAddressQuantity() || dataType != field.getDataType() || !Objects.equals(charset, field.getCharset())
+					|| padding != field.getPadding() || byteSwap != field.isByteSwap()) {
+				return false;
+			}
+			if (value instanceof float[] && other instanceof float[]) {
+				return Arrays.equals((float[]) value, (float[]) other);
+			} else if (value instanceof String[] && other instanceof String[]) {
+				return Arrays.equals((String[]) value, (String[]) other);
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Creates a mapper converting floats in Java with the high word first
+	 * like the native conversion on little endian platforms
+	 */
+	public Mapper() {
+	}
 
 	public Mapper(Floater floater) {
 		this.floater = floater;
 	}
 
-	private Object getBools(UInt8Array srcBits, int srcBitsSize, int address, int addressQuantity, String description) throws ModbusSlaveException {
-		if (address + addressQuantity > srcBitsSize) {
-			throw new ModbusSlaveException(description + ": Invalid address: " + srcBitsSize);
+	private Object getBools(ByteBuffer srcBits, int address, int addressQuantity, String description) throws ModbusSlaveException {
+		if (address + addressQuantity > srcBits.limit()) {
+			throw new ModbusSlaveException(description + ": Invalid address: " + srcBits.limit());
 		}
 		boolean[] ret = new boolean[addressQuantity];
 		// for each value
 		for (int i = 0; i < addressQuantity; i++) {
 			// get value from registers
 			int key = address + i;
-			short shortValue = srcBits.getitem(key);
+			short shortValue = srcBits.get(key);
 			if (log.isLoggable(Level.FINE)) {
 				log.log(Level.FINE, "Read" + description + " " + key + ": 0x" + String.format("%02X", shortValue));
 			}
@@ -38,25 +84,33 @@ public class Mapper {
 		return ret;
 	}
 
-	public Object get(UInt8Array destBits, int destBitsSize, Field field, String description) throws ModbusSlaveException {
+	public Object get(ByteBuffer destBits, Field field, String description) throws ModbusSlaveException {
+		return get(destBits, field.getAddress(), field, description);
+	}
+
+	/**
+	 * Gets the value of a field from the bits starting at an address instead
+	 * of the address of the field
+	 */
+	public Object get(ByteBuffer destBits, int address, Field field, String description) throws ModbusSlaveException {
 		switch (field.getDataType()) {
 		case BOOLEAN:
-			return getBools(destBits, destBitsSize, field.getAddress(), field.getAddressQuantity(), description);
+			return getBools(destBits, address, field.getAddressQuantity(), description);
 		default:
 			throw new ModbusSlaveException(
 					"Unknown data type for bits at address " + field.getAddress() + ": " + field.getDataType() + " (supported: BOOLEAN)");
 		}
 	}
 
-	private Object getBytes(UInt16Array srcRegisters, int srcRegistersSize, int address, int addressQuantity, String description) throws ModbusSlaveException {
-		if (address + addressQuantity > srcRegistersSize) {
-			throw new ModbusSlaveException(description + ": Invalid address: " + srcRegistersSize);
+	private Object getBytes(ShortBuffer srcRegisters, int address, int addressQuantity, String description) throws ModbusSlaveException {
+		if (address + addressQuantity > srcRegisters.limit()) {
+			throw new ModbusSlaveException(description + ": Invalid address: " + srcRegisters.limit());
 		}
 		byte[] ret = new byte[addressQuantity * 2];
 		for (int i = 0; i < addressQuantity; i++) {
 			// get value from registers
 			int key = address + i;
-			short shortValue = (short) srcRegisters.getitem(key);
+			short shortValue = srcRegisters.get(key);
 			if (log.isLoggable(Level.FINE)) {
 				log.log(Level.FINE, "Read " + description + " " + key + ": 0x" + String.format("%04X", shortValue));
 			}
@@ -66,16 +120,16 @@ public class Mapper {
 		return ret;
 	}
 
-	private Object getShorts(UInt16Array srcRegisters, int srcRegistersSize, int address, int addressQuantity, String description) throws ModbusSlaveException {
-		if (address + addressQuantity > srcRegistersSize) {
-			throw new ModbusSlaveException(description + ": Invalid address: " + srcRegistersSize);
+	private Object getShorts(ShortBuffer srcRegisters, int address, int addressQuantity, String description) throws ModbusSlaveException {
+		if (address + addressQuantity > srcRegisters.limit()) {
+			throw new ModbusSlaveException(description + ": Invalid address: " + srcRegisters.limit());
 		}
 		short[] ret = new short[addressQuantity];
 		// for each value
 		for (int i = 0; i < addressQuantity; i++) {
 			// get value from registers
 			int key = address + i;
-			short shortValue = (short) srcRegisters.getitem(key);
+			short shortValue = srcRegisters.get(key);
 			if (log.isLoggable(Level.FINE)) {
 				log.log(Level.FINE, "Read " + description + " " + key + ": 0x" + String.format("%04X", shortValue));
 			}
@@ -84,17 +138,17 @@ public class Mapper {
 		return ret;
 	}
 
-	private Object getUShorts(UInt16Array srcRegisters, int srcRegistersSize, int address, int addressQuantity, String description)
+	private Object getUShorts(ShortBuffer srcRegisters, int address, int addressQuantity, String description)
 			throws ModbusSlaveException {
-		if (address + addressQuantity > srcRegistersSize) {
-			throw new ModbusSlaveException(description + ": Invalid address: " + srcRegistersSize);
+		if (address + addressQuantity > srcRegisters.limit()) {
+			throw new ModbusSlaveException(description + ": Invalid address: " + srcRegisters.limit());
 		}
 		int[] ret = new int[addressQuantity];
 		// for each value
 		for (int i = 0; i < addressQuantity; i++) {
 			// get value from registers
 			int key = address + i;
-			int intValue = srcRegisters.getitem(key);
+			int intValue = srcRegisters.get(key) & 0xFFFF;
 			if (log.isLoggable(Level.FINE)) {
 				log.log(Level.FINE, "Read " + description + " " + key + ": " + intValue);
 			}
@@ -103,11 +157,21 @@ public class Mapper {
 		return ret;
 	}
 
-	private Object getFloats(UInt16Array srcRegisters, int srcRegistersSize, int address, int addressQuantity, String description) throws ModbusSlaveException {
-		if (address + addressQuantity > srcRegistersSize) {
-			throw new ModbusSlaveException(description + ": Invalid address: " + srcRegistersSize);
+	private Object getFloats(ShortBuffer srcRegisters, int address, int addressQuantity, String description) throws ModbusSlaveException {
+		if (address + addressQuantity > srcRegisters.limit()) {
+			throw new ModbusSlaveException(description + ": Invalid address: " + srcRegisters.limit());
 		}
 		float[] ret = new float[addressQuantity];
+		if (floater == null) {
+			for (int i = 0; i < addressQuantity / 2; i++) {
+				int key = address + i * 2;
+				ret[i] = Float.intBitsToFloat(srcRegisters.get(key) << 16 | srcRegisters.get(key + 1) & 0xFFFF);
+				if (log.isLoggable(Level.FINE)) {
+					log.log(Level.FINE, "Read " + description + " " + key + "-" + (key + 1) + " -> " + ret[i]);
+				}
+			}
+			return ret;
+		}
 		UInt16Array floatRegisters = new UInt16Array(2);
 		try {
 			// for each float value
@@ -115,7 +179,7 @@ public class Mapper {
 				// for each integer value
 				for (int j = 0; j < 2; j++) {
 					int key = address + i * 2 + j;
-					short shortValue = (short) srcRegisters.getitem(key);
+					short shortValue = srcRegisters.get(key);
 					if (log.isLoggable(Level.FINE)) {
 						log.log(Level.FINE, "Read " + description + " " + key + ": 0x" + String.format("%04X", shortValue));
 					}
@@ -134,79 +198,70 @@ public class Mapper {
 		return ret;
 	}
 
-	private Object getStrings(UInt16Array srcRegisters, int srcRegistersSize, int address, int addressQuantity, Charset encoding, String description)
+	private Object getStrings(ShortBuffer srcRegisters, int address, int addressQuantity, Field field, String description)
 			throws ModbusSlaveException {
-		if (address + addressQuantity > srcRegistersSize) {
-			throw new ModbusSlaveException(description + ": Invalid address: " + srcRegistersSize);
+		if (address + addressQuantity > srcRegisters.limit()) {
+			throw new ModbusSlaveException(description + ": Invalid address: " + srcRegisters.limit());
 		}
-
-		List<Byte> byteList = new ArrayList<>();
-		// for each value
-		for (int i = 0; i < addressQuantity; i++) {
-			// get value from registers
-			int key = address + i;
-			short shortValue = (short) srcRegisters.getitem(key);
-			if (log.isLoggable(Level.FINE)) {
-				log.log(Level.FINE, "Read " + description + " " + key + ": 0x" + String.format("%04X", shortValue));
-			}
-			byteList.add((byte) (shortValue >> 8));
-			byteList.add((byte) shortValue);
-		}
-		byte[] bytes = new byte[byteList.size()];
-		for (int i = 0; i < byteList.size(); i++) {
-			bytes[i] = byteList.get(i);
-		}
-		String stringValue = new String(bytes, StandardCharsets.UTF_8);
+		String stringValue = StringCodec.get().decode(srcRegisters, address, addressQuantity, field);
 		if (log.isLoggable(Level.FINE)) {
-			log.log(Level.FINE, "  -> " + stringValue);
+			log.log(Level.FINE, "Read " + description + " " + address + "-" + (address + addressQuantity - 1) + " -> " + stringValue);
 		}
 		return new String[] { stringValue };
 	}
 
-	public Object get(UInt16Array destRegisters, int destRegistersSize, Field field, String description) throws ModbusSlaveException {
+	public Object get(ShortBuffer destRegisters, Field field, String description) throws ModbusSlaveException {
+		return get(destRegisters, field.getAddress(), field, description);
+	}
+
+	/**
+	 * Gets the value of a field from the registers starting at an address
+	 * instead of the address of the field
+	 */
+	public Object get(ShortBuffer destRegisters, int address, Field field, String description) throws ModbusSlaveException {
 		switch (field.getDataType()) {
 		case BYTE:
-			return getBytes(destRegisters, destRegistersSize, field.getAddress(), field.getAddressQuantity(), description);
+			return getBytes(destRegisters, address, field.getAddressQuantity(), description);
 		case SHORT:
-			return getShorts(destRegisters, destRegistersSize, field.getAddress(), field.getAddressQuantity(), description);
+			return getShorts(destRegisters, address, field.getAddressQuantity(), description);
 		case USHORT:
-			return getUShorts(destRegisters, destRegistersSize, field.getAddress(), field.getAddressQuantity(), description);
+			return getUShorts(destRegisters, address, field.getAddressQuantity(), description);
 		case FLOAT:
-			return getFloats(destRegisters, destRegistersSize, field.getAddress(), field.getAddressQuantity(), description);
+			return getFloats(destRegisters, address, field.getAddressQuantity(), description);
 		case STRING:
-			return getStrings(destRegisters, destRegistersSize, field.getAddress(), field.getAddressQuantity(), StandardCharsets.UTF_8, description);
+			return getStrings(destRegisters, address, field.getAddressQuantity(), field, description);
 		default:
 			throw new ModbusSlaveException("Unknown data type for registers at address " + field.getAddress() + ": " + field.getDataType()
 					+ " (supported: BYTE, SHORT, USHORT, FLOAT, STRING)");
 		}
 	}
 
-	private void setBoolValues(UInt8Array destBits, int destBitsSize, int address, int addressQuantity, boolean[] values, String description)
+	private void setBoolValues(ByteBuffer destBits, int address, int addressQuantity, boolean[] values, String description)
 			throws ModbusSlaveException {
-		if (address + addressQuantity > destBitsSize) {
-			throw new ModbusSlaveException(description + ": Invalid address: " + destBitsSize);
+		if (address + addressQuantity > destBits.limit()) {
+			throw new ModbusSlaveException(description + ": Invalid address: " + destBits.limit());
 		}
 		// for each value
 		for (int i = 0; i < addressQuantity; i++) {
 			short shortValue = (values != null && i < values.length && values[i]) ? (short) 1 : (short) 0;
 			// set value to registers
 			int key = address + i;
-			destBits.setitem(key, shortValue);
+			destBits.put(key, (byte) shortValue);
 			if (log.isLoggable(Level.FINE)) {
 				log.log(Level.FINE, "Wrote " + description + " " + key + ": 0x" + String.format("%02X", shortValue));
 			}
 		}
 	}
 
-	public void set(UInt8Array destBits, int destBitsSize, Field field, Object value, String description) throws ModbusSlaveException {
+	public void set(ByteBuffer destBits, Field field, Object value, String description) throws ModbusSlaveException {
 		if (value == null) {
-			setBoolValues(destBits, destBitsSize, field.getAddress(), field.getAddressQuantity(),
+			setBoolValues(destBits, field.getAddress(), field.getAddressQuantity(),
 					(boolean[]) null /* value */, description);
 			return;
 		}
 		switch (field.getDataType()) {
 		case BOOLEAN:
-			setBoolValues(destBits, destBitsSize, field.getAddress(), field.getAddressQuantity(), (boolean[]) value, description);
+			setBoolValues(destBits, field.getAddress(), field.getAddressQuantity(), (boolean[]) value, description);
 			break;
 		default:
 			throw new ModbusSlaveException(
@@ -214,10 +269,10 @@ public class Mapper {
 		}
 	}
 
-	private void setBytes(UInt16Array destRegisters, int destRegistersSize, int address, int addressQuantity, byte[] values, String description)
+	private void setBytes(ShortBuffer destRegisters, int address, int addressQuantity, byte[] values, String description)
 			throws ModbusSlaveException {
-		if (address + addressQuantity > destRegistersSize) {
-			throw new ModbusSlaveException(description + ": Invalid address: " + destRegistersSize);
+		if (address + addressQuantity > destRegisters.limit()) {
+			throw new ModbusSlaveException(description + ": Invalid address: " + destRegisters.limit());
 		}
 		for (int i = 0; i < addressQuantity * 2; i += 2) {
 			byte b1 = (values != null && i < values.length) ? values[i] : 0;
@@ -225,17 +280,17 @@ public class Mapper {
 			int intValue = (b1 << 8 | b2 & 0x00FF) & 0xFFFF;
 			// set value to registers
 			int key = address + i / 2;
-			destRegisters.setitem(key, intValue);
+			destRegisters.put(key, (short) intValue);
 			if (log.isLoggable(Level.INFO)) {
 				log.log(Level.INFO, "Wrote " + description + " " + key + ": 0x" + String.format("%04X", intValue));
 			}
 		}
 	}
 
-	private void setShorts(UInt16Array destRegisters, int destRegistersSize, int address, int addressQuantity, short[] values, String description)
+	private void setShorts(ShortBuffer destRegisters, int address, int addressQuantity, short[] values, String description)
 			throws ModbusSlaveException {
-		if (address + addressQuantity > destRegistersSize) {
-			throw new ModbusSlaveException(description + ": Invalid address: " + destRegistersSize);
+		if (address + addressQuantity > destRegisters.limit()) {
+			throw new ModbusSlaveException(description + ": Invalid address: " + destRegisters.limit());
 		}
 		// for each value
 		for (int i = 0; i < addressQuantity; i++) {
@@ -243,34 +298,47 @@ public class Mapper {
 			int intValue = v & 0xFFFF;
 			// set value to registers
 			int key = address + i;
-			destRegisters.setitem(key, intValue);
+			destRegisters.put(key, (short) intValue);
 			if (log.isLoggable(Level.FINE)) {
 				log.log(Level.FINE, "Wrote " + description + " " + key + ": 0x" + String.format("%04X", intValue));
 			}
 		}
 	}
 
-	private void setUShorts(UInt16Array destRegisters, int destRegistersSize, int address, int addressQuantity, int[] values, String description)
+	private void setUShorts(ShortBuffer destRegisters, int address, int addressQuantity, int[] values, String description)
 			throws ModbusSlaveException {
-		if (address + addressQuantity > destRegistersSize) {
-			throw new ModbusSlaveException(description + ": Invalid address: " + destRegistersSize);
+		if (address + addressQuantity > destRegisters.limit()) {
+			throw new ModbusSlaveException(description + ": Invalid address: " + destRegisters.limit());
 		}
 		// for each value
 		for (int i = 0; i < addressQuantity; i++) {
 			int intValue = (values != null && i < values.length) ? values[i] : 0;
 			// set value to registers
 			int key = address + i;
-			destRegisters.setitem(key, intValue);
+			destRegisters.put(key, (short) intValue);
 			if (log.isLoggable(Level.FINE)) {
 				log.log(Level.FINE, "Wrote " + description + " " + key + ": " + intValue);
 			}
 		}
 	}
 
-	private void setFloats(UInt16Array destRegisters, int destRegistersSize, int address, int addressQuantity, float[] values, String description)
+	private void setFloats(ShortBuffer destRegisters, int address, int addressQuantity, float[] values, String description)
 			throws ModbusSlaveException {
-		if (address + addressQuantity > destRegistersSize) {
-			throw new ModbusSlaveException(description + ": Invalid address: " + destRegistersSize);
+		if (address + addressQuantity > destRegisters.limit()) {
+			throw new ModbusSlaveException(description + ": Invalid address: " + destRegisters.limit());
+		}
+		if (floater == null) {
+			for (int i = 0; i < addressQuantity / 2; i++) {
+				float floatValue = (values != null && i < values.length) ? values[i] : 0;
+				int bits = Float.floatToIntBits(floatValue);
+				int key = address + i * 2;
+				destRegisters.put(key, (short) (bits >> 16));
+				destRegisters.put(key + 1, (short) bits);
+				if (log.isLoggable(Level.FINE)) {
+					log.log(Level.FINE, "Wrote " + description + " " + key + "-" + (key + 1) + " -> " + floatValue);
+				}
+			}
+			return;
 		}
 		UInt16Array floatRegisters = new UInt16Array(2);
 		try {
@@ -284,7 +352,7 @@ public class Mapper {
 					int intValue = floatRegisters.getitem(j);
 					// set value to registers
 					int key = address + i * 2 + j;
-					destRegisters.setitem(key, intValue);
+					destRegisters.put(key, (short) intValue);
 					if (log.isLoggable(Level.FINE)) {
 						log.log(Level.FINE, "Wrote " + description + " " + key + ": 0x" + String.format("%04X", intValue));
 					}
@@ -298,66 +366,93 @@ public class Mapper {
 		}
 	}
 
-	private void setStrings(UInt16Array destRegisters, int destRegistersSize, int address, int addressQuantity, String[] values, Charset encoding,
+	private void setStrings(ShortBuffer destRegisters, int address, int addressQuantity, String[] values, Field field,
 			String description) throws ModbusSlaveException {
-		if (address + addressQuantity > destRegistersSize) {
-			throw new ModbusSlaveException(description + ": Invalid address: " + destRegistersSize);
-		}
-		// convert string array to byte array
-		byte[] bytes = null;
-		String stringValue = null;
-		if (values != null) {
-			StringBuilder strB = new StringBuilder();
-			for (String value : values) {
-				if (value != null) {
-					strB.append(value);
-				}
-			}
-			stringValue = strB.toString();
-			bytes = stringValue.getBytes(encoding);
-		}
-		// for each value
-		for (int i = 0; i < addressQuantity * 2; i += 2) {
-			byte b1 = (bytes != null && i < bytes.length) ? bytes[i] : 0;
-			byte b2 = (bytes != null && i + 1 < bytes.length) ? bytes[i + 1] : 0;
-			int intValue = (b1 << 8 | b2 & 0x00FF) & 0xFFFF;
-			// set value to registers
-			int key = address + i / 2;
-			destRegisters.setitem(key, intValue);
-			if (log.isLoggable(Level.INFO)) {
-				log.log(Level.INFO, "Wrote " + description + " " + key + ": 0x" + String.format("%04X", intValue));
-			}
+		if (address + addressQuantity > destRegisters.limit()) {
+			throw new ModbusSlaveException(description + ": Invalid address: " + destRegisters.limit());
 		}
+		StringCodec.get().encode(values, field, destRegisters, address, addressQuantity);
 		if (log.isLoggable(Level.FINE)) {
-			log.log(Level.FINE, "  -> " + stringValue);
+			log.log(Level.FINE, "Wrote " + description + " " + address + "-" + (address + addressQuantity - 1) + " -> "
+					+ Arrays.toString(values));
 		}
 	}
 
-	public void set(UInt16Array destRegisters, int destRegistersSize, Field field, Object value, String description) throws ModbusSlaveException {
+	public void set(ShortBuffer destRegisters, Field field, Object value, String description) throws ModbusSlaveException {
+		set(destRegisters, field.getAddress(), field, value, description);
+	}
+
+	/**
+	 * Sets the value of a field to the registers starting at an address
+	 * instead of the address of the field
+	 */
+	public void set(ShortBuffer destRegisters, int address, Field field, Object value, String description) throws ModbusSlaveException {
 		if (value == null) {
-			setBytes(destRegisters, destRegistersSize, field.getAddress(), field.getAddressQuantity(),
+			setBytes(destRegisters, address, field.getAddressQuantity(),
 					(byte[]) null /* value */, description);
 			return;
 		}
+		// copy the words of the last encoding if the value has not changed
+		EncodedValue encoded = isCached(field) ? cache.get(field) : null;
+		if (encoded != null && encoded.isEncodingOf(field, value)) {
+			if (address + encoded.words.length > destRegisters.limit()) {
+				throw new ModbusSlaveException(description + ": Invalid address: " + destRegisters.limit());
+			}
+			ShortBuffer dest = destRegisters.duplicate();
+			dest.position(address);
+			dest.put(encoded.words);
+			return;
+		}
 		switch (field.getDataType()) {
 		case BYTE:
-			setBytes(destRegisters, destRegistersSize, field.getAddress(), field.getAddressQuantity(), (byte[]) value, description);
+			setBytes(destRegisters, address, field.getAddressQuantity(), (byte[]) value, description);
 			break;
 		case SHORT:
-			setShorts(destRegisters, destRegistersSize, field.getAddress(), field.getAddressQuantity(), (short[]) value, description);
+			setShorts(destRegisters, address, field.getAddressQuantity(), (short[]) value, description);
 			break;
 		case USHORT:
-			setUShorts(destRegisters, destRegistersSize, field.getAddress(), field.getAddressQuantity(), (int[]) value, description);
+			setUShorts(destRegisters, address, field.getAddressQuantity(), (int[]) value, description);
 			break;
 		case FLOAT:
-			setFloats(destRegisters, destRegistersSize, field.getAddress(), field.getAddressQuantity(), (float[]) value, description);
+			setFloats(destRegisters, address, field.getAddressQuantity(), (float[]) value, description);
 			break;
 		case STRING:
-			setStrings(destRegisters, destRegistersSize, field.getAddress(), field.getAddressQuantity(), (String[]) value, StandardCharsets.UTF_8, description);
+			setStrings(destRegisters, address, field.getAddressQuantity(), (String[]) value, field, description);
 			break;
 		default:
 			throw new ModbusSlaveException("Unknown data type for registers at address " + field.getAddress() + ": " + field.getDataType()
 					+ " (supported: BYTE, SHORT, USHORT, FLOAT, STRING)");
 		}
+		if (isCached(field)) {
+			cache(destRegisters, address, field, value);
+		}
+	}
+
+	private boolean isCached(Field field) {
+		return field.getDataType() == DataType.STRING || field.getDataType() == DataType.FLOAT;
+	}
+
+	private void cache(ShortBuffer srcRegisters, int address, Field field, Object value) {
+		// the value is copied because a backend may reuse its arrays
+		Object copy;
+		if (value instanceof float[]) {
+			copy = ((float[]) value).clone();
+		} else if (value instanceof String[]) {
+			copy = ((String[]) value).clone();
+		} else {
+			return;
+		}
+		short[] words = new short[field.getAddressQuantity()];
+		ShortBuffer src = srcRegisters.duplicate();
+		src.position(address);
+		src.get(words);
+		cache.put(field, new EncodedValue(field, copy, words));
+	}
+
+	/**
+	 * Clears the encoded values, e.g. after the fields have been replaced
+	 */
+	public void clearCache() {
+		cache.clear();
 	}
 }
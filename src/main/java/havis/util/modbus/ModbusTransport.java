@@ -0,0 +1,24 @@
+package havis.util.modbus;
+
+/**
+ * Master requests with Java arrays: the number of values is the length of the
+ * array. The methods return the number of values or -1 on failure.
+ * Implemented by the native {@link ModbusBase} and by in-memory transports
+ * serving the requests without sockets.
+ */
+public interface ModbusTransport {
+
+	int setSlave(int slaveId);
+
+	int readBits(int address, boolean[] readValues);
+
+	int readInputBits(int address, boolean[] readValues);
+
+	int readRegisters(int address, short[] readValues);
+
+	int readInputRegisters(int address, short[] readValues);
+
+	int writeBits(int address, boolean[] writeValues);
+
+	int writeRegisters(int address, short[] writeValues);
+}
@@ -0,0 +1,44 @@
+package havis.util.modbus;
+
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+
+/**
+ * The tables of a request mapping: one byte per bit and the registers in
+ * native byte order. Implemented by the native {@link ModbusMapping} and by
+ * the pure Java {@link HeapMapping}. The bulk methods return the number of
+ * copied values or -1 if the range exceeds the table.
+ */
+public interface RegisterMapping {
+
+	int getNbBits();
+
+	int getNbInputBits();
+
+	int getNbRegisters();
+
+	int getNbInputRegisters();
+
+	int getBits(boolean input, int address, byte[] bulkValues);
+
+	int setBits(boolean input, int address, byte[] bulkValues);
+
+	int getRegisters(boolean input, int address, short[] bulkValues);
+
+	int setRegisters(boolean input, int address, short[] bulkValues);
+
+	/**
+	 * @return the bit table (coils or discrete inputs)
+	 */
+	ByteBuffer getBitsBuffer(boolean input);
+
+	/**
+	 * @return the register table (holding or input registers)
+	 */
+	ByteBuffer getRegistersBuffer(boolean input);
+
+	/**
+	 * @return a view of a register table in native byte order
+	 */
+	ShortBuffer getRegistersView(boolean input);
+}
@@ -0,0 +1,314 @@
+package havis.util.modbus;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Persistent image of the last known register values which survives a restart
+ * of the slave.
+ * <p>
+ * Changes are tracked per block of {@value #BLOCK_SIZE} registers. Each
+ * {@link #flush()} appends the changed blocks to a log file which is compacted
+ * to one record per block as soon as it has grown to {@link #getCompactionFactor()}
+ * times of its compacted size. The file starts with the magic 0x4D42534E
+ * ("MBSN") and the version 1 followed by records of {@value #RECORD_LENGTH}
+ * bytes (big endian):
+ *
+ * <pre>
+ * offset  size  content
+ *      0     1  register type (ordinal of RegisterType)
+ *      1     2  block index
+ *      3     8  mask of the registers with a known value
+ *     11   128  register values
+ *    139     4  CRC32 of the preceding bytes
+ * </pre>
+ *
+ * An incomplete or damaged record at the end of the file (e.g. after a power
+ * failure) is discarded while loading.
+ */
+public class RegisterSnapshot implements Closeable {
+
+	private static final Logger log = Logger.getLogger(RegisterSnapshot.class.getName());
+
+	public static final int MAGIC = 0x4D42534E;
+	public static final int VERSION = 1;
+	public static final int BLOCK_SIZE = 64;
+	public static final int RECORD_LENGTH = 1 + 2 + 8 + BLOCK_SIZE * 2 + 4;
+
+	private static final int HEADER_LENGTH = 8;
+	private static final int ADDRESS_COUNT = 0x10000;
+	private static final int BLOCK_COUNT = ADDRESS_COUNT / BLOCK_SIZE;
+
+	private final Path path;
+	// guards the file, the values are guarded by this, so requests do not
+	// wait for the file I/O of a flush
+	private final Object fileLock = new Object();
+	private FileChannel channel;
+	private int compactionFactor = 4;
+
+	// values, masks of known values and masks of changed blocks per register type
+	private final char[][] values = new char[RegisterType.values().length][];
+	private final long[][] known = new long[RegisterType.values().length][];
+	private final long[][] dirty = new long[RegisterType.values().length][];
+	private final ByteBuffer record = ByteBuffer.allocate(RECORD_LENGTH);
+	private final CRC32 crc = new CRC32();
+
+	/**
+	 * Opens the snapshot file and loads the stored values. A missing file is
+	 * created.
+	 */
+	public RegisterSnapshot(Path path) throws IOException {
+		this.path = path;
+		for (RegisterType type : RegisterType.values()) {
+			values[type.ordinal()] = new char[ADDRESS_COUNT];
+			known[type.ordinal()] = new long[BLOCK_COUNT];
+			dirty[type.ordinal()] = new long[BLOCK_COUNT / 64];
+		}
+		channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			load();
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	private void load() throws IOException {
+		if (channel.size() < HEADER_LENGTH) {
+			writeHeader(channel);
+			return;
+		}
+		ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+		channel.read(header, 0);
+		header.flip();
+		if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+			throw new IOException("Snapshot " + path + " has an invalid header");
+		}
+		long position = HEADER_LENGTH;
+		while (true) {
+			record.clear();
+			while (record.hasRemaining() && channel.read(record, position + record.position()) > 0) {
+			}
+			if (record.hasRemaining() || !readRecord()) {
+				break;
+			}
+			position += RECORD_LENGTH;
+		}
+		if (position < channel.size()) {
+			log.log(Level.WARNING, "Discarding incomplete data at the end of snapshot " + path + " (" + (channel.size() - position) + " bytes)");
+			channel.truncate(position);
+		}
+		// all loaded blocks are stored already
+		for (long[] d : dirty) {
+			Arrays.fill(d, 0);
+		}
+	}
+
+	private boolean readRecord() {
+		crc.reset();
+		crc.update(record.array(), 0, RECORD_LENGTH - 4);
+		record.flip();
+		if (record.getInt(RECORD_LENGTH - 4) != (int) crc.getValue()) {
+			return false;
+		}
+		int type = record.get();
+		int block = record.getShort() & 0xFFFF;
+		if (type < 0 || type >= values.length || block >= BLOCK_COUNT) {
+			return false;
+		}
+		known[type][block] = record.getLong();
+		for (int i = 0; i < BLOCK_SIZE; i++) {
+			values[type][block * BLOCK_SIZE + i] = record.getChar();
+		}
+		return true;
+	}
+
+	/**
+	 * Puts the record of a block to a buffer
+	 */
+	private void putRecord(ByteBuffer records, int type, int block) {
+		int start = records.position();
+		records.put((byte) type);
+		records.putShort((short) block);
+		records.putLong(known[type][block]);
+		for (int i = 0; i < BLOCK_SIZE; i++) {
+			records.putChar(values[type][block * BLOCK_SIZE + i]);
+		}
+		crc.reset();
+		crc.update(records.array(), start, RECORD_LENGTH - 4);
+		records.putInt((int) crc.getValue());
+	}
+
+	private void write(FileChannel channel, ByteBuffer records) throws IOException {
+		records.flip();
+		while (records.hasRemaining()) {
+			channel.write(records);
+		}
+	}
+
+	private void writeHeader(FileChannel channel) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+		header.putInt(MAGIC).putInt(VERSION).flip();
+		channel.truncate(0);
+		channel.position(0);
+		while (header.hasRemaining()) {
+			channel.write(header);
+		}
+	}
+
+	public int getCompactionFactor() {
+		return compactionFactor;
+	}
+
+	public void setCompactionFactor(int compactionFactor) {
+		this.compactionFactor = compactionFactor;
+	}
+
+	/**
+	 * @return true if the values of all registers of the range are known
+	 */
+	public synchronized boolean isKnown(RegisterType type, int address, int quantity) {
+		long[] k = known[type.ordinal()];
+		for (int i = address; i < address + quantity; i++) {
+			if ((k[i / BLOCK_SIZE] & (1L << (i % BLOCK_SIZE))) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Gets values. Bits are returned as 0 or 1, registers as unsigned 16 bit
+	 * values.
+	 */
+	public synchronized void get(RegisterType type, int address, int quantity, int[] dest) {
+		char[] v = values[type.ordinal()];
+		for (int i = 0; i < quantity; i++) {
+			dest[i] = v[address + i];
+		}
+	}
+
+	/**
+	 * Sets values. Only changed blocks are written with the next flush.
+	 */
+	public synchronized void set(RegisterType type, int address, int quantity, int[] src) {
+		char[] v = values[type.ordinal()];
+		long[] k = known[type.ordinal()];
+		long[] d = dirty[type.ordinal()];
+		for (int i = 0; i < quantity; i++) {
+			int a = address + i;
+			int block = a / BLOCK_SIZE;
+			long bit = 1L << (a % BLOCK_SIZE);
+			char value = (char) src[i];
+			if (v[a] != value || (k[block] & bit) == 0) {
+				v[a] = value;
+				k[block] |= bit;
+				d[block / 64] |= 1L << (block % 64);
+			}
+		}
+	}
+
+	/**
+	 * Appends the changed blocks to the snapshot file and compacts the file if
+	 * necessary. The values are only locked while the changed blocks are
+	 * copied, not during the file I/O.
+	 */
+	public void flush() throws IOException {
+		synchronized (fileLock) {
+			ByteBuffer records;
+			int knownBlocks = 0;
+			synchronized (this) {
+				int dirtyBlocks = 0;
+				for (int type = 0; type < values.length; type++) {
+					for (long d : dirty[type]) {
+						dirtyBlocks += Long.bitCount(d);
+					}
+				}
+				if (dirtyBlocks == 0) {
+					return;
+				}
+				records = ByteBuffer.allocate(dirtyBlocks * RECORD_LENGTH);
+				for (int type = 0; type < values.length; type++) {
+					for (int block = 0; block < BLOCK_COUNT; block++) {
+						if (known[type][block] != 0) {
+							knownBlocks++;
+						}
+						if ((dirty[type][block / 64] & (1L << (block % 64))) != 0) {
+							putRecord(records, type, block);
+						}
+					}
+					Arrays.fill(dirty[type], 0);
+				}
+			}
+			try {
+				channel.position(channel.size());
+				write(channel, records);
+			} catch (IOException e) {
+				// write the blocks again with the next flush
+				records.rewind();
+				synchronized (this) {
+					while (records.hasRemaining()) {
+						int type = records.get(records.position());
+						int block = records.getShort(records.position() + 1) & 0xFFFF;
+						dirty[type][block / 64] |= 1L << (block % 64);
+						records.position(records.position() + RECORD_LENGTH);
+					}
+				}
+				throw e;
+			}
+			if (channel.size() > HEADER_LENGTH + (long) compactionFactor * knownBlocks * RECORD_LENGTH) {
+				compact(knownBlocks);
+			} else {
+				channel.force(false /* metaData */);
+			}
+		}
+	}
+
+	private void compact(int knownBlocks) throws IOException {
+		ByteBuffer records = ByteBuffer.allocate(knownBlocks * RECORD_LENGTH);
+		synchronized (this) {
+			for (int type = 0; type < values.length; type++) {
+				for (int block = 0; block < BLOCK_COUNT && records.hasRemaining(); block++) {
+					if (known[type][block] != 0) {
+						putRecord(records, type, block);
+					}
+				}
+			}
+		}
+		// write all known blocks to a new file and replace the log with it
+		Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+		try (FileChannel c = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			writeHeader(c);
+			write(c, records);
+			c.force(true /* metaData */);
+		}
+		channel.close();
+		try {
+			Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			// the log is still valid if the move has failed
+			channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		synchronized (fileLock) {
+			try {
+				flush();
+			} finally {
+				channel.close();
+			}
+		}
+	}
+}
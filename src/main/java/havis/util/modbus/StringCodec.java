@@ -0,0 +1,152 @@
+package havis.util.modbus;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.ShortBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Converts STRING fields between register words and strings using buffers
+ * which are reused by the thread. Only the decoded string is allocated for a
+ * read, a write does not allocate.
+ */
+final class StringCodec {
+
+	private static final ThreadLocal<StringCodec> codecs = new ThreadLocal<StringCodec>() {
+		@Override
+		protected StringCodec initialValue() {
+			return new StringCodec();
+		}
+	};
+
+	private byte[] bytes = new byte[64];
+	// views of the arrays for the encoder
+	private ByteBuffer byteBuffer = ByteBuffer.wrap(bytes);
+	private CharBuffer chars = CharBuffer.allocate(64);
+	// encoder of the last used charset
+	private CharsetEncoder encoder;
+
+	private StringCodec() {
+	}
+
+	/**
+	 * @return the codec of the current thread
+	 */
+	static StringCodec get() {
+		return codecs.get();
+	}
+
+	/**
+	 * Decodes the registers of a field starting at an address
+	 */
+	String decode(ShortBuffer src, int address, int quantity, Field field) {
+		byte[] bytes = getBytes(quantity * 2);
+		boolean swap = field.isByteSwap();
+		for (int i = 0; i < quantity; i++) {
+			short word = src.get(address + i);
+			bytes[i * 2] = (byte) (swap ? word : word >> 8);
+			bytes[i * 2 + 1] = (byte) (swap ? word >> 8 : word);
+		}
+		int length = quantity * 2;
+		StringPadding padding = field.getPadding();
+		if (padding == StringPadding.NUL) {
+			while (length > 0 && bytes[length - 1] == 0) {
+				length--;
+			}
+		} else if (padding == StringPadding.SPACE) {
+			while (length > 0 && (bytes[length - 1] == 0 || bytes[length - 1] == ' ')) {
+				length--;
+			}
+		}
+		return new String(bytes, 0, length, getCharset(field));
+	}
+
+	/**
+	 * Encodes the concatenated values to the registers of a field starting at
+	 * an address. Values exceeding the registers are truncated, unmappable
+	 * characters are replaced.
+	 */
+	void encode(String[] values, Field field, ShortBuffer dest, int address, int quantity) {
+		int capacity = quantity * 2;
+		byte[] bytes = getBytes(capacity);
+		Charset charset = getCharset(field);
+		int length = 0;
+		if (values != null) {
+			for (int i = 0; i < values.length && length < capacity; i++) {
+				if (values[i] != null) {
+					length = encode(values[i], charset, bytes, length, capacity);
+				}
+			}
+		}
+		byte pad = field.getPadding() == StringPadding.SPACE ? (byte) ' ' : 0;
+		for (int i = length; i < capacity; i++) {
+			bytes[i] = pad;
+		}
+		boolean swap = field.isByteSwap();
+		for (int i = 0; i < quantity; i++) {
+			int high = bytes[i * 2] & 0xFF;
+			int low = bytes[i * 2 + 1] & 0xFF;
+			dest.put(address + i, (short) (swap ? low << 8 | high : high << 8 | low));
+		}
+	}
+
+	private int encode(String value, Charset charset, byte[] bytes, int offset, int capacity) {
+		int max;
+		if (StandardCharsets.US_ASCII.equals(charset)) {
+			max = 0x7F;
+		} else if (StandardCharsets.ISO_8859_1.equals(charset)) {
+			max = 0xFF;
+		} else {
+			if (encoder == null || !encoder.charset().equals(charset)) {
+				encoder = charset.newEncoder().onMalformedInput(CodingErrorAction.REPLACE)
+						.onUnmappableCharacter(CodingErrorAction.REPLACE);
+			}
+			// a character is encoded to one byte at least, so the characters
+			// exceeding the capacity are not passed (but a surrogate pair is
+			// not split)
+			int length = Math.min(value.length(), capacity - offset);
+			if (length < value.length() && Character.isHighSurrogate(value.charAt(length - 1))) {
+				length++;
+			}
+			CharBuffer in = getChars(length);
+			value.getChars(0, length, in.array(), 0);
+			in.limit(length);
+			ByteBuffer out = byteBuffer;
+			out.limit(capacity).position(offset);
+			encoder.reset();
+			// an overflow truncates the value at a character boundary
+			encoder.encode(in, out, true);
+			encoder.flush(out);
+			return out.position();
+		}
+		int length = Math.min(value.length(), capacity - offset);
+		for (int i = 0; i < length; i++) {
+			char c = value.charAt(i);
+			bytes[offset++] = (byte) (c > max ? '?' : c);
+		}
+		return offset;
+	}
+
+	private Charset getCharset(Field field) {
+		return field.getCharset() != null ? field.getCharset() : StandardCharsets.UTF_8;
+	}
+
+	private byte[] getBytes(int length) {
+		if (bytes.length < length) {
+			bytes = new byte[Math.max(length, bytes.length * 2)];
+			byteBuffer = ByteBuffer.wrap(bytes);
+		}
+		return bytes;
+	}
+
+	private CharBuffer getChars(int length) {
+		if (chars.capacity() < length) {
+			chars = CharBuffer.allocate(Math.max(length, chars.capacity() * 2));
+		}
+		chars.clear();
+		return chars;
+	}
+}
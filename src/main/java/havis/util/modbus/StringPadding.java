@@ -0,0 +1,19 @@
+package havis.util.modbus;
+
+/**
+ * Padding of the unused bytes of a STRING field
+ */
+public enum StringPadding {
+	/**
+	 * Pads with NUL bytes, the padding is returned with the string
+	 */
+	NONE, //
+	/**
+	 * Pads with NUL bytes, trailing NUL bytes are removed
+	 */
+	NUL, //
+	/**
+	 * Pads with spaces, trailing spaces and NUL bytes are removed
+	 */
+	SPACE
+}
@@ -0,0 +1,123 @@
+package havis.util.modbus.rtu;
+
+import java.io.IOException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Channel whose received bytes are collected in a ring buffer by the
+ * subclass. The oldest bytes are dropped if the buffer overflows. The bytes
+ * are stamped with their arrival time, so the framing does not depend on when
+ * the reading thread gets to them.
+ */
+public abstract class BufferedRtuChannel implements RtuChannel {
+
+	private final byte[] buffer;
+	private final long[] arrivalTimes;
+	private long arrivalTime;
+	private int head;
+	private int count;
+	private boolean closed;
+	private final Lock lock = new ReentrantLock();
+	private final Condition received = lock.newCondition();
+
+	protected BufferedRtuChannel(int capacity) {
+		buffer = new byte[capacity];
+		arrivalTimes = new long[capacity];
+	}
+
+	/**
+	 * Adds received bytes to the buffer
+	 */
+	protected void receive(byte[] data, int offset, int length) {
+		long now = System.nanoTime();
+		lock.lock();
+		try {
+			for (int i = offset; i < offset + length; i++) {
+				if (count == buffer.length) {
+					// drop the oldest byte
+					head = (head + 1) % buffer.length;
+					count--;
+				}
+				buffer[(head + count) % buffer.length] = data[i];
+				arrivalTimes[(head + count) % buffer.length] = now;
+				count++;
+			}
+			received.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int read(long timeout) throws IOException {
+		lock.lock();
+		try {
+			long remaining = timeout;
+			while (count == 0) {
+				if (closed) {
+					throw new IOException("Channel has been closed");
+				}
+				if (remaining <= 0) {
+					return -1;
+				}
+				try {
+					remaining = received.awaitNanos(remaining);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while waiting for data", e);
+				}
+			}
+			int b = buffer[head] & 0xFF;
+			arrivalTime = arrivalTimes[head];
+			head = (head + 1) % buffer.length;
+			count--;
+			return b;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public long getArrivalTime() {
+		lock.lock();
+		try {
+			return arrivalTime;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Discards all received bytes
+	 */
+	public void clear() {
+		lock.lock();
+		try {
+			head = count = 0;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	protected boolean isClosed() {
+		lock.lock();
+		try {
+			return closed;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		lock.lock();
+		try {
+			closed = true;
+			received.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+}
@@ -0,0 +1,34 @@
+package havis.util.modbus.rtu;
+
+/**
+ * CRC16 of Modbus RTU frames (polynomial 0xA001 reflected, initial value
+ * 0xFFFF) computed with a lookup table of 256 entries
+ */
+public final class Crc16 {
+
+	private static final int[] TABLE = new int[256];
+
+	static {
+		for (int i = 0; i < 256; i++) {
+			int crc = i;
+			for (int bit = 0; bit < 8; bit++) {
+				crc = (crc & 1) != 0 ? (crc >>> 1) ^ 0xA001 : crc >>> 1;
+			}
+			TABLE[i] = crc;
+		}
+	}
+
+	private Crc16() {
+	}
+
+	/**
+	 * @return the CRC of the bytes. It is transmitted low byte first.
+	 */
+	public static int compute(byte[] data, int offset, int length) {
+		int crc = 0xFFFF;
+		for (int i = offset; i < offset + length; i++) {
+			crc = (crc >>> 8) ^ TABLE[(crc ^ data[i]) & 0xFF];
+		}
+		return crc;
+	}
+}
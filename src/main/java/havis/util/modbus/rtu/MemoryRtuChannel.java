@@ -0,0 +1,35 @@
+package havis.util.modbus.rtu;
+
+import java.io.IOException;
+
+/**
+ * Channel connected to a peer channel in the same process, e.g. for tests and
+ * benchmarks without a serial line
+ */
+public class MemoryRtuChannel extends BufferedRtuChannel {
+
+	private MemoryRtuChannel peer;
+
+	private MemoryRtuChannel() {
+		super(4096);
+	}
+
+	/**
+	 * @return two connected channels (null modem)
+	 */
+	public static MemoryRtuChannel[] pair() {
+		MemoryRtuChannel a = new MemoryRtuChannel();
+		MemoryRtuChannel b = new MemoryRtuChannel();
+		a.peer = b;
+		b.peer = a;
+		return new MemoryRtuChannel[] { a, b };
+	}
+
+	@Override
+	public void write(byte[] data, int offset, int length) throws IOException {
+		if (isClosed()) {
+			throw new IOException("Channel has been closed");
+		}
+		peer.receive(data, offset, length);
+	}
+}
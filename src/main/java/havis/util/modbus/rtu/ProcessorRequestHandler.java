@@ -0,0 +1,82 @@
+package havis.util.modbus.rtu;
+
+import java.util.Date;
+
+import havis.util.modbus.HeapMapping;
+import havis.util.modbus.ModbusBase;
+import havis.util.modbus.RegisterType;
+import havis.util.modbus.slave.ModbusSlaveException;
+import havis.util.modbus.slave.ModbusSlaveProcessor;
+
+/**
+ * Serves the requests of a {@link RtuSlave} by a
+ * {@link ModbusSlaveProcessor}, e.g. a field processor or a
+ * {@link havis.util.modbus.slave.RtuModbusSlaveProcessor} forwarding to
+ * another line. The processor must have been connected before. The values are
+ * passed in a heap mapping covering the whole address space, so the requests
+ * must be handled by a single thread as done by the slave.
+ */
+public class ProcessorRequestHandler implements RtuRequestHandler {
+
+	private final ModbusSlaveProcessor processor;
+	private final HeapMapping mapping = new HeapMapping(0x10000, 0x10000, 0x10000, 0x10000);
+
+	public ProcessorRequestHandler(ModbusSlaveProcessor processor) {
+		this.processor = processor;
+	}
+
+	@Override
+	public void read(int unitId, RegisterType type, int address, int quantity, int[] values)
+			throws ModbusSlaveException {
+		switch (type) {
+		case COILS:
+		case DISCRETE_INPUTS: {
+			boolean input = type == RegisterType.DISCRETE_INPUTS;
+			processor.read(unitId, (short) (input ? ModbusBase.MODBUS_FC_READ_DISCRETE_INPUTS
+					: ModbusBase.MODBUS_FC_READ_COILS), address, quantity, mapping);
+			byte[] bits = new byte[quantity];
+			mapping.getBits(input, address, bits);
+			for (int i = 0; i < quantity; i++) {
+				values[i] = bits[i] != 0 ? 1 : 0;
+			}
+			break;
+		}
+		default: {
+			boolean input = type == RegisterType.INPUT_REGISTERS;
+			processor.read(unitId, (short) (input ? ModbusBase.MODBUS_FC_READ_INPUT_REGISTERS
+					: ModbusBase.MODBUS_FC_READ_HOLDING_REGISTERS), address, quantity, mapping);
+			short[] registers = new short[quantity];
+			mapping.getRegisters(input, address, registers);
+			for (int i = 0; i < quantity; i++) {
+				values[i] = registers[i] & 0xFFFF;
+			}
+		}
+		}
+	}
+
+	@Override
+	public void write(int unitId, RegisterType type, int address, int quantity, int[] values)
+			throws ModbusSlaveException {
+		// a single value is forwarded with the single write function as some
+		// devices do not support the multiple writes
+		if (type == RegisterType.COILS) {
+			byte[] bits = new byte[quantity];
+			for (int i = 0; i < quantity; i++) {
+				bits[i] = (byte) values[i];
+			}
+			mapping.setBits(false /* input */, address, bits);
+			processor.write(unitId, (short) (quantity == 1 ? ModbusBase.MODBUS_FC_WRITE_SINGLE_COIL
+					: ModbusBase.MODBUS_FC_WRITE_MULTIPLE_COILS), address, quantity, new Date(), mapping);
+		} else if (type == RegisterType.HOLDING_REGISTERS) {
+			short[] registers = new short[quantity];
+			for (int i = 0; i < quantity; i++) {
+				registers[i] = (short) values[i];
+			}
+			mapping.setRegisters(false /* input */, address, registers);
+			processor.write(unitId, (short) (quantity == 1 ? ModbusBase.MODBUS_FC_WRITE_SINGLE_REGISTER
+					: ModbusBase.MODBUS_FC_WRITE_MULTIPLE_REGISTERS), address, quantity, new Date(), mapping);
+		} else {
+			throw new ModbusSlaveException("ILLEGAL FUNCTION");
+		}
+	}
+}
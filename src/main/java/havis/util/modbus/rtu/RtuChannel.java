@@ -0,0 +1,30 @@
+package havis.util.modbus.rtu;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Byte channel of a serial line
+ */
+public interface RtuChannel extends Closeable {
+
+	/**
+	 * Waits for the next received byte.
+	 *
+	 * @param timeout
+	 *            the max. waiting time in nanoseconds
+	 * @return the byte (0-255) or -1 if no byte has been received within the
+	 *         timeout
+	 * @throws IOException
+	 *             if the channel has been closed
+	 */
+	int read(long timeout) throws IOException;
+
+	/**
+	 * @return the time ({@link System#nanoTime()}) at which the byte last
+	 *         returned by {@link #read(long)} has been received
+	 */
+	long getArrivalTime();
+
+	void write(byte[] data, int offset, int length) throws IOException;
+}
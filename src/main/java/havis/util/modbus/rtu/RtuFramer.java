@@ -0,0 +1,164 @@
+package havis.util.modbus.rtu;
+
+import java.io.IOException;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Frames Modbus RTU ADUs (unit id, PDU, CRC) on a serial line. A frame ends
+ * with a silent interval of 3.5 character times (t3.5). As the serial line
+ * specification proposes, fixed times of 750us (t1.5) and 1750us (t3.5) are
+ * used for baud rates above 19200.
+ * <p>
+ * The frames passed to and returned by this class do not contain the CRC.
+ */
+public class RtuFramer {
+
+	private static final Logger log = Logger.getLogger(RtuFramer.class.getName());
+
+	public static final int MAX_ADU_LENGTH = 256;
+
+	private final RtuChannel channel;
+	private long frameDelay;
+	private long charTimeout;
+	private long lastActivity;
+	private volatile long crcErrorCount;
+	// first byte of the next frame, read while waiting for the end of a frame
+	private int pending = -1;
+	// ADU being sent or received, frames are not allocated
+	private final byte[] buffer = new byte[MAX_ADU_LENGTH];
+
+	/**
+	 * @param baudrate
+	 *            the baud rate of the line for the timing of the frames
+	 */
+	public RtuFramer(RtuChannel channel, int baudrate) {
+		this.channel = channel;
+		// a character consists of 11 bits (start, 8 data, parity/stop, stop)
+		long charTime = 11 * 1000000000L / baudrate;
+		frameDelay = baudrate > 19200 ? 1750000 : charTime * 7 / 2;
+		lastActivity = System.nanoTime() - frameDelay;
+	}
+
+	/**
+	 * @return the silent interval delimiting frames (t3.5) in nanoseconds
+	 */
+	public long getFrameDelay() {
+		return frameDelay;
+	}
+
+	public void setFrameDelay(long frameDelay) {
+		this.frameDelay = frameDelay;
+	}
+
+	/**
+	 * @return the max. interval between two characters of a frame (t1.5) in
+	 *         nanoseconds or 0 if it is not checked. Frames violating it are
+	 *         discarded. It is not checked by default because the scheduling
+	 *         of a non real-time system may delay characters.
+	 */
+	public long getCharTimeout() {
+		return charTimeout;
+	}
+
+	public void setCharTimeout(long charTimeout) {
+		this.charTimeout = charTimeout;
+	}
+
+	/**
+	 * @return the number of frames discarded due to an invalid CRC
+	 */
+	public long getCrcErrorCount() {
+		return crcErrorCount;
+	}
+
+	/**
+	 * Sends a frame after the line has been silent for t3.5
+	 *
+	 * @param frame
+	 *            unit id and PDU without CRC
+	 */
+	public synchronized void send(byte[] frame, int length) throws IOException {
+		if (length + 2 > MAX_ADU_LENGTH) {
+			throw new IOException("Frame too long: " + length);
+		}
+		System.arraycopy(frame, 0, buffer, 0, length);
+		int crc = Crc16.compute(buffer, 0, length);
+		buffer[length] = (byte) crc;
+		buffer[length + 1] = (byte) (crc >> 8);
+		// wait for the silent interval after the last frame
+		long wait;
+		while ((wait = lastActivity + frameDelay - System.nanoTime()) > 0) {
+			LockSupport.parkNanos(wait);
+		}
+		channel.write(buffer, 0, length + 2);
+		lastActivity = System.nanoTime();
+	}
+
+	/**
+	 * Receives the next frame with a valid CRC. Frames with an invalid CRC are
+	 * discarded.
+	 *
+	 * @param frame
+	 *            the array receiving unit id and PDU without CRC, at least
+	 *            {@link #MAX_ADU_LENGTH} - 2 bytes
+	 * @param timeout
+	 *            the max. time in nanoseconds to wait for the start of a frame
+	 * @return the length of the frame or -1 if no frame has been received
+	 */
+	public synchronized int receive(byte[] frame, long timeout) throws IOException {
+		long deadline = System.nanoTime() + timeout;
+		while (true) {
+			int b = pending;
+			pending = -1;
+			if (b < 0) {
+				b = channel.read(deadline - System.nanoTime());
+				if (b < 0) {
+					return -1;
+				}
+			}
+			// frames are delimited by the arrival times of the bytes, not by
+			// the times they are read at
+			long arrival = channel.getArrivalTime();
+			int length = 0;
+			boolean isValid = true;
+			while (true) {
+				if (length < buffer.length) {
+					buffer[length++] = (byte) b;
+				} else {
+					// overflow
+					isValid = false;
+				}
+				b = channel.read(arrival + frameDelay - System.nanoTime());
+				if (b < 0) {
+					break;
+				}
+				long gap = channel.getArrivalTime() - arrival;
+				arrival += gap;
+				if (gap >= frameDelay) {
+					// start of the next frame
+					pending = b;
+					break;
+				}
+				if (charTimeout > 0 && gap > charTimeout) {
+					isValid = false;
+				}
+			}
+			lastActivity = arrival;
+			if (isValid && length >= 4) {
+				int crc = Crc16.compute(buffer, 0, length - 2);
+				if ((buffer[length - 2] & 0xFF) == (crc & 0xFF) && (buffer[length - 1] & 0xFF) == (crc >> 8)) {
+					System.arraycopy(buffer, 0, frame, 0, length - 2);
+					return length - 2;
+				}
+				crcErrorCount++;
+			}
+			if (log.isLoggable(Level.FINE))
+				log.fine("Discarding invalid frame of " + length + " bytes");
+			if (pending < 0 && System.nanoTime() >= deadline) {
+				return -1;
+			}
+		}
+	}
+}
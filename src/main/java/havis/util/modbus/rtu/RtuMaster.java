@@ -0,0 +1,184 @@
+package havis.util.modbus.rtu;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import havis.util.modbus.slave.ModbusSlaveException;
+
+/**
+ * Modbus RTU master (client) in Java. The number of values of a call is the
+ * length of the passed array. Exception responses of a slave are thrown as
+ * {@link ModbusSlaveException} with the name of the exception code, e.g.
+ * "ILLEGAL DATA ADDRESS".
+ */
+public class RtuMaster {
+
+	static final String[] EXCEPTIONS = { null, "ILLEGAL FUNCTION", "ILLEGAL DATA ADDRESS", "ILLEGAL DATA VALUE", "SLAVE OR SERVER FAILURE",
+			"ACKNOWLEDGE", "SLAVE OR SERVER BUSY", "NEGATIVE ACKNOWLEDGE", "MEMORY PARITY", "NOT DEFINED", "GATEWAY PATH",
+			"GATEWAY TARGET" };
+
+	private final RtuFramer framer;
+	private int responseTimeout = 500;
+	private int turnaroundDelay = 100;
+	// last response, guarded by this
+	private final byte[] response = new byte[RtuFramer.MAX_ADU_LENGTH];
+
+	public RtuMaster(RtuFramer framer) {
+		this.framer = framer;
+	}
+
+	public RtuFramer getFramer() {
+		return framer;
+	}
+
+	/**
+	 * @return the max. time in milliseconds to wait for a response
+	 */
+	public int getResponseTimeout() {
+		return responseTimeout;
+	}
+
+	public void setResponseTimeout(int responseTimeout) {
+		this.responseTimeout = responseTimeout;
+	}
+
+	/**
+	 * @return the time in milliseconds to wait after a broadcast, so the
+	 *         slaves can process it before the next request
+	 */
+	public int getTurnaroundDelay() {
+		return turnaroundDelay;
+	}
+
+	public void setTurnaroundDelay(int turnaroundDelay) {
+		this.turnaroundDelay = turnaroundDelay;
+	}
+
+	public int readBits(int unitId, int address, boolean[] dest) throws ModbusSlaveException {
+		return readBits(unitId, 1, address, dest);
+	}
+
+	public int readInputBits(int unitId, int address, boolean[] dest) throws ModbusSlaveException {
+		return readBits(unitId, 2, address, dest);
+	}
+
+	public int readRegisters(int unitId, int address, short[] dest) throws ModbusSlaveException {
+		return readRegisters(unitId, 3, address, dest);
+	}
+
+	public int readInputRegisters(int unitId, int address, short[] dest) throws ModbusSlaveException {
+		return readRegisters(unitId, 4, address, dest);
+	}
+
+	public void writeBit(int unitId, int address, boolean value) throws ModbusSlaveException {
+		request(unitId, new byte[] { (byte) unitId, 5, (byte) (address >> 8), (byte) address, (byte) (value ? 0xFF : 0), 0 });
+	}
+
+	public void writeRegister(int unitId, int address, int value) throws ModbusSlaveException {
+		request(unitId, new byte[] { (byte) unitId, 6, (byte) (address >> 8), (byte) address, (byte) (value >> 8), (byte) value });
+	}
+
+	public void writeBits(int unitId, int address, boolean[] src) throws ModbusSlaveException {
+		int byteCount = (src.length + 7) / 8;
+		byte[] frame = header(unitId, 15, address, src.length, 1 + byteCount);
+		frame[6] = (byte) byteCount;
+		for (int i = 0; i < src.length; i++) {
+			if (src[i]) {
+				frame[7 + i / 8] |= 1 << (i % 8);
+			}
+		}
+		request(unitId, frame);
+	}
+
+	public void writeRegisters(int unitId, int address, short[] src) throws ModbusSlaveException {
+		byte[] frame = header(unitId, 16, address, src.length, 1 + src.length * 2);
+		frame[6] = (byte) (src.length * 2);
+		for (int i = 0; i < src.length; i++) {
+			frame[7 + i * 2] = (byte) (src[i] >> 8);
+			frame[8 + i * 2] = (byte) src[i];
+		}
+		request(unitId, frame);
+	}
+
+	private synchronized int readBits(int unitId, int functionCode, int address, boolean[] dest) throws ModbusSlaveException {
+		int length = request(unitId, header(unitId, functionCode, address, dest.length, 0));
+		if (length < 0) {
+			return 0;
+		}
+		if (length < 3 + (dest.length + 7) / 8) {
+			throw new ModbusSlaveException("Invalid response length: " + length);
+		}
+		for (int i = 0; i < dest.length; i++) {
+			dest[i] = (response[3 + i / 8] & (1 << (i % 8))) != 0;
+		}
+		return dest.length;
+	}
+
+	private synchronized int readRegisters(int unitId, int functionCode, int address, short[] dest) throws ModbusSlaveException {
+		int length = request(unitId, header(unitId, functionCode, address, dest.length, 0));
+		if (length < 0) {
+			return 0;
+		}
+		if (length < 3 + dest.length * 2) {
+			throw new ModbusSlaveException("Invalid response length: " + length);
+		}
+		for (int i = 0; i < dest.length; i++) {
+			dest[i] = (short) ((response[3 + i * 2] << 8) | (response[4 + i * 2] & 0xFF));
+		}
+		return dest.length;
+	}
+
+	/**
+	 * @return a frame with unit id, function code, address and quantity
+	 *         followed by "dataLength" bytes
+	 */
+	private byte[] header(int unitId, int functionCode, int address, int quantity, int dataLength) {
+		byte[] frame = new byte[6 + dataLength];
+		frame[0] = (byte) unitId;
+		frame[1] = (byte) functionCode;
+		frame[2] = (byte) (address >> 8);
+		frame[3] = (byte) address;
+		frame[4] = (byte) (quantity >> 8);
+		frame[5] = (byte) quantity;
+		return frame;
+	}
+
+	/**
+	 * Sends a request and waits for the response of the unit.
+	 *
+	 * @return the length of the response or -1 for a broadcast (unit id 0)
+	 */
+	private synchronized int request(int unitId, byte[] frame) throws ModbusSlaveException {
+		try {
+			framer.send(frame, frame.length);
+			if (unitId == 0) {
+				Thread.sleep(turnaroundDelay);
+				return -1;
+			}
+			long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(responseTimeout);
+			while (true) {
+				int length = framer.receive(response, deadline - System.nanoTime());
+				if (length < 0) {
+					throw new ModbusSlaveException("No response of unit " + unitId + " within " + responseTimeout + "ms");
+				}
+				// ignore frames of other units
+				if ((response[0] & 0xFF) != unitId || length < 2) {
+					continue;
+				}
+				if ((response[1] & 0xFF) == (frame[1] | 0x80)) {
+					int code = length > 2 ? response[2] & 0xFF : 0;
+					throw new ModbusSlaveException(code > 0 && code < EXCEPTIONS.length ? EXCEPTIONS[code] : "Exception code " + code);
+				}
+				if (response[1] != frame[1]) {
+					throw new ModbusSlaveException("Invalid function code of response: " + response[1]);
+				}
+				return length;
+			}
+		} catch (IOException e) {
+			throw new ModbusSlaveException("Request to unit " + unitId + " failed", e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ModbusSlaveException("Request to unit " + unitId + " interrupted", e);
+		}
+	}
+}
@@ -0,0 +1,18 @@
+package havis.util.modbus.rtu;
+
+import havis.util.modbus.RegisterType;
+import havis.util.modbus.slave.ModbusSlaveException;
+
+/**
+ * Data access of a {@link RtuSlave}. Bits are passed as 0 or 1, registers as
+ * unsigned 16 bit values. A {@link ModbusSlaveException} with the message
+ * "ILLEGAL FUNCTION", "ILLEGAL DATA ADDRESS" or "ILLEGAL DATA VALUE" is
+ * answered with the corresponding exception code, all other exceptions with
+ * "SLAVE OR SERVER FAILURE".
+ */
+public interface RtuRequestHandler {
+
+	void read(int unitId, RegisterType type, int address, int quantity, int[] values) throws ModbusSlaveException;
+
+	void write(int unitId, RegisterType type, int address, int quantity, int[] values) throws ModbusSlaveException;
+}
@@ -0,0 +1,186 @@
+package havis.util.modbus.rtu;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import havis.util.modbus.RegisterType;
+import havis.util.modbus.slave.ModbusSlaveException;
+
+/**
+ * Modbus RTU slave (server) in Java. It answers the requests to its unit id
+ * with function codes 1-6, 15 and 16 and applies broadcast writes (unit id 0)
+ * without a response.
+ */
+public class RtuSlave implements Runnable {
+
+	private static final Logger log = Logger.getLogger(RtuSlave.class.getName());
+
+	private static final long POLL_INTERVAL = TimeUnit.MILLISECONDS.toNanos(100);
+
+	private final RtuFramer framer;
+	private final int unitId;
+	private final RtuRequestHandler handler;
+	private volatile boolean closed;
+	private final byte[] request = new byte[RtuFramer.MAX_ADU_LENGTH];
+
+	public RtuSlave(RtuFramer framer, int unitId, RtuRequestHandler handler) {
+		this.framer = framer;
+		this.unitId = unitId;
+		this.handler = handler;
+	}
+
+	public RtuFramer getFramer() {
+		return framer;
+	}
+
+	/**
+	 * Serves requests until {@link #close()} is called or the channel fails
+	 */
+	@Override
+	public void run() {
+		try {
+			while (!closed) {
+				int length = framer.receive(request, POLL_INTERVAL);
+				if (length >= 0) {
+					process(request, length);
+				}
+			}
+		} catch (IOException e) {
+			if (!closed) {
+				log.log(Level.SEVERE, "Serving the serial line failed", e);
+			}
+		}
+	}
+
+	public void close() {
+		closed = true;
+	}
+
+	private void process(byte[] request, int length) throws IOException {
+		int unit = request[0] & 0xFF;
+		if (unit != unitId && unit != 0) {
+			return;
+		}
+		byte[] response;
+		try {
+			response = handle(unit, request, length);
+		} catch (ModbusSlaveException e) {
+			if (log.isLoggable(Level.FINE))
+				log.log(Level.FINE, "Request of function " + (request[1] & 0xFF) + " failed", e);
+			response = new byte[] { request[0], (byte) (request[1] | 0x80), (byte) getExceptionCode(e) };
+		}
+		// broadcasts are not answered
+		if (unit != 0) {
+			framer.send(response, response.length);
+		}
+	}
+
+	private byte[] handle(int unit, byte[] request, int length) throws ModbusSlaveException {
+		if (length < 6) {
+			throw new ModbusSlaveException(length < 2 ? "ILLEGAL FUNCTION" : "ILLEGAL DATA VALUE");
+		}
+		int functionCode = request[1] & 0xFF;
+		int address = getUInt16(request, 2);
+		int value = getUInt16(request, 4);
+		switch (functionCode) {
+		case 1:
+		case 2: {
+			checkRange(address, value, 2000);
+			int[] values = new int[value];
+			handler.read(unit, functionCode == 1 ? RegisterType.COILS : RegisterType.DISCRETE_INPUTS, address, value, values);
+			byte[] response = new byte[3 + (value + 7) / 8];
+			response[2] = (byte) (response.length - 3);
+			for (int i = 0; i < value; i++) {
+				if (values[i] != 0) {
+					response[3 + i / 8] |= 1 << (i % 8);
+				}
+			}
+			return withHeader(request, response);
+		}
+		case 3:
+		case 4: {
+			checkRange(address, value, 125);
+			int[] values = new int[value];
+			handler.read(unit, functionCode == 3 ? RegisterType.HOLDING_REGISTERS : RegisterType.INPUT_REGISTERS, address, value, values);
+			byte[] response = new byte[3 + value * 2];
+			response[2] = (byte) (value * 2);
+			for (int i = 0; i < value; i++) {
+				response[3 + i * 2] = (byte) (values[i] >> 8);
+				response[4 + i * 2] = (byte) values[i];
+			}
+			return withHeader(request, response);
+		}
+		case 5:
+			if (value != 0xFF00 && value != 0) {
+				throw new ModbusSlaveException("ILLEGAL DATA VALUE");
+			}
+			handler.write(unit, RegisterType.COILS, address, 1, new int[] { value == 0 ? 0 : 1 });
+			return copy(request, 6);
+		case 6:
+			handler.write(unit, RegisterType.HOLDING_REGISTERS, address, 1, new int[] { value });
+			return copy(request, 6);
+		case 15: {
+			checkRange(address, value, 1968);
+			if (length < 7 + (value + 7) / 8) {
+				throw new ModbusSlaveException("ILLEGAL DATA VALUE");
+			}
+			int[] values = new int[value];
+			for (int i = 0; i < value; i++) {
+				values[i] = (request[7 + i / 8] >> (i % 8)) & 1;
+			}
+			handler.write(unit, RegisterType.COILS, address, value, values);
+			return copy(request, 6);
+		}
+		case 16: {
+			checkRange(address, value, 123);
+			if (length < 7 + value * 2) {
+				throw new ModbusSlaveException("ILLEGAL DATA VALUE");
+			}
+			int[] values = new int[value];
+			for (int i = 0; i < value; i++) {
+				values[i] = getUInt16(request, 7 + i * 2);
+			}
+			handler.write(unit, RegisterType.HOLDING_REGISTERS, address, value, values);
+			return copy(request, 6);
+		}
+		default:
+			throw new ModbusSlaveException("ILLEGAL FUNCTION");
+		}
+	}
+
+	private void checkRange(int address, int quantity, int maxQuantity) throws ModbusSlaveException {
+		if (quantity < 1 || quantity > maxQuantity) {
+			throw new ModbusSlaveException("ILLEGAL DATA VALUE");
+		}
+		if (address + quantity > 0x10000) {
+			throw new ModbusSlaveException("ILLEGAL DATA ADDRESS");
+		}
+	}
+
+	private int getExceptionCode(ModbusSlaveException e) {
+		for (int code = 1; code < RtuMaster.EXCEPTIONS.length; code++) {
+			if (RtuMaster.EXCEPTIONS[code].equals(e.getMessage())) {
+				return code;
+			}
+		}
+		return 4; // SLAVE OR SERVER FAILURE
+	}
+
+	private int getUInt16(byte[] data, int offset) {
+		return ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+	}
+
+	private byte[] withHeader(byte[] request, byte[] response) {
+		response[0] = request[0];
+		response[1] = request[1];
+		return response;
+	}
+
+	private byte[] copy(byte[] request, int length) {
+		byte[] response = new byte[length];
+		System.arraycopy(request, 0, response, 0, length);
+		return response;
+	}
+}
@@ -0,0 +1,80 @@
+package havis.util.modbus.rtu;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Channel on a stream pair, e.g. of a serial device or of one side of a pty
+ * pair. A serial device must have been configured before (baud rate, raw
+ * mode), e.g. with "stty -F /dev/ttyS1 19200 raw -echo".
+ * <p>
+ * The input stream is read by a thread of its own, so the framing only sees
+ * the gaps between the chunks delivered by the operating system.
+ */
+public class StreamRtuChannel extends BufferedRtuChannel {
+
+	private static final Logger log = Logger.getLogger(StreamRtuChannel.class.getName());
+
+	private final InputStream in;
+	private final OutputStream out;
+	private final Thread reader;
+
+	public StreamRtuChannel(InputStream in, OutputStream out) {
+		super(4096);
+		this.in = in;
+		this.out = out;
+		reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				byte[] data = new byte[256];
+				try {
+					int length;
+					while ((length = StreamRtuChannel.this.in.read(data)) >= 0) {
+						receive(data, 0, length);
+					}
+				} catch (IOException e) {
+					if (!isClosed()) {
+						log.log(Level.SEVERE, "Reading from serial line failed", e);
+					}
+				}
+			}
+		}, "rtu-reader");
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	/**
+	 * Opens a device, e.g. "/dev/ttyS1" or "/dev/pts/3"
+	 */
+	public static StreamRtuChannel open(String device) throws IOException {
+		FileInputStream in = new FileInputStream(device);
+		try {
+			return new StreamRtuChannel(in, new FileOutputStream(device));
+		} catch (IOException | RuntimeException e) {
+			in.close();
+			throw e;
+		}
+	}
+
+	@Override
+	public void write(byte[] data, int offset, int length) throws IOException {
+		out.write(data, offset, length);
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		super.close();
+		try {
+			out.close();
+		} finally {
+			// aborts the blocking read of the reader thread
+			in.close();
+		}
+	}
+}
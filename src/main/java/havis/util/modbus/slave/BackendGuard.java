@@ -0,0 +1,109 @@
+package havis.util.modbus.slave;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Runs backend calls in separate threads so that the caller can give up
+ * waiting for them, and sheds a backend which keeps overrunning its
+ * deadlines (circuit breaker).
+ * <p>
+ * After {@link #getThreshold()} consecutive overruns the breaker opens and no
+ * calls are admitted for the open time. Afterwards a single call is admitted
+ * as probe: the breaker closes if the probe succeeds and opens again if it
+ * overruns.
+ */
+class BackendGuard {
+
+	private static final Logger log = Logger.getLogger(BackendGuard.class.getName());
+
+	private final ExecutorService executor;
+	private final int threshold;
+	private final long openTime;
+
+	private int overrunCount;
+	// time in ns until the breaker is open or 0 if it is closed
+	private long openUntil;
+	private boolean isProbing;
+
+	/**
+	 * @param concurrent
+	 *            true if the backend may be called by several threads at once
+	 * @param maxThreads
+	 *            the max. number of concurrent calls, further calls are
+	 *            rejected (e.g. while hung calls occupy the threads)
+	 */
+	BackendGuard(boolean concurrent, int maxThreads, int threshold, long openTime) {
+		executor = concurrent
+				? new ThreadPoolExecutor(0, maxThreads, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>())
+				: Executors.newSingleThreadExecutor();
+		this.threshold = threshold;
+		this.openTime = openTime;
+	}
+
+	int getThreshold() {
+		return threshold;
+	}
+
+	/**
+	 * @return true if the backend may be called
+	 */
+	synchronized boolean isAdmitted() {
+		if (openUntil == 0) {
+			return true;
+		}
+		if (System.nanoTime() - openUntil < 0 || isProbing) {
+			return false;
+		}
+		isProbing = true;
+		return true;
+	}
+
+	synchronized void succeeded() {
+		if (openUntil != 0) {
+			log.info("Backend has recovered");
+		}
+		overrunCount = 0;
+		openUntil = 0;
+		isProbing = false;
+	}
+
+	synchronized void overrun() {
+		isProbing = false;
+		overrunCount++;
+		if (threshold > 0 && overrunCount >= threshold) {
+			if (openUntil == 0) {
+				log.warning("Shedding backend after " + overrunCount + " overrun deadlines");
+			}
+			openUntil = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(openTime);
+			if (openUntil == 0) {
+				openUntil = 1;
+			}
+		}
+	}
+
+	/**
+	 * @throws RejectedExecutionException
+	 *             if all threads are busy
+	 */
+	Future<?> submit(Runnable call) {
+		return executor.submit(call);
+	}
+
+	/**
+	 * Interrupts the running calls and waits for them until a timeout in ms.
+	 * Calls which ignore the interruption are abandoned.
+	 */
+	void shutdown(long timeout) throws InterruptedException {
+		executor.shutdownNow();
+		if (!executor.awaitTermination(timeout, TimeUnit.MILLISECONDS)) {
+			log.warning("Abandoning backend calls which have not finished within " + timeout + "ms");
+		}
+	}
+}
@@ -0,0 +1,343 @@
+package havis.util.modbus.slave;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Replays the requests of a pcap capture (e.g. written by {@link CaptureTap}
+ * or tcpdump) against a Modbus TCP slave and measures the latency and the
+ * throughput. The TCP payload sent to the server port of the capture is sent
+ * unchanged with one connection per captured client connection, either with
+ * the original timing or accelerated by a factor. Retransmitted segments are
+ * not detected.
+ * <p>
+ * Usage: <code>CaptureReplay file serverPort host port [speed]</code>, a speed
+ * of 0 sends the requests as fast as possible.
+ * </p>
+ */
+public class CaptureReplay {
+
+	private static final Logger log = Logger.getLogger(CaptureReplay.class.getName());
+
+	private static final int LINKTYPE_NULL = 0;
+	private static final int LINKTYPE_ETHERNET = 1;
+	private static final int LINKTYPE_LINUX_SLL = 113;
+
+	/**
+	 * TCP payload of a client connection
+	 */
+	private static final class Segment {
+		// capture time in us
+		final long time;
+		final int connection;
+		final byte[] payload;
+		// transaction ids of the requests completed by the segment
+		final int[] transactionIds;
+
+		Segment(long time, int connection, byte[] payload, int[] transactionIds) {
+			this.time = time;
+			this.connection = connection;
+			this.payload = payload;
+			this.transactionIds = transactionIds;
+		}
+	}
+
+	/**
+	 * Splits the stream of a connection into ADUs
+	 */
+	private static final class Framer {
+		private byte[] pending = new byte[0];
+
+		int[] add(byte[] payload) {
+			byte[] data = Arrays.copyOf(pending, pending.length + payload.length);
+			System.arraycopy(payload, 0, data, pending.length, payload.length);
+			int[] transactionIds = new int[0];
+			int pos = 0;
+			// MBAP header: transaction id, protocol id, length of unit id and PDU
+			while (data.length - pos >= 6 && data.length - pos >= 6 + CaptureTap.getUInt16(data, pos + 4)) {
+				transactionIds = Arrays.copyOf(transactionIds, transactionIds.length + 1);
+				transactionIds[transactionIds.length - 1] = CaptureTap.getUInt16(data, pos);
+				pos += 6 + CaptureTap.getUInt16(data, pos + 4);
+			}
+			pending = Arrays.copyOfRange(data, pos, data.length);
+			return transactionIds;
+		}
+	}
+
+	private final List<Segment> segments = new ArrayList<>();
+	private int connectionCount;
+	private int requestCount;
+	private int responseTimeout = 5000;
+
+	/**
+	 * @param file
+	 *            the pcap file
+	 * @param serverPort
+	 *            the port of the slave in the capture
+	 */
+	public CaptureReplay(File file, int serverPort) throws IOException {
+		try (InputStream in = new FileInputStream(file)) {
+			read(in, serverPort);
+		}
+	}
+
+	/**
+	 * @param in
+	 *            the stream of the pcap file
+	 * @param serverPort
+	 *            the port of the slave in the capture
+	 */
+	public CaptureReplay(InputStream in, int serverPort) throws IOException {
+		read(in, serverPort);
+	}
+
+	/**
+	 * @return the number of client connections
+	 */
+	public int getConnectionCount() {
+		return connectionCount;
+	}
+
+	/**
+	 * @return the number of complete requests
+	 */
+	public int getRequestCount() {
+		return requestCount;
+	}
+
+	/**
+	 * @return the time in ms to wait for the outstanding responses after the
+	 *         last request has been sent (default: 5000)
+	 */
+	public int getResponseTimeout() {
+		return responseTimeout;
+	}
+
+	public void setResponseTimeout(int responseTimeout) {
+		this.responseTimeout = responseTimeout;
+	}
+
+	private void read(InputStream stream, int serverPort) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(stream));
+		int magic = in.readInt();
+		boolean swapped;
+		boolean nanos;
+		if (magic == 0xA1B2C3D4 || magic == 0xA1B23C4D) {
+			swapped = false;
+			nanos = magic == 0xA1B23C4D;
+		} else if (magic == 0xD4C3B2A1 || magic == 0x4D3CB2A1) {
+			swapped = true;
+			nanos = magic == 0x4D3CB2A1;
+		} else {
+			throw new IOException("No pcap file (pcapng is not supported)");
+		}
+		in.skipBytes(16);
+		int linkType = getInt(in, swapped);
+		Map<String, Integer> connections = new HashMap<>();
+		List<Framer> framers = new ArrayList<>();
+		while (true) {
+			int seconds;
+			try {
+				seconds = getInt(in, swapped);
+			} catch (EOFException e) {
+				break;
+			}
+			int fraction = getInt(in, swapped);
+			int length = getInt(in, swapped);
+			getInt(in, swapped);
+			byte[] packet = new byte[length];
+			in.readFully(packet);
+			long time = (seconds & 0xFFFFFFFFL) * 1000000 + (nanos ? fraction / 1000 : fraction);
+
+			int ip;
+			if (linkType == CaptureTap.LINKTYPE_RAW) {
+				ip = 0;
+			} else if (linkType == LINKTYPE_NULL) {
+				ip = 4;
+			} else if (linkType == LINKTYPE_ETHERNET) {
+				// skip a VLAN tag
+				ip = length >= 14 && CaptureTap.getUInt16(packet, 12) == 0x8100 ? 18 : 14;
+			} else if (linkType == LINKTYPE_LINUX_SLL) {
+				ip = 16;
+			} else {
+				throw new IOException("Unsupported link type " + linkType);
+			}
+			if (length < ip + 20) {
+				continue;
+			}
+			int tcp;
+			int end;
+			String source;
+			if ((packet[ip] >> 4) == 4 && packet[ip + 9] == 6) {
+				tcp = ip + (packet[ip] & 0x0F) * 4;
+				end = Math.min(length, ip + CaptureTap.getUInt16(packet, ip + 2));
+				source = Arrays.toString(Arrays.copyOfRange(packet, ip + 12, ip + 16));
+			} else if ((packet[ip] >> 4) == 6 && length >= ip + 40 && packet[ip + 6] == 6) {
+				tcp = ip + 40;
+				end = Math.min(length, tcp + CaptureTap.getUInt16(packet, ip + 4));
+				source = Arrays.toString(Arrays.copyOfRange(packet, ip + 8, ip + 24));
+			} else {
+				continue;
+			}
+			if (end < tcp + 20 || CaptureTap.getUInt16(packet, tcp + 2) != serverPort) {
+				continue;
+			}
+			int payload = tcp + ((packet[tcp + 12] >> 4) & 0x0F) * 4;
+			if (payload >= end) {
+				continue;
+			}
+			String key = source + ":" + CaptureTap.getUInt16(packet, tcp);
+			Integer connection = connections.get(key);
+			if (connection == null) {
+				connection = connections.size();
+				connections.put(key, connection);
+				framers.add(new Framer());
+			}
+			byte[] data = Arrays.copyOfRange(packet, payload, end);
+			int[] transactionIds = framers.get(connection).add(data);
+			requestCount += transactionIds.length;
+			segments.add(new Segment(time, connection, data, transactionIds));
+		}
+		connectionCount = connections.size();
+	}
+
+	private int getInt(DataInputStream in, boolean swapped) throws IOException {
+		int value = in.readInt();
+		return swapped ? Integer.reverseBytes(value) : value;
+	}
+
+	/**
+	 * Replays the requests and waits for the responses
+	 *
+	 * @param speed
+	 *            the factor of acceleration (1 for the original timing) or 0
+	 *            for sending as fast as possible
+	 */
+	public ReplayResult replay(String host, int port, double speed) throws IOException, InterruptedException {
+		final Socket[] sockets = new Socket[connectionCount];
+		// send times of the outstanding requests by transaction id
+		final List<Map<Integer, Long>> sendTimes = new ArrayList<>();
+		final long[] latencies = new long[requestCount];
+		// response count, exception count, time of the last response
+		final long[] counts = new long[3];
+		List<Thread> receivers = new ArrayList<>();
+		try {
+			for (int i = 0; i < connectionCount; i++) {
+				sockets[i] = new Socket(host, port);
+				sockets[i].setTcpNoDelay(true);
+				sendTimes.add(new ConcurrentHashMap<Integer, Long>());
+			}
+			for (int i = 0; i < connectionCount; i++) {
+				final Socket socket = sockets[i];
+				final Map<Integer, Long> connectionSendTimes = sendTimes.get(i);
+				Thread receiver = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						receive(socket, connectionSendTimes, latencies, counts);
+					}
+				}, "CaptureReplay-" + i);
+				receiver.start();
+				receivers.add(receiver);
+			}
+
+			long start = System.nanoTime();
+			long firstTime = segments.isEmpty() ? 0 : segments.get(0).time;
+			for (Segment segment : segments) {
+				if (speed > 0) {
+					long wait = start + (long) ((segment.time - firstTime) * 1000 / speed) - System.nanoTime();
+					if (wait > 0) {
+						TimeUnit.NANOSECONDS.sleep(wait);
+					}
+				}
+				long now = System.nanoTime();
+				Map<Integer, Long> connectionSendTimes = sendTimes.get(segment.connection);
+				for (int transactionId : segment.transactionIds) {
+					connectionSendTimes.put(transactionId, now);
+				}
+				OutputStream out = sockets[segment.connection].getOutputStream();
+				out.write(segment.payload);
+			}
+
+			// wait for the outstanding responses
+			long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(responseTimeout);
+			synchronized (counts) {
+				long wait;
+				while (counts[0] < requestCount && (wait = deadline - System.nanoTime()) > 0) {
+					TimeUnit.NANOSECONDS.timedWait(counts, wait);
+				}
+				long end = counts[0] > 0 ? counts[2] : System.nanoTime();
+				return new ReplayResult(requestCount, (int) counts[0], (int) counts[1], end - start,
+						Arrays.copyOf(latencies, (int) Math.min(counts[0], latencies.length)));
+			}
+		} finally {
+			for (Socket socket : sockets) {
+				if (socket != null) {
+					socket.close();
+				}
+			}
+			for (Thread receiver : receivers) {
+				receiver.join();
+			}
+		}
+	}
+
+	private void receive(Socket socket, Map<Integer, Long> sendTimes, long[] latencies, long[] counts) {
+		byte[] adu = new byte[260];
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			while (true) {
+				in.readFully(adu, 0, 7);
+				int length = CaptureTap.getUInt16(adu, 4);
+				if (length < 2 || length > adu.length - 6) {
+					throw new IOException("Invalid response length " + length);
+				}
+				in.readFully(adu, 7, length - 1);
+				long now = System.nanoTime();
+				Long sendTime = sendTimes.remove(CaptureTap.getUInt16(adu, 0));
+				synchronized (counts) {
+					// responses without a request are not counted
+					if (sendTime != null && counts[0] < latencies.length) {
+						latencies[(int) counts[0]++] = now - sendTime;
+						if ((adu[7] & 0x80) != 0) {
+							counts[1]++;
+						}
+						counts[2] = now;
+						counts.notifyAll();
+					}
+				}
+			}
+		} catch (IOException e) {
+			// closed after the replay
+			if (!socket.isClosed()) {
+				log.log(Level.SEVERE, "Failed to receive response", e);
+			}
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 4) {
+			System.err.println("Usage: CaptureReplay file serverPort host port [speed]");
+			System.exit(1);
+		}
+		CaptureReplay replay = new CaptureReplay(new File(args[0]), Integer.parseInt(args[1]));
+		System.out.println("Replaying " + replay.getRequestCount() + " requests of " + replay.getConnectionCount() + " connections");
+		ReplayResult result = replay.replay(args[2], Integer.parseInt(args[3]), args.length > 4 ? Double.parseDouble(args[4]) : 1);
+		System.out.println(result);
+	}
+}
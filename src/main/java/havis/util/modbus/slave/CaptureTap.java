@@ -0,0 +1,400 @@
+package havis.util.modbus.slave;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import havis.util.modbus.ModbusBase;
+import havis.util.modbus.ModbusMapping;
+import havis.util.modbus.ModbusTcpPi;
+import havis.util.modbus.UInt8Array;
+
+/**
+ * Captures the requests received by a {@link ModbusSlave} and its responses
+ * to a pcap file. The ADUs are copied with a time stamp to a preallocated ring
+ * buffer and written to the file by a thread of its own, so the serving
+ * threads are never blocked by the file. A record is dropped if the buffer is
+ * full.
+ * <p>
+ * The packets are written as IPv4/TCP packets (link type RAW) from the client
+ * 127.0.0.2:(32768 + socket) to the server 127.0.0.1:port and vice versa, so
+ * the capture can be inspected with common tools and replayed with
+ * {@link CaptureReplay}. Responses are rebuilt from the request and the
+ * mapping because they are encoded by the native library.
+ * </p>
+ */
+public class CaptureTap implements Closeable {
+
+	private static final Logger log = Logger.getLogger(CaptureTap.class.getName());
+
+	static final int LINKTYPE_RAW = 101;
+	// length, time in us, client socket, server port, direction
+	private static final int RECORD_HEADER_LENGTH = 4 + 8 + 4 + 2 + 1;
+	private static final int IP_HEADER_LENGTH = 20;
+	private static final int TCP_HEADER_LENGTH = 20;
+	private static final int MBAP_LENGTH = 7;
+
+	// buffers of the serving threads for copying requests and responses
+	private static final ThreadLocal<byte[]> buffers = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[ModbusTcpPi.MODBUS_TCP_MAX_ADU_LENGTH];
+		}
+	};
+
+	private final DataOutputStream out;
+	private final byte[] ring;
+	// records copied from the ring by the writer
+	private final byte[] batch;
+	// positions of the next record to be written and read
+	private long head;
+	private long tail;
+	private boolean closed;
+	private long recordCount;
+	private long droppedCount;
+	private final long baseMicros = System.currentTimeMillis() * 1000;
+	private final long baseNanos = System.nanoTime();
+	private final Thread writer;
+
+	/**
+	 * @param file
+	 *            the pcap file
+	 * @param bufferSize
+	 *            the size of the ring buffer in bytes
+	 */
+	public CaptureTap(File file, int bufferSize) throws IOException {
+		this(new FileOutputStream(file), bufferSize);
+	}
+
+	/**
+	 * @param out
+	 *            the stream of the pcap file, closed with the tap
+	 * @param bufferSize
+	 *            the size of the ring buffer in bytes
+	 */
+	public CaptureTap(OutputStream out, int bufferSize) throws IOException {
+		this.out = new DataOutputStream(new BufferedOutputStream(out, 64 * 1024));
+		ring = new byte[bufferSize];
+		batch = new byte[bufferSize];
+		// pcap header in big endian
+		this.out.writeInt(0xA1B2C3D4);
+		this.out.writeShort(2);
+		this.out.writeShort(4);
+		this.out.writeInt(0); // time zone
+		this.out.writeInt(0); // time stamp accuracy
+		this.out.writeInt(0xFFFF); // snap length
+		this.out.writeInt(LINKTYPE_RAW);
+		this.out.flush();
+		writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				drain();
+			}
+		}, "CaptureTap");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * @return the number of captured records
+	 */
+	public synchronized long getRecordCount() {
+		return recordCount;
+	}
+
+	/**
+	 * @return the number of records dropped due to a full buffer
+	 */
+	public synchronized long getDroppedCount() {
+		return droppedCount;
+	}
+
+	/**
+	 * Writes the buffered records and closes the file
+	 */
+	@Override
+	public void close() throws IOException {
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			notifyAll();
+		}
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Captures a received request
+	 */
+	void request(ModbusBase ctx, int client, int port, UInt8Array request, int requestLength) {
+		byte[] buffer = buffers.get();
+		int length = ctx.getBytes(request.cast(), requestLength, buffer);
+		record(client, port, false, buffer, 0, length);
+	}
+
+	/**
+	 * Captures the response to a request which has been sent by
+	 * {@link ModbusBase#replyToWithErrNo}
+	 */
+	void response(ModbusBase ctx, int client, int port, UInt8Array request, int requestLength, ModbusMapping mapping) {
+		byte[] buffer = buffers.get();
+		if (ctx.getBytes(request.cast(), Math.min(requestLength, MBAP_LENGTH + 5), buffer) < MBAP_LENGTH + 5) {
+			return;
+		}
+		int functionCode = buffer[MBAP_LENGTH] & 0xFF;
+		int address = getUInt16(buffer, MBAP_LENGTH + 1);
+		int quantity = getUInt16(buffer, MBAP_LENGTH + 3);
+		int length;
+		if (functionCode == ModbusBase.MODBUS_FC_READ_COILS || functionCode == ModbusBase.MODBUS_FC_READ_DISCRETE_INPUTS) {
+			if (quantity < 1 || quantity > 2000) {
+				exception(client, port, buffer, ModbusBase.MODBUS_EXCEPTION_ILLEGAL_DATA_VALUE);
+				return;
+			}
+			ByteBuffer bits = mapping.getBitsBuffer(functionCode == ModbusBase.MODBUS_FC_READ_DISCRETE_INPUTS);
+			int byteCount = (quantity + 7) / 8;
+			buffer[MBAP_LENGTH + 1] = (byte) byteCount;
+			for (int i = 0; i < byteCount; i++) {
+				buffer[MBAP_LENGTH + 2 + i] = 0;
+			}
+			for (int i = 0; i < quantity; i++) {
+				if (bits.get(address + i) != 0) {
+					buffer[MBAP_LENGTH + 2 + i / 8] |= 1 << (i % 8);
+				}
+			}
+			length = MBAP_LENGTH + 2 + byteCount;
+		} else if (functionCode == ModbusBase.MODBUS_FC_READ_HOLDING_REGISTERS
+				|| functionCode == ModbusBase.MODBUS_FC_READ_INPUT_REGISTERS) {
+			if (quantity < 1 || quantity > 125) {
+				exception(client, port, buffer, ModbusBase.MODBUS_EXCEPTION_ILLEGAL_DATA_VALUE);
+				return;
+			}
+			ShortBuffer registers = mapping.getRegistersView(functionCode == ModbusBase.MODBUS_FC_READ_INPUT_REGISTERS);
+			buffer[MBAP_LENGTH + 1] = (byte) (quantity * 2);
+			for (int i = 0; i < quantity; i++) {
+				short value = registers.get(address + i);
+				buffer[MBAP_LENGTH + 2 + i * 2] = (byte) (value >> 8);
+				buffer[MBAP_LENGTH + 3 + i * 2] = (byte) value;
+			}
+			length = MBAP_LENGTH + 2 + quantity * 2;
+		} else if (functionCode == ModbusBase.MODBUS_FC_WRITE_SINGLE_COIL || functionCode == ModbusBase.MODBUS_FC_WRITE_SINGLE_REGISTER
+				|| functionCode == ModbusBase.MODBUS_FC_WRITE_MULTIPLE_COILS
+				|| functionCode == ModbusBase.MODBUS_FC_WRITE_MULTIPLE_REGISTERS) {
+			// echo of the address and the value or quantity
+			length = MBAP_LENGTH + 5;
+		} else {
+			return;
+		}
+		setLength(buffer, length);
+		record(client, port, true, buffer, 0, length);
+	}
+
+	/**
+	 * Captures an exception response which has been sent by
+	 * {@link ModbusBase#replyExceptionToWithErrNo}
+	 */
+	void exception(ModbusBase ctx, int client, int port, UInt8Array request, long exceptionCode) {
+		byte[] buffer = buffers.get();
+		if (ctx.getBytes(request.cast(), MBAP_LENGTH + 1, buffer) == MBAP_LENGTH + 1) {
+			exception(client, port, buffer, exceptionCode);
+		}
+	}
+
+	private void exception(int client, int port, byte[] buffer, long exceptionCode) {
+		buffer[MBAP_LENGTH] |= 0x80;
+		buffer[MBAP_LENGTH + 1] = (byte) exceptionCode;
+		setLength(buffer, MBAP_LENGTH + 2);
+		record(client, port, true, buffer, 0, MBAP_LENGTH + 2);
+	}
+
+	/**
+	 * Copies an ADU to the ring buffer or drops it if the buffer is full
+	 *
+	 * @param response
+	 *            true for a response, false for a request
+	 */
+	void record(int client, int port, boolean response, byte[] data, int offset, int length) {
+		long time = baseMicros + (System.nanoTime() - baseNanos) / 1000;
+		int size = RECORD_HEADER_LENGTH + length;
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			if (ring.length - (head - tail) < size) {
+				droppedCount++;
+				return;
+			}
+			boolean wasEmpty = head == tail;
+			long pos = head;
+			pos = put(pos, length, 4);
+			pos = put(pos, time, 8);
+			pos = put(pos, client, 4);
+			pos = put(pos, port, 2);
+			pos = put(pos, response ? 1 : 0, 1);
+			int index = (int) (pos % ring.length);
+			int first = Math.min(length, ring.length - index);
+			System.arraycopy(data, offset, ring, index, first);
+			System.arraycopy(data, offset + first, ring, 0, length - first);
+			head += size;
+			recordCount++;
+			if (wasEmpty) {
+				// the writer waits for an empty buffer only
+				notifyAll();
+			}
+		}
+	}
+
+	private long put(long pos, long value, int length) {
+		for (int i = length - 1; i >= 0; i--) {
+			ring[(int) (pos++ % ring.length)] = (byte) (value >> (i * 8));
+		}
+		return pos;
+	}
+
+	private void drain() {
+		// sequence numbers of the client and server by connection
+		Map<Long, int[]> sequences = new HashMap<>();
+		byte[] headers = new byte[IP_HEADER_LENGTH + TCP_HEADER_LENGTH];
+		try {
+			while (true) {
+				int length;
+				synchronized (this) {
+					while (head == tail && !closed) {
+						wait();
+					}
+					if (head == tail) {
+						return;
+					}
+					length = (int) (head - tail);
+					int index = (int) (tail % ring.length);
+					int first = Math.min(length, ring.length - index);
+					System.arraycopy(ring, index, batch, 0, first);
+					System.arraycopy(ring, 0, batch, first, length - first);
+					tail = head;
+				}
+				int pos = 0;
+				while (pos < length) {
+					int dataLength = (int) getLong(batch, pos, 4);
+					long time = getLong(batch, pos + 4, 8);
+					int client = (int) getLong(batch, pos + 12, 4);
+					int port = (int) getLong(batch, pos + 16, 2);
+					boolean response = batch[pos + 18] != 0;
+					pos += RECORD_HEADER_LENGTH;
+					writePacket(sequences, headers, time, client, port, response, pos, dataLength);
+					pos += dataLength;
+				}
+				out.flush();
+			}
+		} catch (IOException e) {
+			log.log(Level.SEVERE, "Failed to write capture", e);
+			synchronized (this) {
+				closed = true;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			try {
+				out.close();
+			} catch (IOException e) {
+				log.log(Level.SEVERE, "Failed to close capture", e);
+			}
+		}
+	}
+
+	private void writePacket(Map<Long, int[]> sequences, byte[] headers, long time, int client, int port, boolean response, int offset,
+			int length) throws IOException {
+		int clientPort = 0x8000 | (client & 0x7FFF);
+		long key = ((long) clientPort << 16) | port;
+		int[] sequence = sequences.get(key);
+		if (sequence == null) {
+			sequence = new int[] { 1, 1 };
+			sequences.put(key, sequence);
+		}
+		int packetLength = IP_HEADER_LENGTH + TCP_HEADER_LENGTH + length;
+		// record header
+		out.writeInt((int) (time / 1000000));
+		out.writeInt((int) (time % 1000000));
+		out.writeInt(packetLength);
+		out.writeInt(packetLength);
+		// IPv4 header
+		headers[0] = 0x45;
+		headers[1] = 0;
+		setUInt16(headers, 2, packetLength);
+		setUInt16(headers, 4, 0);
+		setUInt16(headers, 6, 0x4000); // don't fragment
+		headers[8] = 64; // TTL
+		headers[9] = 6; // TCP
+		setUInt16(headers, 10, 0);
+		setAddress(headers, response ? 12 : 16, 1);
+		setAddress(headers, response ? 16 : 12, 2);
+		int sum = 0;
+		for (int i = 0; i < IP_HEADER_LENGTH; i += 2) {
+			sum += getUInt16(headers, i);
+		}
+		while (sum > 0xFFFF) {
+			sum = (sum & 0xFFFF) + (sum >> 16);
+		}
+		setUInt16(headers, 10, ~sum & 0xFFFF);
+		// TCP header without checksum
+		setUInt16(headers, 20, response ? port : clientPort);
+		setUInt16(headers, 22, response ? clientPort : port);
+		setInt32(headers, 24, sequence[response ? 1 : 0]);
+		setInt32(headers, 28, sequence[response ? 0 : 1]);
+		headers[32] = 0x50; // header length
+		headers[33] = 0x18; // PSH, ACK
+		setUInt16(headers, 34, 0xFFFF); // window
+		setUInt16(headers, 36, 0);
+		setUInt16(headers, 38, 0);
+		sequence[response ? 1 : 0] += length;
+		out.write(headers);
+		out.write(batch, offset, length);
+	}
+
+	private static void setAddress(byte[] data, int offset, int host) {
+		data[offset] = 127;
+		data[offset + 1] = 0;
+		data[offset + 2] = 0;
+		data[offset + 3] = (byte) host;
+	}
+
+	private static void setLength(byte[] adu, int length) {
+		// unit id and PDU
+		setUInt16(adu, 4, length - 6);
+	}
+
+	private static long getLong(byte[] data, int offset, int length) {
+		long value = 0;
+		for (int i = 0; i < length; i++) {
+			value = (value << 8) | (data[offset + i] & 0xFF);
+		}
+		return value;
+	}
+
+	static int getUInt16(byte[] data, int offset) {
+		return ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+	}
+
+	private static void setUInt16(byte[] data, int offset, int value) {
+		data[offset] = (byte) (value >> 8);
+		data[offset + 1] = (byte) value;
+	}
+
+	private static void setInt32(byte[] data, int offset, int value) {
+		setUInt16(data, offset, value >>> 16);
+		setUInt16(data, offset + 2, value);
+	}
+}
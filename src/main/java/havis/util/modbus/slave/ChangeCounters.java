@@ -0,0 +1,125 @@
+package havis.util.modbus.slave;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import havis.util.modbus.Field;
+import havis.util.modbus.RegisterType;
+
+/**
+ * Change counters of the blocks of a register type, exposed as input
+ * registers. The counter of block n covers the addresses n * blockSize to
+ * (n + 1) * blockSize - 1 and is returned at the input register baseAddress +
+ * n. It is incremented (modulo 65536) each time the values of a field in the
+ * block change, so a client may poll the counter and read the block only if
+ * the counter has changed.
+ */
+public class ChangeCounters {
+
+	private final RegisterType registerType;
+	private final int blockSize;
+	private final int baseAddress;
+	private final int[] counters;
+	// last values of the fields
+	private final Map<Field, int[]> values = new IdentityHashMap<>();
+
+	/**
+	 * @param registerType
+	 *            the type of the counted registers
+	 * @param blockSize
+	 *            the number of addresses covered by a counter
+	 * @param baseAddress
+	 *            the input register of the counter of the first block
+	 *            (0-65535)
+	 * @throws IllegalArgumentException
+	 *             if the block size is not positive or the base address is
+	 *             not a register address
+	 */
+	public ChangeCounters(RegisterType registerType, int blockSize, int baseAddress) {
+		if (blockSize < 1) {
+			throw new IllegalArgumentException("Invalid block size " + blockSize + " (must be at least 1)");
+		}
+		if (baseAddress < 0 || baseAddress > 0xFFFF) {
+			throw new IllegalArgumentException("Invalid base address " + baseAddress + " (must be 0-65535)");
+		}
+		this.registerType = registerType;
+		this.blockSize = blockSize;
+		this.baseAddress = baseAddress;
+		counters = new int[Math.min((0x10000 + blockSize - 1) / blockSize, 0x10000 - baseAddress)];
+	}
+
+	public RegisterType getRegisterType() {
+		return registerType;
+	}
+
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	public int getBaseAddress() {
+		return baseAddress;
+	}
+
+	/**
+	 * @return the number of counters, i.e. of input registers starting at the
+	 *         base address
+	 */
+	public int getCount() {
+		return counters.length;
+	}
+
+	/**
+	 * @return true if all requested input registers are counters
+	 */
+	boolean contains(int address, int quantity) {
+		return address >= baseAddress && address + quantity <= baseAddress + counters.length;
+	}
+
+	/**
+	 * @return true if any of the addressed input registers is a counter
+	 */
+	boolean overlaps(int address, int quantity) {
+		return address < baseAddress + counters.length && address + quantity > baseAddress;
+	}
+
+	/**
+	 * @return the first address of the block of a counter register
+	 */
+	int getBlockAddress(int address) {
+		return (address - baseAddress) * blockSize;
+	}
+
+	public synchronized int get(int block) {
+		return counters[block];
+	}
+
+	/**
+	 * Stores the current values of a field and increments the counters of its
+	 * blocks if they differ from the last values. The first values of a field
+	 * are not counted as change.
+	 */
+	synchronized void update(Field field, int[] current) {
+		int[] last = values.put(field, current);
+		if (last != null && !Arrays.equals(last, current)) {
+			changed(field.getAddress(), field.getAddressQuantity());
+		}
+	}
+
+	/**
+	 * Increments the counters of the blocks of an address range
+	 */
+	public synchronized void changed(int address, int quantity) {
+		int last = Math.min((address + Math.max(quantity, 1) - 1) / blockSize, counters.length - 1);
+		for (int block = address / blockSize; block <= last; block++) {
+			counters[block] = (counters[block] + 1) & 0xFFFF;
+		}
+	}
+
+	/**
+	 * Forgets the last values, e.g. after the fields have been replaced
+	 */
+	synchronized void clear() {
+		values.clear();
+	}
+}
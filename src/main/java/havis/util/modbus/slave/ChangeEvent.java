@@ -0,0 +1,68 @@
+package havis.util.modbus.slave;
+
+import java.util.Date;
+
+import havis.util.modbus.Field;
+
+/**
+ * A field written by a client. Events are reused by the {@link ChangeFeed}, so
+ * a subscriber must not keep a reference to an event after it has been
+ * delivered.
+ */
+public class ChangeEvent {
+
+	private long sequence;
+	private Field field;
+	private Object value;
+	private Date timeStamp;
+	private int unitId;
+	private int client;
+
+	ChangeEvent() {
+	}
+
+	void set(long sequence, Field field, Object value, Date timeStamp, int unitId, int client) {
+		this.sequence = sequence;
+		this.field = field;
+		this.value = value;
+		this.timeStamp = timeStamp;
+		this.unitId = unitId;
+		this.client = client;
+	}
+
+	/**
+	 * @return the sequence of the event in the feed
+	 */
+	public long getSequence() {
+		return sequence;
+	}
+
+	public Field getField() {
+		return field;
+	}
+
+	public Object getValue() {
+		return value;
+	}
+
+	public Date getTimeStamp() {
+		return timeStamp;
+	}
+
+	public int getUnitId() {
+		return unitId;
+	}
+
+	/**
+	 * @return the socket of the client connection or -1 if unknown
+	 */
+	public int getClient() {
+		return client;
+	}
+
+	@Override
+	public String toString() {
+		return "ChangeEvent [sequence=" + sequence + ", field=" + field + ", value=" + value + ", timeStamp=" + timeStamp + ", unitId=" + unitId
+				+ ", client=" + client + "]";
+	}
+}
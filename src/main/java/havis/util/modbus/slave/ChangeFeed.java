@@ -0,0 +1,209 @@
+package havis.util.modbus.slave;
+
+import java.io.Closeable;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import havis.util.modbus.Field;
+
+/**
+ * Feed of the fields written by clients. The events are published to a ring
+ * buffer with preallocated entries and consumed by any number of subscribers,
+ * each in a thread of its own.
+ * <p>
+ * Publishing never blocks: if the slowest subscriber is a full ring behind,
+ * the new event is dropped (see {@link #getDroppedCount()}). Subscribers wait
+ * without locks and only need to be woken up if they have run out of events.
+ */
+public class ChangeFeed {
+
+	private static final Logger log = Logger.getLogger(ChangeFeed.class.getName());
+
+	private final ChangeEvent[] events;
+	private final int mask;
+	// sequence of the last published event
+	private volatile long cursor = -1;
+	private volatile Subscription[] subscriptions = new Subscription[0];
+	private final AtomicLong droppedCount = new AtomicLong();
+
+	/**
+	 * @param capacity
+	 *            the number of events which can be buffered, rounded up to the
+	 *            next power of two
+	 */
+	public ChangeFeed(int capacity) {
+		if (capacity < 1 || capacity > 1 << 30) {
+			throw new IllegalArgumentException("Invalid capacity: " + capacity);
+		}
+		int size = Integer.highestOneBit(capacity);
+		if (size < capacity) {
+			size <<= 1;
+		}
+		events = new ChangeEvent[size];
+		for (int i = 0; i < size; i++) {
+			events[i] = new ChangeEvent();
+		}
+		mask = size - 1;
+	}
+
+	public int getCapacity() {
+		return events.length;
+	}
+
+	/**
+	 * @return the number of events which have been dropped because the ring
+	 *         buffer was full
+	 */
+	public long getDroppedCount() {
+		return droppedCount.get();
+	}
+
+	/**
+	 * Publishes an event. Concurrent publishers are serialized.
+	 *
+	 * @return false if the event has been dropped
+	 */
+	public synchronized boolean publish(Field field, Object value, Date timeStamp, int unitId, int client) {
+		Subscription[] subscriptions = this.subscriptions;
+		long next = cursor + 1;
+		for (Subscription subscription : subscriptions) {
+			if (next - subscription.sequence > events.length) {
+				if (droppedCount.getAndIncrement() == 0) {
+					log.warning("Dropping change events because a subscriber is too slow");
+				}
+				return false;
+			}
+		}
+		events[(int) next & mask].set(next, field, value, timeStamp, unitId, client);
+		cursor = next;
+		for (Subscription subscription : subscriptions) {
+			if (subscription.waiting) {
+				LockSupport.unpark(subscription.thread);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Subscribes to the events published from now on and starts the thread of
+	 * the subscription.
+	 *
+	 * @param coalesce
+	 *            true if only the last event of a field is delivered if there
+	 *            are several events of the field available at once
+	 */
+	public Subscription subscribe(ChangeSubscriber subscriber, boolean coalesce) {
+		Subscription subscription;
+		synchronized (this) {
+			subscription = new Subscription(subscriber, coalesce, cursor);
+			Subscription[] s = Arrays.copyOf(subscriptions, subscriptions.length + 1);
+			s[s.length - 1] = subscription;
+			subscriptions = s;
+		}
+		subscription.thread.start();
+		return subscription;
+	}
+
+	private synchronized void unsubscribe(Subscription subscription) {
+		Subscription[] s = new Subscription[subscriptions.length];
+		int count = 0;
+		for (Subscription other : subscriptions) {
+			if (other != subscription) {
+				s[count++] = other;
+			}
+		}
+		subscriptions = Arrays.copyOf(s, count);
+	}
+
+	/**
+	 * A subscription to the feed. Closing it stops its thread after the
+	 * current batch.
+	 */
+	public class Subscription implements Closeable {
+
+		private final ChangeSubscriber subscriber;
+		private final boolean coalesce;
+		private final Thread thread;
+		// sequence of the last consumed event
+		private volatile long sequence;
+		private volatile boolean waiting;
+		private volatile boolean closed;
+		// last sequence per field of the current batch
+		private final Map<Field, Long> lastSequences = new HashMap<>();
+
+		private Subscription(ChangeSubscriber subscriber, boolean coalesce, long sequence) {
+			this.subscriber = subscriber;
+			this.coalesce = coalesce;
+			this.sequence = sequence;
+			thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					consume();
+				}
+			}, "ChangeFeed-" + subscriber.getClass().getSimpleName());
+			thread.setDaemon(true);
+		}
+
+		/**
+		 * @return the sequence of the last consumed event
+		 */
+		public long getSequence() {
+			return sequence;
+		}
+
+		private void consume() {
+			while (!closed) {
+				long available = cursor;
+				if (available == sequence) {
+					waiting = true;
+					// the publisher might have missed the flag
+					if (cursor == sequence && !closed) {
+						LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(100));
+					}
+					waiting = false;
+					continue;
+				}
+				if (coalesce) {
+					lastSequences.clear();
+					for (long s = sequence + 1; s <= available; s++) {
+						lastSequences.put(events[(int) s & mask].getField(), s);
+					}
+				}
+				for (long s = sequence + 1; s <= available; s++) {
+					ChangeEvent event = events[(int) s & mask];
+					if (coalesce && lastSequences.get(event.getField()) != s) {
+						continue;
+					}
+					try {
+						subscriber.onChange(event, s == available);
+					} catch (Exception e) {
+						log.log(Level.SEVERE, "Subscriber failed to process " + event, e);
+					}
+				}
+				// release the entries to the publisher
+				sequence = available;
+			}
+		}
+
+		@Override
+		public void close() {
+			closed = true;
+			unsubscribe(this);
+			LockSupport.unpark(thread);
+			if (Thread.currentThread() != thread) {
+				try {
+					thread.join();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+	}
+}
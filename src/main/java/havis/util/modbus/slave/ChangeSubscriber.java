@@ -0,0 +1,17 @@
+package havis.util.modbus.slave;
+
+/**
+ * Consumer of a {@link ChangeFeed}
+ */
+public interface ChangeSubscriber {
+
+	/**
+	 * Is called by the thread of the subscription for each event
+	 *
+	 * @param event
+	 *            the event which must not be used after the call
+	 * @param endOfBatch
+	 *            true for the last event which is currently available
+	 */
+	void onChange(ChangeEvent event, boolean endOfBatch);
+}
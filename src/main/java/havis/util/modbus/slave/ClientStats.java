@@ -0,0 +1,92 @@
+package havis.util.modbus.slave;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Statistics of a client connection of a {@link ModbusSlave}. The processing
+ * time of a request is measured from the start of its processing until the
+ * response has been sent and the backend has been updated.
+ */
+public class ClientStats {
+
+	private final int client;
+	private final long connectTime = System.currentTimeMillis();
+	private final LongAdder requestCount = new LongAdder();
+	private final LongAdder rejectedCount = new LongAdder();
+	private final LongAdder timeSum = new LongAdder();
+	private final AtomicLong maxTime = new AtomicLong();
+
+	ClientStats(int client) {
+		this.client = client;
+	}
+
+	void processed(long time) {
+		requestCount.increment();
+		timeSum.add(time);
+		long max;
+		while (time > (max = maxTime.get()) && !maxTime.compareAndSet(max, time)) {
+		}
+	}
+
+	void rejected() {
+		rejectedCount.increment();
+	}
+
+	/**
+	 * @return the socket of the client connection
+	 */
+	public int getClient() {
+		return client;
+	}
+
+	/**
+	 * @return the time of the connect in ms since the epoch
+	 */
+	public long getConnectTime() {
+		return connectTime;
+	}
+
+	/**
+	 * @return the number of processed requests
+	 */
+	public long getRequestCount() {
+		return requestCount.sum();
+	}
+
+	/**
+	 * @return the number of requests rejected due to the rate limit
+	 */
+	public long getRejectedCount() {
+		return rejectedCount.sum();
+	}
+
+	/**
+	 * @return the number of processed requests per second since the connect
+	 */
+	public double getThroughput() {
+		long duration = System.currentTimeMillis() - connectTime;
+		return duration <= 0 ? 0 : getRequestCount() * 1000.0 / duration;
+	}
+
+	/**
+	 * @return the average processing time in ns
+	 */
+	public long getAverageTime() {
+		long count = requestCount.sum();
+		return count == 0 ? 0 : timeSum.sum() / count;
+	}
+
+	/**
+	 * @return the max. processing time in ns
+	 */
+	public long getMaxTime() {
+		return maxTime.get();
+	}
+
+	@Override
+	public String toString() {
+		return "ClientStats [client=" + client + ", requestCount=" + getRequestCount() + ", rejectedCount=" + getRejectedCount() + ", averageTime="
+				+ getAverageTime() + ", maxTime=" + getMaxTime() + "]";
+	}
+}
@@ -0,0 +1,89 @@
+package havis.util.modbus.slave;
+
+import java.util.Arrays;
+
+import havis.util.modbus.IntArray;
+
+/**
+ * Round robin order of the connections with received data. Each connection
+ * is served one request per turn. The start of a turn rotates over the
+ * connections, so that no connection is preferred due to its socket number.
+ */
+class ConnectionScheduler {
+
+	private int[] queue;
+	private int head;
+	private int size;
+	private int lastFirst = -1;
+	private int[] ready = new int[0];
+
+	ConnectionScheduler(int capacity) {
+		queue = new int[Math.max(capacity, 1)];
+	}
+
+	boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Adds the ready client sockets of a select call
+	 */
+	void schedule(IntArray readFds, int readFdsCount, int serverSocket) {
+		if (ready.length < readFdsCount) {
+			ready = new int[readFdsCount];
+		}
+		int count = 0;
+		for (int i = 0; i < readFdsCount; i++) {
+			int socket = readFds.getitem(i);
+			if (socket != serverSocket) {
+				ready[count++] = socket;
+			}
+		}
+		if (count == 0) {
+			return;
+		}
+		Arrays.sort(ready, 0, count);
+		// start with the first socket after the start of the last turn
+		int start = 0;
+		while (start < count && ready[start] <= lastFirst) {
+			start++;
+		}
+		if (start == count) {
+			start = 0;
+		}
+		lastFirst = ready[start];
+		for (int i = 0; i < count; i++) {
+			add(ready[(start + i) % count]);
+		}
+	}
+
+	/**
+	 * Adds a socket to the end of the current turn, e.g. for further
+	 * pipelined requests
+	 */
+	void add(int socket) {
+		if (size == queue.length) {
+			int[] q = new int[queue.length * 2];
+			for (int i = 0; i < size; i++) {
+				q[i] = queue[(head + i) % queue.length];
+			}
+			queue = q;
+			head = 0;
+		}
+		queue[(head + size) % queue.length] = socket;
+		size++;
+	}
+
+	/**
+	 * @return the next socket or -1 if the turn is over
+	 */
+	int next() {
+		if (size == 0) {
+			return -1;
+		}
+		int socket = queue[head];
+		head = (head + 1) % queue.length;
+		size--;
+		return socket;
+	}
+}
@@ -0,0 +1,173 @@
+package havis.util.modbus.slave;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import havis.util.modbus.IntArray;
+import havis.util.modbus.ModbusBase;
+import havis.util.modbus.ModbusSelector;
+import havis.util.modbus.ModbusTcpPi;
+import havis.util.modbus.UInt8Array;
+
+/**
+ * Thread waiting for the sockets of many slaves with one select call. The
+ * slaves are added and removed by tasks executed by the loop thread, so the
+ * selected sockets always belong to open slaves.
+ */
+class EventLoop implements Runnable {
+
+	private static final Logger log = Logger.getLogger(EventLoop.class.getName());
+
+	// max. number of sockets of a select call (FD_SETSIZE)
+	private static final int MAX_READ_FDS = 1024;
+
+	// back-off after a failed select call, doubled up to the max. while the
+	// calls keep failing (in milliseconds)
+	private static final long MIN_ERROR_DELAY = 10;
+	private static final long MAX_ERROR_DELAY = 1000;
+
+	private final ModbusSelector selector = new ModbusSelector();
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger slaveCount = new AtomicInteger();
+	private final Thread thread;
+	private volatile boolean stopped;
+
+	// used by the loop thread only
+	private final Map<Integer, ModbusSlave> slaves = new HashMap<>();
+	private final Map<ModbusSlave, Integer> keys = new HashMap<>();
+	private int nextKey;
+	private int selectTimeout = -1;
+
+	EventLoop(String name) {
+		thread = new Thread(this, name);
+		thread.start();
+	}
+
+	/**
+	 * @return the number of slaves served by this loop
+	 */
+	int getSlaveCount() {
+		return slaveCount.get();
+	}
+
+	void add(final ModbusSlave slave) {
+		slaveCount.incrementAndGet();
+		execute(new Runnable() {
+			@Override
+			public void run() {
+				int key = nextKey++;
+				slaves.put(key, slave);
+				keys.put(slave, key);
+				selector.add(slave.getContext(), key);
+				int idleTimeout = slave.getConfiguration().getConnectionIdleTimeout();
+				if (idleTimeout > 0) {
+					// wake up regularly for closing idle connections
+					int timeout = Math.min(1000, idleTimeout);
+					if (selectTimeout < 0 || timeout < selectTimeout) {
+						selectTimeout = timeout;
+						selector.setSelectTimeout(timeout);
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * @return the future of the removal which closes the slave
+	 */
+	Future<?> remove(final ModbusSlave slave) {
+		FutureTask<Void> task = new FutureTask<>(new Runnable() {
+			@Override
+			public void run() {
+				Integer key = keys.remove(slave);
+				if (key != null) {
+					slaves.remove(key);
+					selector.remove(key);
+					slaveCount.decrementAndGet();
+					slave.detach();
+				}
+			}
+		}, null);
+		execute(task);
+		return task;
+	}
+
+	/**
+	 * Stops the loop after the queued tasks have been executed
+	 */
+	void shutdown() throws InterruptedException {
+		stopped = true;
+		selector.wakeup();
+		thread.join();
+	}
+
+	private void execute(Runnable task) {
+		tasks.add(task);
+		selector.wakeup();
+	}
+
+	private void runTasks() {
+		Runnable task;
+		while ((task = tasks.poll()) != null) {
+			try {
+				task.run();
+			} catch (Throwable e) {
+				log.log(Level.SEVERE, "Execution of event loop task failed", e);
+			}
+		}
+	}
+
+	@Override
+	public void run() {
+		UInt8Array request = new UInt8Array(ModbusTcpPi.MODBUS_TCP_MAX_ADU_LENGTH);
+		// decoded header of the request
+		int[] header = new int[ModbusBase.DECODED_SIZE];
+		IntArray readKeys = new IntArray(MAX_READ_FDS);
+		IntArray readFds = new IntArray(MAX_READ_FDS);
+		long errorDelay = 0;
+		try {
+			while (!stopped) {
+				runTasks();
+				int readFdsCount = selector.selectReadWithErrNo(readKeys.cast(), readFds.cast(), MAX_READ_FDS);
+				if (readFdsCount < 0) {
+					errorDelay = errorDelay == 0 ? MIN_ERROR_DELAY : Math.min(errorDelay * 2, MAX_ERROR_DELAY);
+					log.severe("Waiting for data failed: " + -readFdsCount + ", retrying in " + errorDelay + "ms");
+					try {
+						Thread.sleep(errorDelay);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						break;
+					}
+					continue;
+				}
+				errorDelay = 0;
+				for (int i = 0; i < readFdsCount; i++) {
+					ModbusSlave slave = slaves.get(readKeys.getitem(i));
+					if (slave != null) {
+						try {
+							slave.serve(readFds.getitem(i), request, header);
+						} catch (Throwable e) {
+							log.log(Level.SEVERE, "Serving socket " + readFds.getitem(i) + " failed", e);
+						}
+					}
+				}
+				for (ModbusSlave slave : slaves.values()) {
+					slave.closeIdleConnections();
+				}
+			}
+			runTasks();
+		} finally {
+			request.delete();
+			readKeys.delete();
+			readFds.delete();
+			selector.delete();
+		}
+	}
+}
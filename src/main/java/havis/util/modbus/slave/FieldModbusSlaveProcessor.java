@@ -1,40 +1,190 @@
 package havis.util.modbus.slave;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import havis.util.modbus.Field;
+import havis.util.modbus.FunctionCode;
 import havis.util.modbus.Mapper;
-import havis.util.modbus.ModbusMapping;
-import havis.util.modbus.UInt16Array;
-import havis.util.modbus.UInt8Array;
-import havis.util.modbus.ModbusBase;
+import havis.util.modbus.RegisterMapping;
+import havis.util.modbus.RegisterSnapshot;
+import havis.util.modbus.RegisterType;
 
 public abstract class FieldModbusSlaveProcessor implements ModbusSlaveProcessor {
 
 	private static final Logger log = Logger.getLogger(ModbusSlaveProcessor.class.getName());
-	private List<Field> fields;
+	// replaced as a whole, so requests never see a partially updated table
+	private volatile FieldTable table;
 	private ModbusSlave slave;
 	private Mapper mapper;
 	private ExecutorService threadPool;
 	private Future<?> future;
+	private ModbusServer server;
+	private ModbusSlaveConfiguration configuration = new ModbusSlaveConfiguration();
+	private int maxConnectionCount = 5;
+	private RegisterSnapshot snapshot;
+	private int snapshotInterval = 10000;
+	private ScheduledExecutorService snapshotTimer;
+	// fields which have been read from the backend since the start
+	private Set<Field> warmedFields = ConcurrentHashMap.newKeySet();
+	private ChangeFeed changeFeed;
+	private volatile ChangeCounters changeCounters;
+	// encoded values of the fields last read from or written to the backend
+	private final Map<Field, int[]> knownValues = new ConcurrentHashMap<>();
 
 	public FieldModbusSlaveProcessor(List<Field> fields) {
-		this.fields = fields;
+		table = new FieldTable(fields, 1);
+		// requests may be processed without a slave, e.g. by an in-memory
+		// transport
+		mapper = new Mapper();
 	}
 
-	public void setFields(List<Field> fields) {
-		this.fields = fields;
+	/**
+	 * Replaces the fields. Requests being processed complete with the previous
+	 * fields.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if an input register field overlaps the change counters
+	 */
+	public synchronized void setFields(List<Field> fields) {
+		FieldTable table = new FieldTable(fields, this.table.getVersion() + 1);
+		ChangeCounters counters = changeCounters;
+		if (counters != null) {
+			checkOverlap(table, counters);
+			counters.clear();
+		}
+		this.table = table;
+		Mapper mapper = this.mapper;
+		if (mapper != null) {
+			mapper.clearCache();
+		}
+		knownValues.clear();
+	}
+
+	/**
+	 * @return the current fields
+	 */
+	public FieldTable getFieldTable() {
+		return table;
+	}
+
+	/**
+	 * @return the slave of the last start, e.g. for reading the metrics of its
+	 *         write stage
+	 */
+	public ModbusSlave getSlave() {
+		return slave;
+	}
+
+	public int getMaxConnectionCount() {
+		return maxConnectionCount;
+	}
+
+	/**
+	 * Sets the max. number of client connections (default: 5). Takes effect
+	 * with the next start.
+	 */
+	public void setMaxConnectionCount(int maxConnectionCount) {
+		this.maxConnectionCount = maxConnectionCount;
+	}
+
+	public ModbusSlaveConfiguration getConfiguration() {
+		return configuration;
+	}
+
+	public void setConfiguration(ModbusSlaveConfiguration configuration) {
+		this.configuration = configuration;
+	}
+
+	public RegisterSnapshot getSnapshot() {
+		return snapshot;
+	}
+
+	/**
+	 * Sets a snapshot of the last known values. After a start the values of
+	 * the snapshot are returned to the clients until the fields have been
+	 * read from the backend once. The fields are read by a background thread
+	 * one by one, so {@link #read(Field)} may be called concurrently to the
+	 * slave thread.
+	 */
+	public void setSnapshot(RegisterSnapshot snapshot) {
+		this.snapshot = snapshot;
+	}
+
+	public ChangeCounters getChangeCounters() {
+		return changeCounters;
+	}
+
+	/**
+	 * Sets the change counters exposed as input registers. Reading a counter
+	 * reads the fields of its block from the backend, so a client can poll the
+	 * counters instead of the blocks.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the counters overlap an input register field
+	 */
+	public synchronized void setChangeCounters(ChangeCounters changeCounters) {
+		if (changeCounters != null) {
+			checkOverlap(table, changeCounters);
+		}
+		this.changeCounters = changeCounters;
+	}
+
+	private static void checkOverlap(FieldTable table, ChangeCounters counters) {
+		FieldTable.Index index = table.getIndex(RegisterType.INPUT_REGISTERS);
+		if (index == null) {
+			return;
+		}
+		for (Field field : index.fields) {
+			if (counters.overlaps(field.getAddress(), field.getAddressQuantity())) {
+				throw new IllegalArgumentException("Change counters at input registers " + counters.getBaseAddress() + "-"
+						+ (counters.getBaseAddress() + counters.getCount() - 1) + " overlap the field at "
+						+ field.getAddress());
+			}
+		}
+	}
+
+	public ChangeFeed getChangeFeed() {
+		return changeFeed;
+	}
+
+	/**
+	 * Sets a feed to which each field changed by a client is published after
+	 * {@link #writeAll(Map)} has succeeded. Implementations which consume the
+	 * feed may implement {@link #write(Field, Object)} as no-op.
+	 */
+	public void setChangeFeed(ChangeFeed changeFeed) {
+		this.changeFeed = changeFeed;
+	}
+
+	public int getSnapshotInterval() {
+		return snapshotInterval;
+	}
+
+	/**
+	 * Sets the interval in ms for writing the changed values to the snapshot
+	 */
+	public void setSnapshotInterval(int snapshotInterval) {
+		this.snapshotInterval = snapshotInterval;
 	}
 
 	public void start(final int port) {
-		slave = new ModbusSlave(this, 5);
-		mapper = new Mapper(slave);
+		createSlave();
 		threadPool = Executors.newFixedThreadPool(1);
 		future = threadPool.submit(new Runnable() {
 			@Override
@@ -49,6 +199,45 @@ public abstract class FieldModbusSlaveProcessor implements ModbusSlaveProcessor
 		});
 	}
 
+	/**
+	 * Starts the slave on a port served by the event loop of a shared server
+	 * instead of a thread of its own
+	 */
+	public void start(ModbusServer server, int port) throws ModbusSlaveException {
+		createSlave();
+		try {
+			server.open(slave, port);
+		} catch (ModbusSlaveException e) {
+			if (snapshotTimer != null) {
+				snapshotTimer.shutdownNow();
+				snapshotTimer = null;
+			}
+			throw e;
+		}
+		this.server = server;
+	}
+
+	private void createSlave() {
+		slave = new ModbusSlave(this, maxConnectionCount, configuration);
+		mapper = new Mapper(slave);
+		warmedFields.clear();
+		if (snapshot != null) {
+			snapshotTimer = Executors.newSingleThreadScheduledExecutor();
+			snapshotTimer.execute(new Runnable() {
+				@Override
+				public void run() {
+					warmUp();
+				}
+			});
+			snapshotTimer.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					flushSnapshot();
+				}
+			}, snapshotInterval, snapshotInterval, TimeUnit.MILLISECONDS);
+		}
+	}
+
 	public void stop(int openCloseTimeout) throws ModbusSlaveException {
 		if (future != null) {
 			try {
@@ -60,13 +249,122 @@ public abstract class FieldModbusSlaveProcessor implements ModbusSlaveProcessor
 			}
 			threadPool.shutdown();
 		}
+		if (server != null) {
+			try {
+				server.close(slave, openCloseTimeout);
+			} catch (ModbusSlaveException e) {
+				log.log(Level.SEVERE, "Cannot close modbus slave", e);
+			}
+			server = null;
+		}
+		if (snapshotTimer != null) {
+			snapshotTimer.shutdownNow();
+			snapshotTimer = null;
+			flushSnapshot();
+		}
+	}
+
+	private void warmUp() {
+		FieldTable table = this.table;
+		for (Field field : table.getFields()) {
+			if (Thread.currentThread().isInterrupted()) {
+				return;
+			}
+			if (isServedFromSnapshot(field)) {
+				try {
+					// replace the value of the snapshot by the backend value
+					Object value = read(field);
+					store(field, encode(table.getIndex(field.getRegisterType()), field, value));
+				} catch (Exception e) {
+					log.log(Level.WARNING, "Cannot read field at address " + field.getAddress() + " while warming up", e);
+				}
+				warmedFields.add(field);
+			}
+		}
+	}
+
+	private void flushSnapshot() {
+		try {
+			snapshot.flush();
+		} catch (IOException e) {
+			log.log(Level.SEVERE, "Cannot write snapshot", e);
+		}
+	}
+
+	private boolean isServedFromSnapshot(Field field) {
+		return snapshot != null && !warmedFields.contains(field)
+				&& snapshot.isKnown(field.getRegisterType(), field.getAddress(), field.getAddressQuantity());
+	}
+
+	private int getSnapshotQuantity(Field field, int size) {
+		// the mapping only contains the requested addresses
+		return Math.min(field.getAddressQuantity(), size - field.getAddress());
+	}
+
+	/**
+	 * @return the encoded value of a field in the mapping, truncated to the
+	 *         addresses contained by the mapping
+	 */
+	private int[] getValues(Field field, ByteBuffer bits) {
+		int[] values = new int[Math.max(0, getSnapshotQuantity(field, bits.limit()))];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = bits.get(field.getAddress() + i);
+		}
+		return values;
+	}
+
+	private int[] getValues(Field field, ShortBuffer registers) {
+		int[] values = new int[Math.max(0, getSnapshotQuantity(field, registers.limit()))];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = registers.get(field.getAddress() + i) & 0xFFFF;
+		}
+		return values;
+	}
+
+	/**
+	 * Stores the encoded value of a field exchanged with the backend to the
+	 * snapshot, the change counters and the known values
+	 */
+	private void store(Field field, int[] values) {
+		if (snapshot != null && values.length > 0) {
+			snapshot.set(field.getRegisterType(), field.getAddress(), values.length, values);
+		}
+		if (values.length < field.getAddressQuantity()) {
+			return;
+		}
+		ChangeCounters counters = changeCounters;
+		if (counters != null && field.getRegisterType() == counters.getRegisterType()) {
+			counters.update(field, values);
+		}
+		knownValues.put(field, values);
+	}
+
+	private void restoreSnapshot(Field field, ByteBuffer bits) {
+		int quantity = getSnapshotQuantity(field, bits.limit());
+		if (quantity <= 0) {
+			return;
+		}
+		int[] values = new int[quantity];
+		snapshot.get(field.getRegisterType(), field.getAddress(), quantity, values);
+		for (int i = 0; i < quantity; i++) {
+			bits.put(field.getAddress() + i, (byte) values[i]);
+		}
+	}
+
+	private void restoreSnapshot(Field field, ShortBuffer registers) {
+		int quantity = getSnapshotQuantity(field, registers.limit());
+		if (quantity <= 0) {
+			return;
+		}
+		int[] values = new int[quantity];
+		snapshot.get(field.getRegisterType(), field.getAddress(), quantity, values);
+		for (int i = 0; i < quantity; i++) {
+			registers.put(field.getAddress() + i, (short) values[i]);
+		}
 	}
 
 	public int size() {
-		if (fields.isEmpty())
-			return 0;
-		Field field = fields.get(fields.size() - 1);
-		return field.getAddress() + field.getAddressQuantity();
+		return table.getSize();
 	}
 
 	@Override
@@ -82,115 +380,236 @@ public abstract class FieldModbusSlaveProcessor implements ModbusSlaveProcessor
 	public abstract void write(Field field, Object value) throws ModbusSlaveException;
 
 	@Override
-	public void read(int slaveId, short functionCode, int address, int addressQuantity, ModbusMapping mapping)
+	public void read(int slaveId, short functionCode, int address, int addressQuantity, RegisterMapping mapping)
 			throws ModbusSlaveException {
-		if (fields != null && !fields.isEmpty()) {
-			int nr = fields.size() - 1;
-			if (address + addressQuantity > fields.get(nr).getAddress() + fields.get(nr).getAddressQuantity()) {
-				throw new ModbusSlaveException("ILLEGAL DATA ADDRESS");
-			}
-		} else {
+		FieldTable table = this.table;
+		ChangeCounters counters = changeCounters;
+		if (counters != null && functionCode == FunctionCode.READ_INPUT_REGISTERS
+				&& counters.contains(address, addressQuantity)) {
+			readCounters(table, counters, address, addressQuantity, mapping);
+			return;
+		}
+		if (address + addressQuantity > table.getSize()) {
 			throw new ModbusSlaveException("ILLEGAL DATA ADDRESS");
 		}
-		for (Field field : fields) {
-			if (address <= field.getAddress() + field.getAddressQuantity()) {
-				Object value = read(field);
-				UInt8Array tabBits = null;
-				UInt16Array tabRegisters = null;
-				try {
-					// set field value to mapping
-					switch (field.getRegisterType()) {
-					case COILS:
-						if (functionCode != ModbusBase.MODBUS_FC_READ_COILS) {
-							throw new ModbusSlaveException("ILLEGAL FUNCTION");
-						}
-						tabBits = UInt8Array.frompointer(mapping.getTabBits());
-						mapper.set(tabBits, mapping.getNbBits(), field, value, "coil");
-						break;
-					case DISCRETE_INPUTS:
-						if (functionCode != ModbusBase.MODBUS_FC_READ_DISCRETE_INPUTS) {
-							throw new ModbusSlaveException("ILLEGAL FUNCTION");
-						}
-						tabBits = UInt8Array.frompointer(mapping.getTabInputBits());
-						mapper.set(tabBits, mapping.getNbInputBits(), field, value, "discrete input");
-						break;
-					case HOLDING_REGISTERS:
-						if (functionCode != ModbusBase.MODBUS_FC_READ_HOLDING_REGISTERS) {
-							throw new ModbusSlaveException("ILLEGAL FUNCTION");
-						}
-						tabRegisters = UInt16Array.frompointer(mapping.getTabRegisters());
-						mapper.set(tabRegisters, mapping.getNbRegisters(), field, value, "holding register");
-						break;
-					case INPUT_REGISTERS:
-						if (functionCode != ModbusBase.MODBUS_FC_READ_INPUT_REGISTERS) {
-							throw new ModbusSlaveException("ILLEGAL FUNCTION");
-						}
-						tabRegisters = UInt16Array.frompointer(mapping.getTabInputRegisters());
-						mapper.set(tabRegisters, mapping.getNbInputRegisters(), field, value, "input register");
-						break;
+		FieldTable.Index index = getIndex(table, functionCode, true /* read */);
+		if (address + addressQuantity > index.bound) {
+			throw new ModbusSlaveException("ILLEGAL DATA ADDRESS");
+		}
+		// tables of the mapping (the views access the tables without native
+		// calls)
+		ByteBuffer tabBits = index.isBits ? mapping.getBitsBuffer(index.isInput) : null;
+		ShortBuffer tabRegisters = index.isBits ? null : mapping.getRegistersView(index.isInput);
+		int end = address + addressQuantity;
+		for (int i = index.indexOf(address); i < index.fields.length && index.starts[i] < end; i++) {
+			Field field = index.fields[i];
+			// serve the last known value while the backend warms up
+			boolean fromSnapshot = isServedFromSnapshot(field);
+			Object value = null;
+			if (!fromSnapshot) {
+				value = read(field);
+				if (snapshot != null) {
+					warmedFields.add(field);
+				}
+			}
+			try {
+				// set field value to mapping
+				if (tabBits != null) {
+					if (fromSnapshot) {
+						restoreSnapshot(field, tabBits);
+					} else {
+						mapper.set(tabBits, field, value, index.description);
+						store(field, getValues(field, tabBits));
 					}
-
-				} catch (ModbusSlaveException ex) {
-					if (ex.getMessage().equals("ILLEGAL DATA ADDRESS") || ex.getMessage().equals("ILLEGAL FUNCTION")) {
-						throw ex;
+				} else {
+					if (fromSnapshot) {
+						restoreSnapshot(field, tabRegisters);
+					} else {
+						mapper.set(tabRegisters, field, value, index.description);
+						store(field, getValues(field, tabRegisters));
 					}
 				}
+			} catch (ModbusSlaveException ex) {
+				if (ex.getMessage().equals("ILLEGAL DATA ADDRESS") || ex.getMessage().equals("ILLEGAL FUNCTION")) {
+					throw ex;
+				}
+			} catch (Exception ex) {
+				// just ignore (we create the mapiing only for the size of request)
+			}
+		}
+	}
 
-				catch (Exception ex) {
-					// just ignore (we create the mapiing only for the size of request)
-				} finally {
-					if (tabBits != null) {
-						tabBits.delete();
-					} else if (tabRegisters != null) {
-						tabRegisters.delete();
-					}
+	private void readCounters(FieldTable table, ChangeCounters counters, int address, int addressQuantity,
+			RegisterMapping mapping) throws ModbusSlaveException {
+		// refresh the fields of the requested blocks
+		FieldTable.Index index = table.getIndex(counters.getRegisterType());
+		if (index != null) {
+			int start = counters.getBlockAddress(address);
+			int end = counters.getBlockAddress(address + addressQuantity);
+			for (int i = index.indexOf(start); i < index.fields.length && index.starts[i] < end; i++) {
+				Field field = index.fields[i];
+				if (!isServedFromSnapshot(field)) {
+					refresh(index, field);
 				}
 			}
 		}
+		ShortBuffer registers = mapping.getRegistersView(true /* input */);
+		for (int i = 0; i < addressQuantity; i++) {
+			registers.put(address + i, (short) counters.get(address - counters.getBaseAddress() + i));
+		}
 	}
 
-	@Override
-	public void write(int slaveId, short functionCode, int address, int addressQuantity, Date timeStamp,
-			ModbusMapping mapping) throws ModbusSlaveException {
+	/**
+	 * Reads a field from the backend and stores its encoded value, e.g. to
+	 * the change counters
+	 *
+	 * @return the encoded value
+	 */
+	private int[] refresh(FieldTable.Index index, Field field) throws ModbusSlaveException {
+		Object value = read(field);
+		if (snapshot != null) {
+			warmedFields.add(field);
+		}
+		int[] values = encode(index, field, value);
+		store(field, values);
+		return values;
+	}
 
-		for (Field field : fields) {
-			if (address >= field.getAddress() && address <= field.getAddress() + field.getAddressQuantity()) {
-				UInt8Array tabBits = null;
-				UInt16Array tabRegisters = null;
-				try {
-					Object value = null;
-					// get field value from mapping
-					switch (field.getRegisterType()) {
-					case COILS:
-						if (functionCode != ModbusBase.MODBUS_FC_WRITE_SINGLE_COIL
-								|| functionCode != ModbusBase.MODBUS_FC_WRITE_MULTIPLE_COILS) {
-							throw new ModbusSlaveException("ILLEGAL FUNCTION");
-						}
-						tabBits = UInt8Array.frompointer(mapping.getTabBits());
-						value = mapper.get(tabBits, mapping.getNbBits(), field, "coil");
-						break;
-					case HOLDING_REGISTERS:
-						if (functionCode != ModbusBase.MODBUS_FC_WRITE_SINGLE_REGISTER
-								|| functionCode != ModbusBase.MODBUS_FC_WRITE_MULTIPLE_REGISTERS) {
-							throw new ModbusSlaveException("ILLEGAL FUNCTION");
-						}
-
-						tabRegisters = UInt16Array.frompointer(mapping.getTabRegisters());
-						value = mapper.get(tabRegisters, mapping.getNbRegisters(), field, "holding register");
-						break;
-					default:
-						throw new ModbusSlaveException("ILLEGAL FUNCTION");
+	/**
+	 * Encodes the value of a field to a table starting at the address of the
+	 * field
+	 */
+	private int[] encode(FieldTable.Index index, Field field, Object value) throws ModbusSlaveException {
+		int[] values = new int[field.getAddressQuantity()];
+		if (index.isBits) {
+			Field local = new Field(field.getRegisterType(), field.getDataType(), 0, field.getAddressQuantity());
+			ByteBuffer bits = ByteBuffer.allocate(values.length);
+			mapper.set(bits, local, value, index.description);
+			for (int i = 0; i < values.length; i++) {
+				values[i] = bits.get(i);
+			}
+		} else {
+			ShortBuffer registers = ShortBuffer.allocate(values.length);
+			mapper.set(registers, 0, field, value, index.description);
+			for (int i = 0; i < values.length; i++) {
+				values[i] = registers.get(i) & 0xFFFF;
+			}
+		}
+		return values;
+	}
 
-					}
-					// set field value to module
-					write(field, value);
-				} finally {
-					if (tabBits != null) {
-						tabBits.delete();
-					} else if (tabRegisters != null) {
-						tabRegisters.delete();
-					}
-				}
+	/**
+	 * Decodes the value of a field from a table starting at the address of the
+	 * field
+	 */
+	private Object decode(FieldTable.Index index, Field field, int[] values) throws ModbusSlaveException {
+		if (index.isBits) {
+			ByteBuffer bits = ByteBuffer.allocate(values.length);
+			for (int i = 0; i < values.length; i++) {
+				bits.put(i, (byte) values[i]);
+			}
+			return mapper.get(bits, 0, field, index.description);
+		}
+		ShortBuffer registers = ShortBuffer.allocate(values.length);
+		for (int i = 0; i < values.length; i++) {
+			registers.put(i, (short) values[i]);
+		}
+		return mapper.get(registers, 0, field, index.description);
+	}
+
+	/**
+	 * @return the index of the register type accessed by a function code
+	 */
+	private FieldTable.Index getIndex(FieldTable table, short functionCode, boolean read) throws ModbusSlaveException {
+		RegisterType type = null;
+		if (read) {
+			if (functionCode == FunctionCode.READ_COILS) {
+				type = RegisterType.COILS;
+			} else if (functionCode == FunctionCode.READ_DISCRETE_INPUTS) {
+				type = RegisterType.DISCRETE_INPUTS;
+			} else if (functionCode == FunctionCode.READ_HOLDING_REGISTERS) {
+				type = RegisterType.HOLDING_REGISTERS;
+			} else if (functionCode == FunctionCode.READ_INPUT_REGISTERS) {
+				type = RegisterType.INPUT_REGISTERS;
+			}
+		} else if (functionCode == FunctionCode.WRITE_SINGLE_COIL
+				|| functionCode == FunctionCode.WRITE_MULTIPLE_COILS) {
+			type = RegisterType.COILS;
+		} else if (functionCode == FunctionCode.WRITE_SINGLE_REGISTER
+				|| functionCode == FunctionCode.WRITE_MULTIPLE_REGISTERS) {
+			type = RegisterType.HOLDING_REGISTERS;
+		}
+		FieldTable.Index index = type == null ? null : table.getIndex(type);
+		// no fields of the register type
+		if (index == null) {
+			throw new ModbusSlaveException("ILLEGAL FUNCTION");
+		}
+		return index;
+	}
+
+	/**
+	 * Writes the fields changed by a request. The map contains the fields
+	 * overlapping the addresses of the request whose encoded values differ
+	 * from the values last exchanged with the backend (read or written), in
+	 * the order of their addresses. A change of the backend is therefore
+	 * detected by the next read of the field. It is called once per request
+	 * and not at all if no value has changed. Fields which have been written
+	 * partially are completed by the current values of the backend.
+	 * <p>
+	 * The default implementation calls {@link #write(Field, Object)} for each
+	 * field. Implementations may override it to apply the values as one
+	 * transaction.
+	 * </p>
+	 */
+	public void writeAll(Map<Field, Object> changed) throws ModbusSlaveException {
+		for (Map.Entry<Field, Object> entry : changed.entrySet()) {
+			write(entry.getKey(), entry.getValue());
+		}
+	}
+
+	@Override
+	public void write(int slaveId, short functionCode, int address, int addressQuantity, Date timeStamp,
+			RegisterMapping mapping) throws ModbusSlaveException {
+		FieldTable.Index index = getIndex(table, functionCode, false /* read */);
+		ByteBuffer tabBits = index.isBits ? mapping.getBitsBuffer(false /* input */) : null;
+		ShortBuffer tabRegisters = index.isBits ? null : mapping.getRegistersView(false /* input */);
+		int end = address + addressQuantity;
+		Map<Field, Object> changed = new LinkedHashMap<>();
+		Map<Field, int[]> changedValues = new LinkedHashMap<>();
+		for (int i = index.indexOf(address); i < index.fields.length && index.starts[i] < end; i++) {
+			Field field = index.fields[i];
+			int[] known;
+			int[] values;
+			if (address <= index.starts[i] && index.ends[i] <= end) {
+				known = knownValues.get(field);
+				values = new int[field.getAddressQuantity()];
+			} else {
+				// complete a partially written field by the backend
+				known = refresh(index, field);
+				values = known.clone();
+			}
+			// overlay the written addresses
+			for (int a = Math.max(address, index.starts[i]); a < Math.min(end, index.ends[i]); a++) {
+				values[a - index.starts[i]] = tabBits != null ? tabBits.get(a) : tabRegisters.get(a) & 0xFFFF;
+			}
+			if (Arrays.equals(values, known)) {
+				continue;
+			}
+			changed.put(field, decode(index, field, values));
+			changedValues.put(field, values);
+		}
+		if (changed.isEmpty()) {
+			return;
+		}
+		// set field values to module
+		writeAll(changed);
+		for (Map.Entry<Field, int[]> entry : changedValues.entrySet()) {
+			store(entry.getKey(), entry.getValue());
+		}
+		// publish the committed changes only
+		if (changeFeed != null) {
+			for (Map.Entry<Field, Object> entry : changed.entrySet()) {
+				changeFeed.publish(entry.getKey(), entry.getValue(), timeStamp, slaveId, ModbusSlave.getCurrentClient());
 			}
 		}
 	}
@@ -0,0 +1,150 @@
+package havis.util.modbus.slave;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import havis.util.modbus.Field;
+import havis.util.modbus.RegisterType;
+
+/**
+ * Immutable table of the fields of a {@link FieldModbusSlaveProcessor} with
+ * an index per register type. A new table is published for each change of
+ * the fields, so a request always uses one consistent table. The fields must
+ * not be modified after they have been passed to a table.
+ */
+public final class FieldTable {
+
+	/**
+	 * Fields of one register type sorted by address
+	 */
+	static final class Index {
+		final Field[] fields;
+		final int[] starts;
+		final int[] ends;
+		// end address of the highest field
+		final int bound;
+		// table of the mapping
+		final boolean isBits;
+		final boolean isInput;
+		final String description;
+
+		private Index(RegisterType type, List<Field> typeFields) {
+			fields = typeFields.toArray(new Field[typeFields.size()]);
+			Arrays.sort(fields, new Comparator<Field>() {
+				@Override
+				public int compare(Field f1, Field f2) {
+					return Integer.compare(f1.getAddress(), f2.getAddress());
+				}
+			});
+			starts = new int[fields.length];
+			ends = new int[fields.length];
+			int max = 0;
+			for (int i = 0; i < fields.length; i++) {
+				starts[i] = fields[i].getAddress();
+				ends[i] = fields[i].getAddress() + fields[i].getAddressQuantity();
+				max = Math.max(max, ends[i]);
+			}
+			bound = max;
+			isBits = type == RegisterType.COILS || type == RegisterType.DISCRETE_INPUTS;
+			isInput = type == RegisterType.DISCRETE_INPUTS || type == RegisterType.INPUT_REGISTERS;
+			switch (type) {
+			case COILS:
+				description = "coil";
+				break;
+			case DISCRETE_INPUTS:
+				description = "discrete input";
+				break;
+			case HOLDING_REGISTERS:
+				description = "holding register";
+				break;
+			default:
+				description = "input register";
+			}
+		}
+
+		/**
+		 * @return the index of the first field ending after the address, i.e.
+		 *         containing the address or starting after it (fields must not
+		 *         overlap)
+		 */
+		int indexOf(int address) {
+			// first field starting after the address
+			int low = 0;
+			int high = starts.length;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (starts[mid] <= address) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
+			}
+			// include the preceding fields containing the address (the end
+			// is exclusive)
+			while (low > 0 && ends[low - 1] > address) {
+				low--;
+			}
+			return low;
+		}
+	}
+
+	private final long version;
+	private final List<Field> fields;
+	private final int size;
+	private final Map<RegisterType, Index> indices = new EnumMap<>(RegisterType.class);
+
+	FieldTable(List<Field> fields, long version) {
+		this.version = version;
+		this.fields = fields == null ? Collections.<Field> emptyList() : Collections.unmodifiableList(new ArrayList<>(fields));
+		Map<RegisterType, List<Field>> byType = new EnumMap<>(RegisterType.class);
+		int max = 0;
+		for (Field field : this.fields) {
+			List<Field> typeFields = byType.get(field.getRegisterType());
+			if (typeFields == null) {
+				typeFields = new ArrayList<>();
+				byType.put(field.getRegisterType(), typeFields);
+			}
+			typeFields.add(field);
+			max = Math.max(max, field.getAddress() + field.getAddressQuantity());
+		}
+		size = max;
+		for (Map.Entry<RegisterType, List<Field>> entry : byType.entrySet()) {
+			indices.put(entry.getKey(), new Index(entry.getKey(), entry.getValue()));
+		}
+	}
+
+	/**
+	 * @return the version of the table, incremented with each change of the
+	 *         fields of a processor
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * @return the fields in the order they have been passed
+	 */
+	public List<Field> getFields() {
+		return fields;
+	}
+
+	/**
+	 * @return the highest end address of all fields
+	 */
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * @return the index of a register type or null if there are no fields of
+	 *         the type
+	 */
+	Index getIndex(RegisterType type) {
+		return indices.get(type);
+	}
+}
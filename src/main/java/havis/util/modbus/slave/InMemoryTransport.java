@@ -0,0 +1,159 @@
+package havis.util.modbus.slave;
+
+import java.util.Date;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import havis.util.modbus.FunctionCode;
+import havis.util.modbus.HeapMapping;
+import havis.util.modbus.ModbusTransport;
+import havis.util.modbus.RegisterMapping;
+
+/**
+ * Serves master requests directly by a {@link ModbusSlaveProcessor} with a
+ * {@link HeapMapping} per request, without sockets and without the native
+ * library. The request path from the mapping to the backend is the same as
+ * for a {@link ModbusSlave}, so the processor and the value conversion can be
+ * tested and measured in isolation.
+ */
+public class InMemoryTransport implements ModbusTransport {
+
+	private static final Logger log = Logger.getLogger(InMemoryTransport.class.getName());
+
+	private final ModbusSlaveProcessor slaveProcessor;
+	private int slaveId = 0xFF;
+	private volatile String lastError;
+
+	public InMemoryTransport(ModbusSlaveProcessor slaveProcessor) {
+		this.slaveProcessor = slaveProcessor;
+	}
+
+	/**
+	 * @return the exception message of the last failed request (e.g.
+	 *         "ILLEGAL DATA ADDRESS") or null
+	 */
+	public String getLastError() {
+		return lastError;
+	}
+
+	@Override
+	public int setSlave(int slaveId) {
+		this.slaveId = slaveId;
+		return 0;
+	}
+
+	@Override
+	public int readBits(int address, boolean[] readValues) {
+		return readBits(FunctionCode.READ_COILS, address, readValues);
+	}
+
+	@Override
+	public int readInputBits(int address, boolean[] readValues) {
+		return readBits(FunctionCode.READ_DISCRETE_INPUTS, address, readValues);
+	}
+
+	@Override
+	public int readRegisters(int address, short[] readValues) {
+		return readRegisters(FunctionCode.READ_HOLDING_REGISTERS, address, readValues);
+	}
+
+	@Override
+	public int readInputRegisters(int address, short[] readValues) {
+		return readRegisters(FunctionCode.READ_INPUT_REGISTERS, address, readValues);
+	}
+
+	@Override
+	public int writeBits(int address, boolean[] writeValues) {
+		int quantity = writeValues.length;
+		if (!check(address, quantity, 1968)) {
+			return -1;
+		}
+		HeapMapping mapping = new HeapMapping(address + quantity, 0, 0, 0);
+		byte[] bits = new byte[quantity];
+		for (int i = 0; i < quantity; i++) {
+			bits[i] = (byte) (writeValues[i] ? 1 : 0);
+		}
+		mapping.setBits(false /* input */, address, bits);
+		return write(FunctionCode.WRITE_MULTIPLE_COILS, address, quantity, mapping) ? quantity : -1;
+	}
+
+	@Override
+	public int writeRegisters(int address, short[] writeValues) {
+		int quantity = writeValues.length;
+		if (!check(address, quantity, 123)) {
+			return -1;
+		}
+		HeapMapping mapping = new HeapMapping(0, 0, address + quantity, 0);
+		mapping.setRegisters(false /* input */, address, writeValues);
+		return write(FunctionCode.WRITE_MULTIPLE_REGISTERS, address, quantity, mapping) ? quantity : -1;
+	}
+
+	private int readBits(short functionCode, int address, boolean[] readValues) {
+		int quantity = readValues.length;
+		if (!check(address, quantity, 2000)) {
+			return -1;
+		}
+		boolean input = functionCode == FunctionCode.READ_DISCRETE_INPUTS;
+		HeapMapping mapping = input ? new HeapMapping(0, address + quantity, 0, 0) : new HeapMapping(address + quantity, 0, 0, 0);
+		if (!read(functionCode, address, quantity, mapping)) {
+			return -1;
+		}
+		byte[] bits = new byte[quantity];
+		mapping.getBits(input, address, bits);
+		for (int i = 0; i < quantity; i++) {
+			readValues[i] = bits[i] != 0;
+		}
+		return quantity;
+	}
+
+	private int readRegisters(short functionCode, int address, short[] readValues) {
+		int quantity = readValues.length;
+		if (!check(address, quantity, 125)) {
+			return -1;
+		}
+		boolean input = functionCode == FunctionCode.READ_INPUT_REGISTERS;
+		HeapMapping mapping = input ? new HeapMapping(0, 0, 0, address + quantity) : new HeapMapping(0, 0, address + quantity, 0);
+		if (!read(functionCode, address, quantity, mapping)) {
+			return -1;
+		}
+		mapping.getRegisters(input, address, readValues);
+		return quantity;
+	}
+
+	private boolean check(int address, int quantity, int maxQuantity) {
+		if (quantity < 1 || quantity > maxQuantity) {
+			lastError = "ILLEGAL DATA VALUE";
+			return false;
+		}
+		if (address < 0 || address + quantity > 0x10000) {
+			lastError = "ILLEGAL DATA ADDRESS";
+			return false;
+		}
+		return true;
+	}
+
+	private boolean read(short functionCode, int address, int quantity, RegisterMapping mapping) {
+		try {
+			slaveProcessor.read(slaveId, functionCode, address, quantity, mapping);
+			return true;
+		} catch (ModbusSlaveException e) {
+			return failed(functionCode, e);
+		}
+	}
+
+	private boolean write(short functionCode, int address, int quantity, RegisterMapping mapping) {
+		try {
+			slaveProcessor.write(slaveId, functionCode, address, quantity, new Date(), mapping);
+			return true;
+		} catch (ModbusSlaveException e) {
+			return failed(functionCode, e);
+		}
+	}
+
+	private boolean failed(short functionCode, ModbusSlaveException e) {
+		if (log.isLoggable(Level.FINE))
+			log.log(Level.FINE, "Request of function " + functionCode + " failed", e);
+		lastError = e.getMessage();
+		return false;
+	}
+}
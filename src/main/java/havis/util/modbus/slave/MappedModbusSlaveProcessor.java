@@ -0,0 +1,157 @@
+package havis.util.modbus.slave;
+
+import java.util.Date;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import havis.util.modbus.FunctionCode;
+import havis.util.modbus.MappedRegisterImage;
+import havis.util.modbus.RegisterMapping;
+import havis.util.modbus.RegisterType;
+
+/**
+ * Answers requests directly from a {@link MappedRegisterImage} which may be
+ * updated by other processes. Client writes to coils and holding registers are
+ * stored in the image.
+ */
+public class MappedModbusSlaveProcessor implements ModbusSlaveProcessor {
+
+	private static final Logger log = Logger.getLogger(MappedModbusSlaveProcessor.class.getName());
+
+	private MappedRegisterImage image;
+	private int maxConnectionCount;
+	private ModbusSlave slave;
+	private ExecutorService threadPool;
+	private Future<?> future;
+	private ModbusServer server;
+	private ModbusSlaveConfiguration configuration = new ModbusSlaveConfiguration();
+
+	public MappedModbusSlaveProcessor(MappedRegisterImage image, int maxConnectionCount) {
+		this.image = image;
+		this.maxConnectionCount = maxConnectionCount;
+	}
+
+	/**
+	 * @return the slave of the last start, e.g. for reading the metrics of its
+	 *         write stage
+	 */
+	public ModbusSlave getSlave() {
+		return slave;
+	}
+
+	public ModbusSlaveConfiguration getConfiguration() {
+		return configuration;
+	}
+
+	public void setConfiguration(ModbusSlaveConfiguration configuration) {
+		this.configuration = configuration;
+	}
+
+	public void start(final int port) {
+		slave = new ModbusSlave(this, maxConnectionCount, configuration);
+		threadPool = Executors.newFixedThreadPool(1);
+		future = threadPool.submit(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					slave.open(port);
+					slave.run();
+				} catch (Throwable e) {
+					log.log(Level.SEVERE, "Execution of modbus slave failed", e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Starts the slave on a port served by the event loop of a shared server
+	 * instead of a thread of its own
+	 */
+	public void start(ModbusServer server, int port) throws ModbusSlaveException {
+		slave = new ModbusSlave(this, maxConnectionCount, configuration);
+		server.open(slave, port);
+		this.server = server;
+	}
+
+	public void stop(int openCloseTimeout) throws ModbusSlaveException {
+		if (future != null) {
+			try {
+				slave.close(openCloseTimeout);
+				future.get();
+				future = null;
+			} catch (Exception e) {
+				log.log(Level.SEVERE, "Cannot close modbus slave", e);
+			}
+			threadPool.shutdown();
+		}
+		if (server != null) {
+			try {
+				server.close(slave, openCloseTimeout);
+			} catch (ModbusSlaveException e) {
+				log.log(Level.SEVERE, "Cannot close modbus slave", e);
+			}
+			server = null;
+		}
+	}
+
+	@Override
+	public void connect() throws ModbusSlaveException {
+	}
+
+	@Override
+	public void disconnect() throws ModbusSlaveException {
+	}
+
+	private RegisterType getRegisterType(short functionCode) throws ModbusSlaveException {
+		if (functionCode == FunctionCode.READ_COILS // 1
+				|| functionCode == FunctionCode.WRITE_SINGLE_COIL // 5
+				|| functionCode == FunctionCode.WRITE_MULTIPLE_COILS) { // 15
+			return RegisterType.COILS;
+		} else if (functionCode == FunctionCode.READ_DISCRETE_INPUTS) { // 2
+			return RegisterType.DISCRETE_INPUTS;
+		} else if (functionCode == FunctionCode.READ_HOLDING_REGISTERS // 3
+				|| functionCode == FunctionCode.WRITE_SINGLE_REGISTER // 6
+				|| functionCode == FunctionCode.WRITE_MULTIPLE_REGISTERS) { // 16
+			return RegisterType.HOLDING_REGISTERS;
+		} else if (functionCode == FunctionCode.READ_INPUT_REGISTERS) { // 4
+			return RegisterType.INPUT_REGISTERS;
+		}
+		throw new ModbusSlaveException("ILLEGAL FUNCTION");
+	}
+
+	@Override
+	public void read(int slaveId, short functionCode, int address, int addressQuantity, RegisterMapping mapping) throws ModbusSlaveException {
+		RegisterType type = getRegisterType(functionCode);
+		if (address + addressQuantity > image.getCount(type)) {
+			throw new ModbusSlaveException("ILLEGAL DATA ADDRESS");
+		}
+		// copy the mapped region directly to the tables of the mapping
+		switch (type) {
+		case COILS:
+		case DISCRETE_INPUTS:
+			image.read(type, address, addressQuantity, mapping.getBitsBuffer(type == RegisterType.DISCRETE_INPUTS), address);
+			break;
+		default:
+			image.read(type, address, addressQuantity, mapping.getRegistersView(type == RegisterType.INPUT_REGISTERS), address);
+			break;
+		}
+	}
+
+	@Override
+	public void write(int slaveId, short functionCode, int address, int addressQuantity, Date timeStamp, RegisterMapping mapping)
+			throws ModbusSlaveException {
+		RegisterType type = getRegisterType(functionCode);
+		if (address + addressQuantity > image.getCount(type)) {
+			throw new ModbusSlaveException("ILLEGAL DATA ADDRESS");
+		}
+		// copy the tables of the mapping directly to the mapped region
+		if (type == RegisterType.COILS) {
+			image.write(type, address, addressQuantity, mapping.getBitsBuffer(false /* input */), address);
+		} else {
+			image.write(type, address, addressQuantity, mapping.getRegistersView(false /* input */), address);
+		}
+	}
+}
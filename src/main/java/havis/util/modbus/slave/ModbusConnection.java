@@ -0,0 +1,75 @@
+package havis.util.modbus.slave;
+
+/**
+ * A client connection of a {@link ModbusSlave}. Responses must only be sent
+ * while holding the monitor of the connection and the connection is not
+ * closed, because the socket may be reused by the operating system as soon
+ * as it has been closed.
+ */
+class ModbusConnection {
+
+	private final int socket;
+	private boolean closed;
+	private final ClientStats stats;
+	// time of the last request in ns
+	private volatile long lastActivity = System.nanoTime();
+
+	// token bucket of the rate limit
+	private double tokens = -1;
+	private long refillTime;
+
+	ModbusConnection(int socket) {
+		this.socket = socket;
+		stats = new ClientStats(socket);
+	}
+
+	int getSocket() {
+		return socket;
+	}
+
+	boolean isClosed() {
+		return closed;
+	}
+
+	void setClosed() {
+		closed = true;
+	}
+
+	void touch() {
+		lastActivity = System.nanoTime();
+	}
+
+	/**
+	 * @return the time in ms since the last request or the connect
+	 */
+	long getIdleTime() {
+		return (System.nanoTime() - lastActivity) / 1000000;
+	}
+
+	ClientStats getStats() {
+		return stats;
+	}
+
+	/**
+	 * Takes a token for a request. The bucket holds the requests of one
+	 * second.
+	 *
+	 * @param rate
+	 *            the max. number of requests per second
+	 * @return false if the rate limit has been exceeded
+	 */
+	synchronized boolean tryAcquire(int rate) {
+		long now = System.nanoTime();
+		if (tokens < 0) {
+			tokens = rate;
+		} else {
+			tokens = Math.min(rate, tokens + (now - refillTime) * rate / 1e9);
+		}
+		refillTime = now;
+		if (tokens < 1) {
+			return false;
+		}
+		tokens--;
+		return true;
+	}
+}
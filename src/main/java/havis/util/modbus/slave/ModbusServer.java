@@ -0,0 +1,150 @@
+package havis.util.modbus.slave;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runtime serving many slaves, each on a port of its own, with a fixed number
+ * of event loop threads. A loop waits for the sockets of all its slaves with
+ * one select call, so the number of threads does not grow with the number of
+ * slaves.
+ * <p>
+ * The slaves may use a dispatcher and a write stage but neither native serving
+ * nor a thread per connection.
+ */
+public class ModbusServer {
+
+	private static final Logger log = Logger.getLogger(ModbusServer.class.getName());
+
+	private final EventLoop[] loops;
+	private final Map<ModbusSlave, EventLoop> slaves = new HashMap<>();
+
+	/**
+	 * Creates a server with one loop per processor
+	 */
+	public ModbusServer() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	public ModbusServer(int loopCount) {
+		loops = new EventLoop[Math.max(1, loopCount)];
+		for (int i = 0; i < loops.length; i++) {
+			loops[i] = new EventLoop("modbus-loop-" + i);
+		}
+	}
+
+	public int getLoopCount() {
+		return loops.length;
+	}
+
+	/**
+	 * @return the number of open slaves
+	 */
+	public synchronized int getSlaveCount() {
+		return slaves.size();
+	}
+
+	/**
+	 * Opens the server socket of a slave and serves it by the loop with the
+	 * fewest slaves. The listeners of a sharded port (see
+	 * {@link ModbusSlaveConfiguration#getListenerCount()}) are distributed
+	 * among the loops.
+	 */
+	public void open(ModbusSlave slave, int port) throws ModbusSlaveException {
+		slave.open(port);
+		List<ModbusSlave> listeners = new ArrayList<>(slave.getShards());
+		listeners.add(slave);
+		try {
+			for (ModbusSlave listener : listeners) {
+				listener.attach();
+			}
+		} catch (ModbusSlaveException e) {
+			for (ModbusSlave listener : listeners) {
+				listener.detach();
+			}
+			throw e;
+		}
+		synchronized (this) {
+			for (ModbusSlave listener : listeners) {
+				EventLoop loop = loops[0];
+				for (EventLoop l : loops) {
+					if (l.getSlaveCount() < loop.getSlaveCount()) {
+						loop = l;
+					}
+				}
+				slaves.put(listener, loop);
+				loop.add(listener);
+			}
+		}
+	}
+
+	/**
+	 * Stops serving a slave and closes it
+	 */
+	public void close(ModbusSlave slave, int openCloseTimeout) throws ModbusSlaveException {
+		// the primary listener disconnects the backend after the others
+		for (ModbusSlave shard : slave.getShards()) {
+			try {
+				remove(shard, openCloseTimeout);
+			} catch (ModbusSlaveException e) {
+				log.log(Level.SEVERE, "Cannot close listener", e);
+			}
+		}
+		slave.getShards().clear();
+		remove(slave, openCloseTimeout);
+	}
+
+	private void remove(ModbusSlave slave, int openCloseTimeout) throws ModbusSlaveException {
+		EventLoop loop;
+		synchronized (this) {
+			loop = slaves.remove(slave);
+		}
+		if (loop == null) {
+			return;
+		}
+		slave.setCloseTimeout(openCloseTimeout);
+		try {
+			loop.remove(slave).get(openCloseTimeout, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			throw new ModbusSlaveException("Cannot close back end within " + openCloseTimeout + "ms");
+		} catch (Exception e) {
+			throw new ModbusSlaveException("Closing failed", e);
+		}
+	}
+
+	/**
+	 * Closes all slaves and stops the loops
+	 */
+	public void shutdown(int openCloseTimeout) throws ModbusSlaveException {
+		List<ModbusSlave> open = new ArrayList<>();
+		synchronized (this) {
+			for (ModbusSlave slave : slaves.keySet()) {
+				// shards are closed with their primary listener
+				if (!slave.isShard()) {
+					open.add(slave);
+				}
+			}
+		}
+		for (ModbusSlave slave : open) {
+			try {
+				close(slave, openCloseTimeout);
+			} catch (ModbusSlaveException e) {
+				log.log(Level.SEVERE, "Cannot close modbus slave", e);
+			}
+		}
+		try {
+			for (EventLoop loop : loops) {
+				loop.shutdown();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ModbusSlaveException("Shutdown interrupted", e);
+		}
+	}
+}
@@ -1,7 +1,24 @@
 package havis.util.modbus.slave;
 
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -12,6 +29,7 @@ import havis.util.modbus.Floater;
 import havis.util.modbus.IntArray;
 import havis.util.modbus.ModbusBase;
 import havis.util.modbus.ModbusMapping;
+import havis.util.modbus.ModbusRequestHandler;
 import havis.util.modbus.ModbusTcpPi;
 import havis.util.modbus.UInt16Array;
 import havis.util.modbus.UInt8Array;
@@ -20,8 +38,13 @@ public class ModbusSlave implements Floater {
 
 	private static final Logger log = Logger.getLogger(ModbusSlave.class.getName());
 
+	// connection of the request currently processed by a thread
+	private static final ThreadLocal<ModbusConnection> currentConnection = new ThreadLocal<>();
+
 	private ModbusSlaveProcessor slaveProcessor;
 	private int maxConnectionCount;
+	private ModbusSlaveConfiguration configuration;
+	private int port;
 	private int serverSocket = -1;
 	private ModbusTcpPi ctx = null;
 
@@ -29,12 +52,71 @@ public class ModbusSlave implements Floater {
 	private Condition stopped = lock.newCondition();
 	private int stopState;
 
+	private Object connectionLock = new Object();
+	private int connectionCount;
+	private boolean isSlaveProcessorConnected;
+	// contexts of the connections served by own threads
+	private Set<ModbusTcpPi> connections = new HashSet<>();
+	// connections multiplexed by the slave thread
+	private Map<Integer, ModbusConnection> socketConnections = new ConcurrentHashMap<>();
+	private Semaphore backendPermits;
+	private RequestDispatcher dispatcher;
+	private volatile WriteStage writeStage;
+	private BackendGuard backendGuard;
+	// time in ms to wait for the backend calls when closing
+	private volatile int closeTimeout = 5000;
+	// the primary listener of a sharded port or null
+	private ModbusSlave parent;
+	// the further listeners of a sharded port
+	private List<ModbusSlave> shards = new ArrayList<>();
+	private ExecutorService shardThreads;
+	// values of the last successful reads by request for stale responses
+	private Map<Long, int[]> lastValues = new LinkedHashMap<Long, int[]>(16, 0.75f, true /* accessOrder */) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, int[]> eldest) {
+			return size() > MAX_LAST_VALUES;
+		}
+	};
+
+	private static final int MAX_LAST_VALUES = 4096;
+
 	public ModbusSlave(ModbusSlaveProcessor slaveProcessor, int maxConnectionCount) {
+		this(slaveProcessor, maxConnectionCount, new ModbusSlaveConfiguration());
+	}
+
+	public ModbusSlave(ModbusSlaveProcessor slaveProcessor, int maxConnectionCount, ModbusSlaveConfiguration configuration) {
 		this.slaveProcessor = slaveProcessor;
 		this.maxConnectionCount = maxConnectionCount;
+		this.configuration = configuration;
+		if (configuration.getMaxConcurrency() > 0) {
+			backendPermits = new Semaphore(configuration.getMaxConcurrency(), true /* fair */);
+		}
+	}
+
+	/**
+	 * Creates a further listener of a sharded port sharing the backend of the
+	 * primary listener
+	 */
+	private ModbusSlave(ModbusSlave parent) {
+		this(parent.slaveProcessor, parent.maxConnectionCount, parent.configuration);
+		this.parent = parent;
+		backendPermits = parent.backendPermits;
+		lastValues = parent.lastValues;
+	}
+
+	/**
+	 * @return the socket of the client whose request is processed by the
+	 *         current thread or -1 if the thread does not process a request
+	 */
+	public static int getCurrentClient() {
+		ModbusConnection connection = currentConnection.get();
+		return connection == null ? -1 : connection.getSocket();
 	}
 
 	public void open(int port) throws ModbusSlaveException {
+		this.port = port;
 		ctx = new ModbusTcpPi();
 		if (log.isLoggable(Level.INFO)) {
 			log.log(Level.INFO, "Opening server socket on port " + port);
@@ -48,7 +130,8 @@ public class ModbusSlave implements Floater {
 		// set debug mode
 		ctx.setDebug(log.isLoggable(Level.FINE));
 		// open slave
-		serverSocket = ctx.tcpPiListen(maxConnectionCount);
+		boolean isSharded = configuration.getListenerCount() > 1;
+		serverSocket = ctx.tcpPiListen(maxConnectionCount, isSharded);
 		if (serverSocket < 0) {
 			String msg = "Unable to open slave: " + ctx.getErrNo() + " " + ctx.strError(ctx.getErrNo());
 			// destroy context
@@ -58,12 +141,31 @@ public class ModbusSlave implements Floater {
 			ctx = null;
 			throw new ModbusSlaveException(msg);
 		}
+		if (isSharded && parent == null) {
+			// further listeners on the same port
+			try {
+				for (int i = 1; i < configuration.getListenerCount(); i++) {
+					ModbusSlave shard = new ModbusSlave(this);
+					shard.open(port);
+					shards.add(shard);
+				}
+			} catch (ModbusSlaveException e) {
+				for (ModbusSlave shard : shards) {
+					shard.detach();
+				}
+				shards.clear();
+				detach();
+				throw e;
+			}
+		}
 	}
 
 	public void close(int openCloseTimeout) throws ModbusSlaveException {
 		if (ctx == null) {
 			return;
 		}
+		closeTimeout = openCloseTimeout;
+		closeShards(openCloseTimeout);
 		if (serverSocket >= 0) {
 			lock.lock();
 			try {
@@ -101,6 +203,30 @@ public class ModbusSlave implements Floater {
 		}
 	}
 
+	private void closeShards(int openCloseTimeout) {
+		for (ModbusSlave shard : shards) {
+			try {
+				shard.close(openCloseTimeout);
+			} catch (ModbusSlaveException e) {
+				log.log(Level.SEVERE, "Cannot close listener", e);
+			}
+		}
+		shards.clear();
+		if (shardThreads != null) {
+			shardThreads.shutdown();
+			shardThreads = null;
+		}
+	}
+
+	private boolean isStopping() {
+		lock.lock();
+		try {
+			return stopState == 1;
+		} finally {
+			lock.unlock();
+		}
+	}
+
 	private boolean isClosing() {
 		lock.lock();
 		try {
@@ -115,7 +241,7 @@ public class ModbusSlave implements Floater {
 		}
 	}
 
-	private ModbusMapping createMapping(int functionCode, int address, int addressQuantity) {
+	private ModbusMapping createMapping(ModbusBase ctx, int functionCode, int address, int addressQuantity) {
 		// increase size of mapping for requested addresses
 		int maxAddress = address + addressQuantity;
 		int nbBits, nbInputBits, nbRegisters, nbInputRegisters;
@@ -139,261 +265,1179 @@ public class ModbusSlave implements Floater {
 				nbInputRegisters/* inputRegisters */);
 	}
 
+	private void connectionOpened() {
+		if (parent != null) {
+			// the listeners of a sharded port share the backend
+			parent.connectionOpened();
+			return;
+		}
+		synchronized (connectionLock) {
+			connectionCount++;
+			if (!isSlaveProcessorConnected) {
+				try {
+					// connect slave processor
+					slaveProcessor.connect();
+					isSlaveProcessorConnected = true;
+				} catch (ModbusSlaveException e) {
+					log.log(Level.SEVERE, "Cannot initialize backend", e);
+				}
+			}
+		}
+	}
+
+	private void connectionClosed() {
+		if (parent != null) {
+			parent.connectionClosed();
+			return;
+		}
+		synchronized (connectionLock) {
+			connectionCount--;
+			if (connectionCount == 0 && isSlaveProcessorConnected) {
+				// disconnect slave processor
+				try {
+					slaveProcessor.disconnect();
+					isSlaveProcessorConnected = false;
+				} catch (ModbusSlaveException e) {
+					log.log(Level.SEVERE, "Cannot clean up backend", e);
+				}
+			}
+		}
+	}
+
+	private boolean isSlaveProcessorConnected() {
+		if (parent != null) {
+			return parent.isSlaveProcessorConnected();
+		}
+		synchronized (connectionLock) {
+			return isSlaveProcessorConnected;
+		}
+	}
+
+	private void disconnectSlaveProcessor() {
+		if (parent != null) {
+			// disconnected by the primary listener
+			return;
+		}
+		synchronized (connectionLock) {
+			if (isSlaveProcessorConnected) {
+				// disconnect slave processor
+				try {
+					slaveProcessor.disconnect();
+				} catch (ModbusSlaveException e) {
+					log.log(Level.SEVERE, "Cannot clean up backend", e);
+				}
+				isSlaveProcessorConnected = false;
+			}
+		}
+	}
+
+	private void closeConnection(ModbusTcpPi ctx, ModbusConnection connection) {
+		synchronized (connection) {
+			if (connection.isClosed()) {
+				return;
+			}
+			connection.setClosed();
+			// close client
+			ctx.close(connection.getSocket());
+		}
+		socketConnections.remove(connection.getSocket(), connection);
+		connectionClosed();
+	}
+
+	/**
+	 * @return the stage applying the client writes asynchronously or null if
+	 *         the writes are applied synchronously
+	 */
+	public WriteStage getWriteStage() {
+		return writeStage;
+	}
+
+	/**
+	 * @return the statistics of the current client connections
+	 */
+	public List<ClientStats> getClientStats() {
+		List<ClientStats> stats = new ArrayList<>();
+		for (ModbusConnection connection : socketConnections.values()) {
+			stats.add(connection.getStats());
+		}
+		for (ModbusSlave shard : shards) {
+			stats.addAll(shard.getClientStats());
+		}
+		return stats;
+	}
+
+	private void setKeepAlive(ModbusTcpPi ctx, int socket) {
+		int time = configuration.getKeepAliveTime();
+		if (time > 0 && ctx.setKeepAlive(socket, time, Math.max(1, time / 3), 3 /* count */) < 0) {
+			log.warning("Cannot enable keepalive for connection " + socket + ": " + ctx.getErrNo() + " " + ctx.strError(ctx.getErrNo()));
+		}
+	}
+
+	/**
+	 * @return true if the connection has been lost, e.g. "Connection reset by
+	 *         peer" or a keepalive timeout
+	 */
+	private boolean isConnectionLost(int errNo) {
+		return errNo == ModbusBase.ERRNO_ECONNRESET || errNo == ModbusBase.ERRNO_ETIMEDOUT;
+	}
+
+	/**
+	 * @return the exception code of the response to a failed request
+	 */
+	private long getExceptionCode(ModbusSlaveException e) {
+		if ("ILLEGAL FUNCTION".equals(e.getMessage())) {
+			return ModbusBase.MODBUS_EXCEPTION_ILLEGAL_FUNCTION;
+		} else if ("ILLEGAL DATA ADDRESS".equals(e.getMessage())) {
+			return ModbusBase.MODBUS_EXCEPTION_ILLEGAL_DATA_ADDRESS;
+		}
+		return ModbusBase.MODBUS_EXCEPTION_SLAVE_OR_SERVER_FAILURE;
+	}
+
+	private String getError(ModbusBase ctx, int errNo) {
+		return errNo + " " + ctx.strError(errNo);
+	}
+
+	void closeIdleConnections() {
+		if (configuration.getConnectionIdleTimeout() <= 0) {
+			return;
+		}
+		for (ModbusConnection connection : socketConnections.values()) {
+			if (connection.getIdleTime() >= configuration.getConnectionIdleTimeout()) {
+				if (log.isLoggable(Level.INFO))
+					log.info("Closing idle connection " + connection.getSocket());
+				closeConnection(ctx, connection);
+			}
+		}
+	}
+
+	/**
+	 * Closes the connection which has been idle for the longest time if it has
+	 * been idle for at least the eviction time.
+	 */
+	private void evictIdleConnection() {
+		ModbusConnection idleConnection = null;
+		for (ModbusConnection connection : socketConnections.values()) {
+			if (idleConnection == null || connection.getIdleTime() > idleConnection.getIdleTime()) {
+				idleConnection = connection;
+			}
+		}
+		if (idleConnection != null && idleConnection.getIdleTime() >= configuration.getConnectionEvictionTime()) {
+			if (log.isLoggable(Level.INFO))
+				log.info("Closing connection " + idleConnection.getSocket() + " idle for " + idleConnection.getIdleTime() + "ms for a new connection");
+			closeConnection(ctx, idleConnection);
+		}
+	}
+
+	private void stopWriteStage() {
+		if (writeStage != null) {
+			try {
+				// apply the queued writes before the backend is disconnected
+				writeStage.shutdown();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private void stopBackendGuard() {
+		if (backendGuard != null) {
+			try {
+				backendGuard.shutdown(closeTimeout);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			backendGuard = null;
+		}
+	}
+
+	private void stopDispatcher() {
+		if (dispatcher != null) {
+			try {
+				// process the already dispatched requests
+				dispatcher.shutdown();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			dispatcher = null;
+		}
+	}
+
 	public void run() {
-		int connectionCount = 0;
-		boolean isSlaveProcessorConnected = false;
+		if (!shards.isEmpty()) {
+			// serve the further listeners of a sharded port
+			shardThreads = Executors.newFixedThreadPool(shards.size());
+			for (final ModbusSlave shard : shards) {
+				shardThreads.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							shard.run();
+						} catch (Throwable e) {
+							log.log(Level.SEVERE, "Execution of listener failed", e);
+						}
+					}
+				});
+			}
+		}
+		if (configuration.isNativeServing()) {
+			runNative();
+			return;
+		}
+		startStages();
+		if (configuration.isThreadPerConnection()) {
+			runConnectionThreads();
+			return;
+		}
+		if (configuration.getDispatchThreadCount() > 0) {
+			dispatcher = new RequestDispatcher(configuration.getDispatchThreadCount());
+		}
 		UInt8Array request = new UInt8Array(ModbusTcpPi.MODBUS_TCP_MAX_ADU_LENGTH);
+		// decoded header of the request
+		int[] header = new int[ModbusBase.DECODED_SIZE];
 		IntArray readFds = new IntArray(1 /* serverSocket */ + maxConnectionCount);
-		int readFdsCount = 0;
+		ConnectionScheduler scheduler = new ConnectionScheduler(maxConnectionCount);
+		// sockets whose responses are held back for a pipelined batch
+		Set<Integer> corkedSockets = new HashSet<>();
+		if (configuration.getConnectionIdleTimeout() > 0) {
+			// wake up regularly for closing idle connections
+			ctx.setSelectTimeout(Math.min(1000, configuration.getConnectionIdleTimeout()));
+		}
 		try {
 			while (true) {
-				if (readFdsCount == 0) {
-					boolean isIncomingConnection;
-					do {
-						log.log(Level.FINE, "Waiting for data...");
-						do {
-							readFdsCount = ctx.selectRead(readFds.cast());
-							// if slave is being closed
-							if (isClosing()) {
-								if (isSlaveProcessorConnected) {
-									// disconnect slave processor
-									try {
-										slaveProcessor.disconnect();
-									} catch (ModbusSlaveException e) {
-										log.log(Level.SEVERE, "Cannot clean up backend", e);
-									}
-								}
-								return;
-							}
-							if (readFdsCount < 0) {
-								log.severe("Waiting for data failed: " + ctx.getErrNo() + " " + ctx.strError(ctx.getErrNo()));
-							}
-						} while (readFdsCount <= 0);
-						isIncomingConnection = readFds.getitem(0) == serverSocket;
-						if (isIncomingConnection) {
-							// accept the connection
-							int clientSocket = ctx.tcpPiAccept(serverSocket);
-							if (clientSocket < 0) {
-								log.severe("Unable to accept a connection: " + ctx.getErrNo() + " " + ctx.strError(ctx.getErrNo()));
-							} else {
-								if (log.isLoggable(Level.FINE))
-									log.fine("Connection established: " + clientSocket);
-								connectionCount++;
-								if (!isSlaveProcessorConnected) {
-									try {
-										// connect slave processor
-										slaveProcessor.connect();
-										isSlaveProcessorConnected = true;
-									} catch (ModbusSlaveException e) {
-										log.log(Level.SEVERE, "Cannot initialize backend", e);
-									}
-								}
-							}
-						}
-					} while (isIncomingConnection);
+				if (scheduler.isEmpty()) {
+					log.log(Level.FINE, "Waiting for data...");
+					int readFdsCount = ctx.selectReadWithErrNo(readFds.cast());
+					// if slave is being closed
+					if (isStopping()) {
+						stopDispatcher();
+						stopBackendGuard();
+						stopWriteStage();
+						// the client sockets have been closed by "close"
+						socketConnections.clear();
+						isClosing();
+						disconnectSlaveProcessor();
+						return;
+					}
+					if (readFdsCount < 0) {
+						log.severe("Waiting for data failed: " + getError(ctx, -readFdsCount));
+						continue;
+					}
+					if (configuration.getConnectionIdleTimeout() > 0) {
+						closeIdleConnections();
+					}
+					// accept one connection per turn so that a burst of
+					// connects does not delay the pending requests
+					if (readFdsCount > 0 && readFds.getitem(0) == serverSocket) {
+						accept();
+					}
+					scheduler.schedule(readFds, readFdsCount, serverSocket);
+					continue;
 				}
-				if (log.isLoggable(Level.FINE))
-					log.fine("Processing request from connection " + readFds.getitem(readFdsCount - 1));
 				// set client socket
-				ctx.setSocket(readFds.getitem(readFdsCount - 1));
-				readFdsCount--;
-				// wait for a request
+				int socket = scheduler.next();
+				ModbusConnection connection = socketConnections.get(socket);
+				// if the connection has been closed by a worker
+				if (connection == null) {
+					corkedSockets.remove(socket);
+					continue;
+				}
+				if (log.isLoggable(Level.FINE))
+					log.fine("Processing request from connection " + socket);
+				ctx.setSocket(socket);
+				// wait for a request and decode its header with one call
 				int requestLength;
 				Date timeStamp;
 				do {
-					requestLength = ctx.receive(request.cast());
+					requestLength = ctx.receiveAndDecode(request.cast(), header);
 					timeStamp = new Date();
 					// filtered requests return 0
 				} while (requestLength == 0);
 				// if an error has occurred
 				if (requestLength < 0) {
-					// if "Connection reset by peer"
-					if (ctx.getErrNo() == ModbusBase.ERRNO_ECONNRESET) {
-						if (log.isLoggable(Level.FINE))
-							log.fine("Failed to receive message: " + ctx.getErrNo() + " " + ctx.strError(ctx.getErrNo()));
-						// close client
-						ctx.close(ctx.getSocket());
-						connectionCount--;
-						if (connectionCount == 0 && isSlaveProcessorConnected) {
-							// disconnect slave processor
-							try {
-								slaveProcessor.disconnect();
-								isSlaveProcessorConnected = false;
-							} catch (ModbusSlaveException e) {
-								log.log(Level.SEVERE, "Cannot clean up backend", e);
-							}
-						}
-					} else {
-						log.severe("Failed to receive message: " + ctx.getErrNo() + " " + ctx.strError(ctx.getErrNo()));
+					if (receiveFailed(connection, -requestLength)) {
+						corkedSockets.remove(socket);
 					}
 					// wait for next connection/request
 					continue;
 				}
-				// if initialization of backend failed
-				if (!isSlaveProcessorConnected) {
-					log.severe("Discarding request due to failed initialization of backend");
-					// send exception response
-					if (ctx.replyException(request.cast(), ModbusBase.MODBUS_EXCEPTION_SLAVE_OR_SERVER_FAILURE) < 0) {
-						// if "Connection reset by peer"
-						if (ctx.getErrNo() == ModbusBase.ERRNO_ECONNRESET) {
-							if (log.isLoggable(Level.FINE))
-								log.fine("Failed to receive message: " + ctx.getErrNo() + " " + ctx.strError(ctx.getErrNo()));
-							// close client
-							ctx.close(ctx.getSocket());
-							connectionCount--;
-						} else {
-							log.severe("Failed to send exception response: " + ctx.getErrNo() + " " + ctx.strError(ctx.getErrNo()));
+				capture(ctx, connection, request, requestLength);
+				// if further complete requests have already been received
+				// from the same connection
+				boolean isPending = configuration.isPipelining() && ctx.isRequestPending(socket);
+				// if requests are processed by the workers of the dispatcher
+				if (dispatcher != null) {
+					dispatch(connection, request, header, timeStamp);
+				} else {
+					if (isPending && !corkedSockets.contains(socket)) {
+						// hold back the responses until all buffered requests
+						// have been processed
+						if (ctx.setCork(socket, true) == 0) {
+							corkedSockets.add(socket);
 						}
 					}
-					// wait for next connection/request
-					continue;
+					// if the connection has been reset while sending the
+					// response
+					if (!process(ctx, connection, request, header, timeStamp)) {
+						closeConnection(ctx, connection);
+						corkedSockets.remove(socket);
+						continue;
+					}
+				}
+				if (isPending) {
+					// serve the next request after the other connections
+					scheduler.add(socket);
+				} else if (corkedSockets.remove(socket)) {
+					// send the held back responses
+					ctx.setCork(socket, false);
 				}
-				ModbusMapping mapping = null;
+			}
+		} finally {
+			// destroy request structure
+			request.delete();
+			// destroy structure for read fds
+			readFds.delete();
+		}
+	}
+
+	private void startStages() {
+		if (configuration.getWriteQueueCapacity() > 0) {
+			writeStage = new WriteStage(configuration.getWriteQueueCapacity());
+		}
+		if (configuration.getReadBudget() > 0) {
+			backendGuard = new BackendGuard(configuration.isThreadPerConnection() || configuration.getDispatchThreadCount() > 1,
+					configuration.getMaxConcurrency() > 0 ? configuration.getMaxConcurrency() : maxConnectionCount,
+					configuration.getCircuitBreakerThreshold(), configuration.getCircuitBreakerOpenTime());
+		}
+	}
+
+	private void accept() {
+		// if max. connection count has already been reached
+		if (socketConnections.size() >= maxConnectionCount && configuration.getConnectionEvictionTime() > 0) {
+			evictIdleConnection();
+		}
+		int clientSocket = ctx.tcpPiAcceptWithErrNo(serverSocket);
+		if (clientSocket < 0) {
+			log.severe("Unable to accept a connection: " + getError(ctx, -clientSocket));
+		} else {
+			if (log.isLoggable(Level.FINE))
+				log.fine("Connection established: " + clientSocket);
+			socketConnections.put(clientSocket, new ModbusConnection(clientSocket));
+			setKeepAlive(ctx, clientSocket);
+			connectionOpened();
+		}
+	}
+
+	/**
+	 * @return true if the connection has been closed
+	 */
+	private boolean receiveFailed(ModbusConnection connection, int errNo) {
+		// if "Connection reset by peer" or keepalive timeout
+		if (isConnectionLost(errNo)) {
+			if (log.isLoggable(Level.FINE))
+				log.fine("Failed to receive message: " + getError(ctx, errNo));
+			closeConnection(ctx, connection);
+			return true;
+		}
+		log.severe("Failed to receive message: " + getError(ctx, errNo));
+		return false;
+	}
+
+	ModbusTcpPi getContext() {
+		return ctx;
+	}
+
+	boolean isShard() {
+		return parent != null;
+	}
+
+	/**
+	 * @return the further listeners of a sharded port
+	 */
+	List<ModbusSlave> getShards() {
+		return shards;
+	}
+
+	ModbusSlaveConfiguration getConfiguration() {
+		return configuration;
+	}
+
+	/**
+	 * Prepares serving by the event loop of a {@link ModbusServer} instead of
+	 * {@link #run()} after the slave has been opened.
+	 */
+	void attach() throws ModbusSlaveException {
+		if (configuration.isNativeServing() || configuration.isThreadPerConnection()) {
+			throw new ModbusSlaveException("Native serving and thread per connection are not supported by a shared server");
+		}
+		startStages();
+		if (configuration.getDispatchThreadCount() > 0) {
+			dispatcher = new RequestDispatcher(configuration.getDispatchThreadCount());
+		}
+	}
+
+	/**
+	 * Accepts a connection or serves one request of a readable socket. It is
+	 * called by the event loop of a {@link ModbusServer}, further requests of
+	 * the socket are served in the next turn of the loop.
+	 */
+	void serve(int socket, UInt8Array request, int[] header) {
+		if (socket == serverSocket) {
+			accept();
+			return;
+		}
+		ModbusConnection connection = socketConnections.get(socket);
+		// if the connection has been closed by a worker
+		if (connection == null) {
+			return;
+		}
+		ctx.setSocket(socket);
+		int requestLength = ctx.receiveAndDecode(request.cast(), header);
+		Date timeStamp = new Date();
+		// filtered requests return 0
+		if (requestLength == 0) {
+			return;
+		}
+		if (requestLength < 0) {
+			receiveFailed(connection, -requestLength);
+			return;
+		}
+		capture(ctx, connection, request, requestLength);
+		if (dispatcher != null) {
+			dispatch(connection, request, header, timeStamp);
+		} else if (!process(ctx, connection, request, header, timeStamp)) {
+			closeConnection(ctx, connection);
+		}
+	}
+
+	/**
+	 * Sets the time in ms to wait for the backend calls when the slave is
+	 * detached from a {@link ModbusServer}
+	 */
+	void setCloseTimeout(int closeTimeout) {
+		this.closeTimeout = closeTimeout;
+	}
+
+	/**
+	 * Stops serving by the event loop of a {@link ModbusServer} after the
+	 * slave has been removed from the loop and closes it.
+	 */
+	void detach() {
+		stopDispatcher();
+		stopBackendGuard();
+		stopWriteStage();
+		// close the client and server sockets
+		ctx.close();
+		socketConnections.clear();
+		disconnectSlaveProcessor();
+		serverSocket = -1;
+		// destroy context
+		ctx.free();
+		// delete class instance
+		ctx.delete();
+		ctx = null;
+		if (log.isLoggable(Level.INFO)) {
+			log.log(Level.INFO, "Modbus slave closed");
+		}
+	}
+
+	private void dispatch(final ModbusConnection connection, UInt8Array request, int[] header, final Date timeStamp) {
+		// requests of the same unit (and connection) are processed in order
+		int unitId = header[ModbusBase.DECODED_UNIT_ID];
+		int key = configuration.isDispatchByConnection() ? 31 * unitId + connection.getSocket() : unitId;
+		// copy the request and its header because the receive buffers are
+		// reused
+		int requestLength = header[ModbusBase.DECODED_LENGTH];
+		final int[] dispatchedHeader = header.clone();
+		final UInt8Array dispatchedRequest = new UInt8Array(requestLength);
+		ModbusBase.copyBytes(dispatchedRequest.cast(), request.cast(), requestLength);
+		dispatcher.dispatch(key, new Runnable() {
+			@Override
+			public void run() {
 				try {
-					int headerLength = ctx.getHeaderLength();
-					// get unitId
-					int unitId = request.getitem(headerLength - 1);
-					// get function code
-					short functionCode = request.getitem(headerLength);
-					boolean isRead = functionCode == ModbusBase.MODBUS_FC_READ_COILS || functionCode == ModbusBase.MODBUS_FC_READ_DISCRETE_INPUTS
-							|| functionCode == ModbusBase.MODBUS_FC_READ_HOLDING_REGISTERS || functionCode == ModbusBase.MODBUS_FC_READ_INPUT_REGISTERS;
-					boolean isWrite = functionCode == ModbusBase.MODBUS_FC_WRITE_SINGLE_COIL || functionCode == ModbusBase.MODBUS_FC_WRITE_MULTIPLE_COILS
-							|| functionCode == ModbusBase.MODBUS_FC_WRITE_SINGLE_REGISTER || functionCode == ModbusBase.MODBUS_FC_WRITE_MULTIPLE_REGISTERS;
-					// get address
-					int address = ctx.getInt16FromInt8(request.cast(), headerLength + 1);
-					// get quantity
-					int addressQuantity = 1;
-					if (isRead || functionCode == ModbusBase.MODBUS_FC_WRITE_MULTIPLE_COILS || functionCode == ModbusBase.MODBUS_FC_WRITE_MULTIPLE_REGISTERS) {
-						addressQuantity = ctx.getInt16FromInt8(request.cast(), headerLength + 3);
+					// if the connection has been reset while sending the response
+					if (!process(ctx, connection, dispatchedRequest, dispatchedHeader, timeStamp)) {
+						closeConnection(ctx, connection);
 					}
-					mapping = createMapping(functionCode, address, addressQuantity);
+				} catch (Throwable e) {
+					log.log(Level.SEVERE, "Processing of dispatched request failed", e);
+				} finally {
+					// destroy request structure
+					dispatchedRequest.delete();
+				}
+			}
+		});
+	}
+
+	private void runNative() {
+		// the backend is used for the whole runtime of the native loop
+		connectionOpened();
+		// connections, framing and responses are handled by the native loop,
+		// only the data is accessed via the callbacks
+		ModbusRequestHandler handler = new ModbusRequestHandler() {
+			@Override
+			public int read(int unitId, int functionCode, int address, int quantity, ModbusMapping mapping) {
+				if (!isSlaveProcessorConnected()) {
+					return (int) ModbusBase.MODBUS_EXCEPTION_SLAVE_OR_SERVER_FAILURE;
+				}
+				try {
+					acquireBackend();
+					try {
+						slaveProcessor.read(unitId, (short) functionCode, address, quantity, mapping);
+					} finally {
+						releaseBackend();
+					}
+					return 0;
+				} catch (ModbusSlaveException e) {
+					log.log(Level.SEVERE, "Cannot read data for functionCode=" + functionCode + ",address=" + address + ",quantity=" + quantity, e);
+					return (int) getExceptionCode(e);
+				} catch (Throwable e) {
+					// an exception must not be passed to the native loop
+					log.log(Level.SEVERE, "Cannot read data for functionCode=" + functionCode + ",address=" + address + ",quantity=" + quantity, e);
+					return (int) ModbusBase.MODBUS_EXCEPTION_SLAVE_OR_SERVER_FAILURE;
+				}
+			}
+
+			@Override
+			public int write(int unitId, int functionCode, int address, int quantity, ModbusMapping mapping) {
+				if (!isSlaveProcessorConnected()) {
+					return (int) ModbusBase.MODBUS_EXCEPTION_SLAVE_OR_SERVER_FAILURE;
+				}
+				try {
+					acquireBackend();
+					try {
+						slaveProcessor.write(unitId, (short) functionCode, address, quantity, new Date(), mapping);
+					} finally {
+						releaseBackend();
+					}
+					return 0;
+				} catch (ModbusSlaveException e) {
+					log.log(Level.SEVERE, "Cannot write data for functionCode=" + functionCode + ",address=" + address + ",quantity=" + quantity, e);
+					return (int) getExceptionCode(e);
+				} catch (Throwable e) {
+					// an exception must not be passed to the native loop
+					log.log(Level.SEVERE, "Cannot write data for functionCode=" + functionCode + ",address=" + address + ",quantity=" + quantity, e);
+					return (int) ModbusBase.MODBUS_EXCEPTION_SLAVE_OR_SERVER_FAILURE;
+				}
+			}
+		};
+		try {
+			// the loop returns after the server socket has been closed
+			while (!isStopping()) {
+				if (ctx.serve(handler) < 0 && !isStopping()) {
+					log.severe("Serving connections failed: " + getError(ctx, ctx.getErrNo()));
+				}
+			}
+		} finally {
+			handler.delete();
+		}
+		isClosing();
+		disconnectSlaveProcessor();
+	}
+
+	private void runConnectionThreads() {
+		// each connection is served by a thread of its own with blocking
+		// receive calls
+		ExecutorService connectionThreads = Executors.newCachedThreadPool();
+		IntArray readFds = new IntArray(1 /* serverSocket */);
+		try {
+			while (true) {
+				log.log(Level.FINE, "Waiting for connections...");
+				int readFdsCount = ctx.selectReadWithErrNo(readFds.cast());
+				// if slave is being closed
+				if (isStopping()) {
+					// abort the receive calls of all connections
+					synchronized (connections) {
+						for (ModbusTcpPi connection : connections) {
+							connection.close();
+						}
+					}
+					connectionThreads.shutdown();
+					try {
+						connectionThreads.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+					stopBackendGuard();
+					stopWriteStage();
+					isClosing();
+					disconnectSlaveProcessor();
+					return;
+				}
+				if (readFdsCount < 0) {
+					log.severe("Waiting for connections failed: " + getError(ctx, -readFdsCount));
+					continue;
+				}
+				// accept the connection
+				int clientSocket = ctx.tcpPiAcceptWithErrNo(serverSocket);
+				if (clientSocket < 0) {
+					log.severe("Unable to accept a connection: " + getError(ctx, -clientSocket));
+					continue;
+				}
+				final ModbusTcpPi connectionCtx = new ModbusTcpPi();
+				synchronized (connections) {
+					// if max. connection count has already been reached
+					if (connections.size() == maxConnectionCount || connectionCtx.newTcpPi("::0", Integer.toString(port)) < 0) {
+						// reject connection by closing the socket
+						connectionCtx.delete();
+						ctx.close(clientSocket);
+						log.warning("Rejected connection " + clientSocket);
+						continue;
+					}
+					// move the client socket to the context of the connection
+					ctx.tcpPiDetach(clientSocket);
+					connectionCtx.tcpPiAttach(clientSocket);
+					connectionCtx.setDebug(log.isLoggable(Level.FINE));
+					setKeepAlive(connectionCtx, clientSocket);
+					connections.add(connectionCtx);
+				}
+				if (log.isLoggable(Level.FINE))
+					log.fine("Connection established: " + clientSocket);
+				connectionOpened();
+				final ModbusConnection connection = new ModbusConnection(clientSocket);
+				socketConnections.put(clientSocket, connection);
+				connectionThreads.execute(new Runnable() {
+					@Override
+					public void run() {
+						serve(connectionCtx, connection);
+					}
+				});
+			}
+		} finally {
+			// destroy structure for read fds
+			readFds.delete();
+		}
+	}
 
-					// if data shall be read
-					if (isRead) {
+	private void serve(ModbusTcpPi connectionCtx, ModbusConnection connection) {
+		UInt8Array request = new UInt8Array(ModbusTcpPi.MODBUS_TCP_MAX_ADU_LENGTH);
+		int[] header = new int[ModbusBase.DECODED_SIZE];
+		try {
+			while (true) {
+				// wait for a request and decode its header with one call
+				int requestLength;
+				Date timeStamp;
+				do {
+					requestLength = connectionCtx.receiveAndDecode(request.cast(), header);
+					timeStamp = new Date();
+					// filtered requests return 0
+				} while (requestLength == 0);
+				// if an error has occurred
+				if (requestLength < 0) {
+					// if slave is being closed
+					if (isStopping()) {
+						return;
+					}
+					// if "Connection reset by peer" or keepalive timeout
+					if (isConnectionLost(-requestLength)) {
 						if (log.isLoggable(Level.FINE))
-							log.fine("Reading data for functionCode=" + functionCode + ", address=" + address + ", addressQuantity=" + addressQuantity);
-						// update data
+							log.fine("Failed to receive message: " + getError(connectionCtx, -requestLength));
+						return;
+					}
+					log.severe("Failed to receive message: " + getError(connectionCtx, -requestLength));
+					// wait for next request
+					continue;
+				}
+				capture(connectionCtx, connection, request, requestLength);
+				if (!process(connectionCtx, connection, request, header, timeStamp)) {
+					return;
+				}
+			}
+		} catch (Throwable e) {
+			log.log(Level.SEVERE, "Execution of modbus connection failed", e);
+		} finally {
+			// destroy request structure
+			request.delete();
+			synchronized (connections) {
+				connections.remove(connectionCtx);
+			}
+			closeConnection(connectionCtx, connection);
+			final ModbusTcpPi ctx = connectionCtx;
+			Runnable destroy = new Runnable() {
+				@Override
+				public void run() {
+					// destroy context
+					ctx.free();
+					// delete class instance
+					ctx.delete();
+				}
+			};
+			WriteStage writeStage = this.writeStage;
+			if (writeStage != null) {
+				// the queued writes still use mappings of the context
+				writeStage.execute(destroy);
+			} else {
+				destroy.run();
+			}
+		}
+	}
+
+	private void acquireBackend() throws ModbusSlaveException {
+		if (backendPermits != null) {
+			try {
+				backendPermits.acquire();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new ModbusSlaveException("Interrupted while waiting for backend", e);
+			}
+		}
+	}
+
+	private void releaseBackend() {
+		if (backendPermits != null) {
+			backendPermits.release();
+		}
+	}
+
+	/**
+	 * Passes a received request to the capture tap of the configuration
+	 */
+	private void capture(ModbusBase ctx, ModbusConnection connection, UInt8Array request, int requestLength) {
+		CaptureTap tap = configuration.getCaptureTap();
+		if (tap != null) {
+			tap.request(ctx, connection.getSocket(), port, request, requestLength);
+		}
+	}
+
+	/**
+	 * Sends a response via the socket of a connection.
+	 *
+	 * @return false if the connection has been reset by the peer
+	 */
+	private boolean reply(ModbusBase ctx, ModbusConnection connection, UInt8Array request, int requestLength, ModbusMapping mapping) {
+		int ret;
+		synchronized (connection) {
+			// if the connection has already been closed
+			if (connection.isClosed()) {
+				return true;
+			}
+			ret = ctx.replyToWithErrNo(connection.getSocket(), request.cast(), requestLength, mapping);
+			if (ret >= 0) {
+				CaptureTap tap = configuration.getCaptureTap();
+				if (tap != null) {
+					tap.response(ctx, connection.getSocket(), port, request, requestLength, mapping);
+				}
+				return true;
+			}
+		}
+		// if "Connection reset by peer"
+		if (-ret == ModbusBase.ERRNO_ECONNRESET) {
+			if (log.isLoggable(Level.FINE))
+				log.fine("Failed to send response: " + getError(ctx, -ret));
+			return false;
+		}
+		log.log(Level.SEVERE, "Failed to send response: " + getError(ctx, -ret));
+		return true;
+	}
+
+	/**
+	 * Sends an exception response via the socket of a connection.
+	 *
+	 * @return false if the connection has been reset by the peer
+	 */
+	private boolean replyException(ModbusBase ctx, ModbusConnection connection, UInt8Array request, long exceptionCode) {
+		int ret;
+		synchronized (connection) {
+			// if the connection has already been closed
+			if (connection.isClosed()) {
+				return true;
+			}
+			ret = ctx.replyExceptionToWithErrNo(connection.getSocket(), request.cast(), exceptionCode);
+			if (ret >= 0) {
+				CaptureTap tap = configuration.getCaptureTap();
+				if (tap != null) {
+					tap.exception(ctx, connection.getSocket(), port, request, exceptionCode);
+				}
+				return true;
+			}
+		}
+		// if "Connection reset by peer"
+		if (-ret == ModbusBase.ERRNO_ECONNRESET) {
+			if (log.isLoggable(Level.FINE))
+				log.fine("Failed to send exception response: " + getError(ctx, -ret));
+			return false;
+		}
+		log.severe("Failed to send exception response: " + getError(ctx, -ret));
+		return true;
+	}
+
+	/**
+	 * Processes a received request within the rate limit of the client and
+	 * updates the statistics of the client.
+	 *
+	 * @return false if the connection has been reset by the peer
+	 */
+	private boolean process(ModbusBase ctx, ModbusConnection connection, UInt8Array request, int[] header, Date timeStamp) {
+		int rate = configuration.getClientRequestRate();
+		if (rate > 0 && !connection.tryAcquire(rate)) {
+			connection.getStats().rejected();
+			if (log.isLoggable(Level.FINE))
+				log.fine("Rejecting request of connection " + connection.getSocket() + " due to rate limit");
+			return replyException(ctx, connection, request, ModbusBase.MODBUS_EXCEPTION_SLAVE_OR_SERVER_BUSY);
+		}
+		connection.touch();
+		long start = System.nanoTime();
+		try {
+			return processRequest(ctx, connection, request, header, timeStamp);
+		} finally {
+			connection.getStats().processed(System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Processes a received request and sends the response. The header of the
+	 * request has been decoded by {@link ModbusBase#receiveAndDecode}.
+	 *
+	 * @return false if the connection has been reset by the peer
+	 */
+	private boolean processRequest(ModbusBase ctx, ModbusConnection connection, UInt8Array request, int[] header, Date timeStamp) {
+		// if initialization of backend failed
+		if (!isSlaveProcessorConnected()) {
+			log.severe("Discarding request due to failed initialization of backend");
+			// send exception response
+			return replyException(ctx, connection, request, ModbusBase.MODBUS_EXCEPTION_SLAVE_OR_SERVER_FAILURE);
+		}
+		ModbusMapping mapping = null;
+		try {
+			int requestLength = header[ModbusBase.DECODED_LENGTH];
+			// get unitId
+			int unitId = header[ModbusBase.DECODED_UNIT_ID];
+			// get function code
+			short functionCode = (short) header[ModbusBase.DECODED_FUNCTION_CODE];
+			boolean isRead = functionCode == ModbusBase.MODBUS_FC_READ_COILS || functionCode == ModbusBase.MODBUS_FC_READ_DISCRETE_INPUTS
+					|| functionCode == ModbusBase.MODBUS_FC_READ_HOLDING_REGISTERS || functionCode == ModbusBase.MODBUS_FC_READ_INPUT_REGISTERS;
+			boolean isWrite = functionCode == ModbusBase.MODBUS_FC_WRITE_SINGLE_COIL || functionCode == ModbusBase.MODBUS_FC_WRITE_MULTIPLE_COILS
+					|| functionCode == ModbusBase.MODBUS_FC_WRITE_SINGLE_REGISTER || functionCode == ModbusBase.MODBUS_FC_WRITE_MULTIPLE_REGISTERS;
+			// get address
+			int address = header[ModbusBase.DECODED_ADDRESS];
+			// get quantity
+			int addressQuantity = header[ModbusBase.DECODED_QUANTITY];
+			mapping = createMapping(ctx, functionCode, address, addressQuantity);
+
+			// if data shall be read
+			if (isRead) {
+				if (log.isLoggable(Level.FINE))
+					log.fine("Reading data for functionCode=" + functionCode + ", address=" + address + ", addressQuantity=" + addressQuantity);
+				// update data
+				try {
+					boolean isAnswered;
+					if (backendGuard == null) {
+						acquireBackend();
 						try {
 							slaveProcessor.read(unitId, functionCode, address, addressQuantity, mapping);
-						} catch (ModbusSlaveException e) {
-							log.log(Level.SEVERE, "Cannot read data for functionCode=" + functionCode + ",address=" + address + ",quantity=" + addressQuantity,
-									e);
-									long err;
-									switch(e.getMessage()){
-										case "ILLEGAL FUNCTION":
-										err=ModbusBase.MODBUS_EXCEPTION_ILLEGAL_FUNCTION;
-										break;
-										case "ILLEGAL DATA ADDRESS":
-										err=ModbusBase.MODBUS_EXCEPTION_ILLEGAL_DATA_ADDRESS;
-										break;
-										default:
-										err=ModbusBase.MODBUS_EXCEPTION_SLAVE_OR_SERVER_FAILURE;
-										break;
-									}
-						
-							if (ctx.replyException(request.cast(), err) < 0) {
-								// if "Connection reset by peer"
-								if (ctx.getErrNo() == ModbusBase.ERRNO_ECONNRESET) {
-									if (log.isLoggable(Level.FINE))
-										log.fine("Failed to send exception response: " + ctx.getErrNo() + " " + ctx.strError(ctx.getErrNo()));
-									// close client
-									ctx.close(ctx.getSocket());
-									connectionCount--;
-									if (connectionCount == 0) {
-										// disconnect slave processor
-										try {
-											slaveProcessor.disconnect();
-											isSlaveProcessorConnected = false;
-										} catch (ModbusSlaveException e1) {
-											log.log(Level.SEVERE, "Cannot clean up backend", e1);
-										}
-									}
-								} else {
-									log.severe("Failed to send exception response: " + ctx.getErrNo() + " " + ctx.strError(ctx.getErrNo()));
-								}
-							}
-							// wait for next connection/request
-							continue;
+						} finally {
+							releaseBackend();
 						}
+						isAnswered = true;
+					} else {
+						isAnswered = readWithDeadline(unitId, functionCode, address, addressQuantity, mapping, timeStamp);
 					}
-					// send response
-					if (ctx.reply(request.cast(), requestLength, mapping) < 0) {
-						// if "Connection reset by peer"
-						if (ctx.getErrNo() == ModbusBase.ERRNO_ECONNRESET) {
-							if (log.isLoggable(Level.FINE))
-								log.fine("Failed to send response: " + ctx.getErrNo() + " " + ctx.strError(ctx.getErrNo()));
-							// close client
-							ctx.close(ctx.getSocket());
-							connectionCount--;
-							if (connectionCount == 0) {
-								// disconnect slave processor
-								try {
-									slaveProcessor.disconnect();
-									isSlaveProcessorConnected = false;
-								} catch (ModbusSlaveException e) {
-									log.log(Level.SEVERE, "Cannot clean up backend", e);
-								}
+					long key = ((long) unitId << 40) | ((long) functionCode << 32) | ((long) address << 16) | addressQuantity;
+					if (isAnswered) {
+						if (configuration.isStaleReadAllowed()) {
+							synchronized (lastValues) {
+								lastValues.put(key, getValues(functionCode, address, addressQuantity, mapping));
 							}
-						} else {
-							log.log(Level.SEVERE, "Failed to send response: " + ctx.getErrNo() + " " + ctx.strError(ctx.getErrNo()));
 						}
-						// wait for next connection/request
-						continue;
-					}
-					if (log.isLoggable(Level.FINE)) {
-						String requestDescr = null;
-						if (log.isLoggable(Level.FINE)) {
-							if (functionCode == ModbusBase.MODBUS_FC_READ_COILS) {
-								requestDescr = "READ_COILS";
-							} else if (functionCode == ModbusBase.MODBUS_FC_READ_DISCRETE_INPUTS) {
-								requestDescr = "READ_DISCRETE_INPUTS";
-							} else if (functionCode == ModbusBase.MODBUS_FC_READ_HOLDING_REGISTERS) {
-								requestDescr = "READ_HOLDING_REGISTERS";
-							} else if (functionCode == ModbusBase.MODBUS_FC_READ_INPUT_REGISTERS) {
-								requestDescr = "READ_INPUT_REGISTERS";
-							} else if (functionCode == ModbusBase.MODBUS_FC_WRITE_SINGLE_COIL) {
-								requestDescr = "WRITE_SINGLE_COIL";
-							} else if (functionCode == ModbusBase.MODBUS_FC_WRITE_MULTIPLE_COILS) {
-								requestDescr = "WRITE_MULTIPLE_COILS";
-							} else if (functionCode == ModbusBase.MODBUS_FC_WRITE_SINGLE_REGISTER) {
-								requestDescr = "WRITE_SINGLE_REGISTER";
-							} else if (functionCode == ModbusBase.MODBUS_FC_WRITE_MULTIPLE_REGISTERS) {
-								requestDescr = "WRITE_MULTIPLE_REGISTERS";
+					} else {
+						// the mapping is still used by the backend
+						mapping = null;
+						int[] values = null;
+						if (configuration.isStaleReadAllowed()) {
+							synchronized (lastValues) {
+								values = lastValues.get(key);
 							}
-							log.fine("Received " + requestDescr);
 						}
-						log.fine("Sent " + requestDescr);
-					}
-					// if data has been written
-					if (isWrite) {
-						if (log.isLoggable(Level.FINE))
-							log.fine("Writing data for functionCode=" + functionCode + ", address=" + address + ", addressQuantity=" + addressQuantity);
-						// update data
-						try {
-							slaveProcessor.write(unitId, functionCode, address, addressQuantity, timeStamp, mapping);
-						} catch (ModbusSlaveException e) {
-							log.log(Level.SEVERE, "Cannot write data for functionCode=" + functionCode + ",address=" + address + ",quantity=" + addressQuantity,
-									e);
+						if (values == null) {
+							return replyException(ctx, connection, request, ModbusBase.MODBUS_EXCEPTION_SLAVE_OR_SERVER_BUSY);
 						}
+						// respond with the last known values
+						mapping = createMapping(ctx, functionCode, address, addressQuantity);
+						setValues(functionCode, address, addressQuantity, mapping, values);
 					}
-				} finally {
-					if (mapping != null) {
-						destroyMapping(mapping);
-						mapping = null;
+				} catch (ModbusSlaveException e) {
+					log.log(Level.SEVERE, "Cannot read data for functionCode=" + functionCode + ",address=" + address + ",quantity=" + addressQuantity,
+							e);
+					// send exception response
+					return replyException(ctx, connection, request, getExceptionCode(e));
+				}
+			}
+			WriteStage writeStage = isWrite ? this.writeStage : null;
+			if (writeStage != null && !writeStage.tryReserve()) {
+				switch (configuration.getWriteOverflowPolicy()) {
+				case SERVER_BUSY:
+					writeStage.rejected();
+					log.warning("Rejecting write for functionCode=" + functionCode + ",address=" + address + " due to full write queue");
+					return replyException(ctx, connection, request, ModbusBase.MODBUS_EXCEPTION_SLAVE_OR_SERVER_BUSY);
+				case ACKNOWLEDGE:
+					// queue beyond the capacity instead of waiting for a free
+					// entry
+					if (!writeStage.tryReserveOverflow()) {
+						writeStage.rejected();
+						log.warning("Rejecting write for functionCode=" + functionCode + ",address=" + address + " due to full overflow entries");
+						return replyException(ctx, connection, request, ModbusBase.MODBUS_EXCEPTION_SLAVE_OR_SERVER_BUSY);
+					}
+					if (!replyException(ctx, connection, request, ModbusBase.MODBUS_EXCEPTION_ACKNOWLEDGE)) {
+						writeStage.cancel(true /* overflow */);
+						return false;
+					}
+					// the values are not copied by a response
+					copyWriteValues(ctx, request, functionCode, address, addressQuantity, mapping);
+					submitWrite(writeStage, true /* overflow */, connection, unitId, functionCode, address, addressQuantity, timeStamp, mapping);
+					mapping = null;
+					return true;
+				default:
+					if (!reserve(writeStage)) {
+						return true;
+					}
+					break;
+				}
+			}
+			// send response
+			if (!reply(ctx, connection, request, requestLength, mapping)) {
+				if (writeStage != null) {
+					writeStage.cancel(false /* overflow */);
+				}
+				return false;
+			}
+			if (log.isLoggable(Level.FINE)) {
+				String requestDescr = null;
+				if (log.isLoggable(Level.FINE)) {
+					if (functionCode == ModbusBase.MODBUS_FC_READ_COILS) {
+						requestDescr = "READ_COILS";
+					} else if (functionCode == ModbusBase.MODBUS_FC_READ_DISCRETE_INPUTS) {
+						requestDescr = "READ_DISCRETE_INPUTS";
+					} else if (functionCode == ModbusBase.MODBUS_FC_READ_HOLDING_REGISTERS) {
+						requestDescr = "READ_HOLDING_REGISTERS";
+					} else if (functionCode == ModbusBase.MODBUS_FC_READ_INPUT_REGISTERS) {
+						requestDescr = "READ_INPUT_REGISTERS";
+					} else if (functionCode == ModbusBase.MODBUS_FC_WRITE_SINGLE_COIL) {
+						requestDescr = "WRITE_SINGLE_COIL";
+					} else if (functionCode == ModbusBase.MODBUS_FC_WRITE_MULTIPLE_COILS) {
+						requestDescr = "WRITE_MULTIPLE_COILS";
+					} else if (functionCode == ModbusBase.MODBUS_FC_WRITE_SINGLE_REGISTER) {
+						requestDescr = "WRITE_SINGLE_REGISTER";
+					} else if (functionCode == ModbusBase.MODBUS_FC_WRITE_MULTIPLE_REGISTERS) {
+						requestDescr = "WRITE_MULTIPLE_REGISTERS";
 					}
+					log.fine("Received " + requestDescr);
 				}
+				log.fine("Sent " + requestDescr);
 			}
+			if (writeStage != null) {
+				// the mapping is destroyed after the write has been applied
+				submitWrite(writeStage, false /* overflow */, connection, unitId, functionCode, address, addressQuantity, timeStamp, mapping);
+				mapping = null;
+				return true;
+			}
+			// if data has been written
+			if (isWrite) {
+				if (log.isLoggable(Level.FINE))
+					log.fine("Writing data for functionCode=" + functionCode + ", address=" + address + ", addressQuantity=" + addressQuantity);
+				// update data
+				try {
+					acquireBackend();
+					currentConnection.set(connection);
+					try {
+						slaveProcessor.write(unitId, functionCode, address, addressQuantity, timeStamp, mapping);
+					} finally {
+						currentConnection.remove();
+						releaseBackend();
+					}
+				} catch (ModbusSlaveException e) {
+					log.log(Level.SEVERE, "Cannot write data for functionCode=" + functionCode + ",address=" + address + ",quantity=" + addressQuantity,
+							e);
+				}
+			}
+			return true;
 		} finally {
-			// destroy request structure
-			request.delete();
-			// destroy structure for read fds
-			readFds.delete();
+			if (mapping != null) {
+				destroyMapping(mapping);
+				mapping = null;
+			}
+		}
+	}
+
+	/**
+	 * Reads data from the backend within the read budget of a request.
+	 *
+	 * @return false if the backend has not been called or has not answered in
+	 *         time. The mapping must not be used or destroyed by the caller
+	 *         then.
+	 */
+	private boolean readWithDeadline(final int unitId, final short functionCode, final int address, final int addressQuantity,
+			final ModbusMapping mapping, Date timeStamp) throws ModbusSlaveException {
+		long remaining = configuration.getReadBudget() - (System.currentTimeMillis() - timeStamp.getTime());
+		// if the request has waited too long or the backend is shed
+		if (remaining <= 0 || !backendGuard.isAdmitted()) {
+			if (log.isLoggable(Level.FINE))
+				log.fine("Not admitting read for functionCode=" + functionCode + ",address=" + address + " (remaining budget: " + remaining + "ms)");
+			destroyMapping(mapping);
+			return false;
+		}
+		// the mapping is destroyed by the side which finishes last
+		final AtomicBoolean isDone = new AtomicBoolean();
+		final ModbusSlaveException[] error = new ModbusSlaveException[1];
+		Future<?> future;
+		try {
+			future = backendGuard.submit(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						// the caller has already given up (e.g. while queued
+						// behind a hung call)
+						if (!isDone.get()) {
+							acquireBackend();
+							try {
+								slaveProcessor.read(unitId, functionCode, address, addressQuantity, mapping);
+							} finally {
+								releaseBackend();
+							}
+						}
+					} catch (ModbusSlaveException e) {
+						error[0] = e;
+					} finally {
+						if (isDone.getAndSet(true)) {
+							destroyMapping(mapping);
+						}
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// all threads are occupied by the backend
+			backendGuard.overrun();
+			log.warning("Not admitting read for functionCode=" + functionCode + ",address=" + address + " due to busy backend calls");
+			destroyMapping(mapping);
+			return false;
+		}
+		try {
+			future.get(remaining, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException | InterruptedException e) {
+			if (e instanceof InterruptedException) {
+				Thread.currentThread().interrupt();
+			}
+			// if the backend is still busy
+			if (!isDone.getAndSet(true)) {
+				backendGuard.overrun();
+				log.warning("Backend has not answered read for functionCode=" + functionCode + ",address=" + address + ",quantity=" + addressQuantity
+						+ " within " + configuration.getReadBudget() + "ms");
+				return false;
+			}
+		} catch (ExecutionException e) {
+			// a failed probe must not keep the breaker half-open
+			backendGuard.overrun();
+			throw new ModbusSlaveException("Reading failed", e.getCause());
+		}
+		backendGuard.succeeded();
+		if (error[0] != null) {
+			throw error[0];
+		}
+		return true;
+	}
+
+	private int[] getValues(short functionCode, int address, int addressQuantity, ModbusMapping mapping) {
+		int[] values = new int[addressQuantity];
+		if (functionCode == ModbusBase.MODBUS_FC_READ_COILS || functionCode == ModbusBase.MODBUS_FC_READ_DISCRETE_INPUTS) {
+			byte[] bits = new byte[addressQuantity];
+			mapping.getBits(functionCode == ModbusBase.MODBUS_FC_READ_DISCRETE_INPUTS, address, bits);
+			for (int i = 0; i < addressQuantity; i++) {
+				values[i] = bits[i];
+			}
+		} else {
+			short[] registers = new short[addressQuantity];
+			mapping.getRegisters(functionCode == ModbusBase.MODBUS_FC_READ_INPUT_REGISTERS, address, registers);
+			for (int i = 0; i < addressQuantity; i++) {
+				values[i] = registers[i] & 0xFFFF;
+			}
+		}
+		return values;
+	}
+
+	private void setValues(short functionCode, int address, int addressQuantity, ModbusMapping mapping, int[] values) {
+		if (functionCode == ModbusBase.MODBUS_FC_READ_COILS || functionCode == ModbusBase.MODBUS_FC_READ_DISCRETE_INPUTS) {
+			byte[] bits = new byte[addressQuantity];
+			for (int i = 0; i < addressQuantity; i++) {
+				bits[i] = (byte) values[i];
+			}
+			mapping.setBits(functionCode == ModbusBase.MODBUS_FC_READ_DISCRETE_INPUTS, address, bits);
+		} else {
+			short[] registers = new short[addressQuantity];
+			for (int i = 0; i < addressQuantity; i++) {
+				registers[i] = (short) values[i];
+			}
+			mapping.setRegisters(functionCode == ModbusBase.MODBUS_FC_READ_INPUT_REGISTERS, address, registers);
+		}
+	}
+
+	private boolean reserve(WriteStage writeStage) {
+		try {
+			writeStage.reserve();
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	private void submitWrite(WriteStage writeStage, boolean overflow, final ModbusConnection connection, final int unitId, final short functionCode, final int address,
+			final int addressQuantity, final Date timeStamp, final ModbusMapping mapping) {
+		writeStage.submit(new Runnable() {
+			@Override
+			public void run() {
+				if (log.isLoggable(Level.FINE))
+					log.fine("Writing data for functionCode=" + functionCode + ", address=" + address + ", addressQuantity=" + addressQuantity);
+				try {
+					acquireBackend();
+					currentConnection.set(connection);
+					try {
+						slaveProcessor.write(unitId, functionCode, address, addressQuantity, timeStamp, mapping);
+					} finally {
+						currentConnection.remove();
+						releaseBackend();
+					}
+				} catch (ModbusSlaveException e) {
+					log.log(Level.SEVERE, "Cannot write data for functionCode=" + functionCode + ",address=" + address + ",quantity=" + addressQuantity,
+							e);
+				} finally {
+					destroyMapping(mapping);
+				}
+			}
+		}, overflow);
+	}
+
+	/**
+	 * Copies the values of a write request to the mapping
+	 */
+	private void copyWriteValues(ModbusBase ctx, UInt8Array request, short functionCode, int address, int addressQuantity, ModbusMapping mapping) {
+		int headerLength = ctx.getHeaderLength();
+		boolean isSingle = functionCode == ModbusBase.MODBUS_FC_WRITE_SINGLE_COIL || functionCode == ModbusBase.MODBUS_FC_WRITE_SINGLE_REGISTER;
+		boolean isBits = functionCode == ModbusBase.MODBUS_FC_WRITE_SINGLE_COIL || functionCode == ModbusBase.MODBUS_FC_WRITE_MULTIPLE_COILS;
+		// offset of the values in the request
+		int offset = headerLength + (isSingle ? 3 : 6);
+		int length = isSingle ? 2 : isBits ? (addressQuantity + 7) / 8 : addressQuantity * 2;
+		// copy the request in one call
+		byte[] data = new byte[offset + length];
+		ctx.getBytes(request.cast(), data.length, data);
+		if (isBits) {
+			ByteBuffer bits = mapping.getBitsBuffer(false /* input */);
+			if (isSingle) {
+				bits.put(address, (byte) (data[offset] == (byte) 0xFF && data[offset + 1] == 0 ? 1 : 0));
+			} else {
+				for (int i = 0; i < addressQuantity; i++) {
+					bits.put(address + i, (byte) ((data[offset + i / 8] >> (i % 8)) & 1));
+				}
+			}
+		} else {
+			ShortBuffer registers = mapping.getRegistersView(false /* input */);
+			for (int i = 0; i < (isSingle ? 1 : addressQuantity); i++) {
+				registers.put(address + i, (short) (((data[offset + i * 2] & 0xFF) << 8) | (data[offset + i * 2 + 1] & 0xFF)));
+			}
 		}
 	}
 
 	private void destroyMapping(ModbusMapping mapping) {
-		// destroy mapping structure
-		ctx.mappingFree(mapping);
+		// destroy mapping structure independently of the context, which may
+		// have been freed before an abandoned backend call has finished
+		ModbusBase.freeMapping(mapping);
 		// destroy class instance
 		mapping.delete();
 	}
@@ -405,4 +1449,4 @@ public class ModbusSlave implements Floater {
 	public float getFloat(UInt16Array destRegisters) {
 		return ctx.getFloat(destRegisters.cast());
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,262 @@
+package havis.util.modbus.slave;
+
+/**
+ * Runtime options of a {@link ModbusSlave}
+ */
+public class ModbusSlaveConfiguration {
+
+	private boolean pipelining = true;
+	private boolean threadPerConnection;
+	private boolean nativeServing;
+	private int maxConcurrency;
+	private int dispatchThreadCount;
+	private boolean dispatchByConnection;
+	private int writeQueueCapacity;
+	private WriteOverflowPolicy writeOverflowPolicy = WriteOverflowPolicy.SERVER_BUSY;
+	private int readBudget;
+	private boolean staleReadAllowed;
+	private int circuitBreakerThreshold = 5;
+	private int circuitBreakerOpenTime = 10000;
+	private int clientRequestRate;
+	private int connectionIdleTimeout;
+	private int connectionEvictionTime = 10000;
+	private int keepAliveTime;
+	private int listenerCount = 1;
+	private CaptureTap captureTap;
+
+	public ModbusSlaveConfiguration() {
+	}
+
+	/**
+	 * @return true if all complete requests which are already buffered for a
+	 *         connection are processed before waiting for data again
+	 */
+	public boolean isPipelining() {
+		return pipelining;
+	}
+
+	public void setPipelining(boolean pipelining) {
+		this.pipelining = pipelining;
+	}
+
+	/**
+	 * @return true if each connection is served by a thread of its own
+	 *         instead of multiplexing all connections in one thread. The
+	 *         slave processor must be thread safe in this mode.
+	 */
+	public boolean isThreadPerConnection() {
+		return threadPerConnection;
+	}
+
+	public void setThreadPerConnection(boolean threadPerConnection) {
+		this.threadPerConnection = threadPerConnection;
+	}
+
+	/**
+	 * @return true if connections and requests are handled by the native serve
+	 *         loop which calls the slave processor for reading and writing
+	 *         data only. The options for dispatching, rate limits, write
+	 *         queue, read budget and idle connections are not applied in this
+	 *         mode.
+	 */
+	public boolean isNativeServing() {
+		return nativeServing;
+	}
+
+	public void setNativeServing(boolean nativeServing) {
+		this.nativeServing = nativeServing;
+	}
+
+	/**
+	 * @return the max. number of concurrent calls to the slave processor or 0
+	 *         for no limit
+	 */
+	public int getMaxConcurrency() {
+		return maxConcurrency;
+	}
+
+	public void setMaxConcurrency(int maxConcurrency) {
+		this.maxConcurrency = maxConcurrency;
+	}
+
+	/**
+	 * @return the number of worker threads processing the requests received
+	 *         by the slave thread or 0 for processing them in the slave thread.
+	 *         Requests of the same unit are processed in order by the same
+	 *         worker. The slave processor must be thread safe if more than one
+	 *         worker is used.
+	 */
+	public int getDispatchThreadCount() {
+		return dispatchThreadCount;
+	}
+
+	public void setDispatchThreadCount(int dispatchThreadCount) {
+		this.dispatchThreadCount = dispatchThreadCount;
+	}
+
+	/**
+	 * @return true if requests are dispatched by unit and connection instead of
+	 *         unit only
+	 */
+	public boolean isDispatchByConnection() {
+		return dispatchByConnection;
+	}
+
+	public void setDispatchByConnection(boolean dispatchByConnection) {
+		this.dispatchByConnection = dispatchByConnection;
+	}
+
+	/**
+	 * @return the max. number of client writes which are queued for the
+	 *         backend or 0 for applying the writes in the thread which has
+	 *         received them. With a queue, a client may read a value before
+	 *         its write has been applied.
+	 */
+	public int getWriteQueueCapacity() {
+		return writeQueueCapacity;
+	}
+
+	public void setWriteQueueCapacity(int writeQueueCapacity) {
+		this.writeQueueCapacity = writeQueueCapacity;
+	}
+
+	/**
+	 * @return the behaviour if the write queue is full
+	 */
+	public WriteOverflowPolicy getWriteOverflowPolicy() {
+		return writeOverflowPolicy;
+	}
+
+	public void setWriteOverflowPolicy(WriteOverflowPolicy writeOverflowPolicy) {
+		this.writeOverflowPolicy = writeOverflowPolicy;
+	}
+
+	/**
+	 * @return the time in ms from the receipt of a read request until the
+	 *         backend must have answered it or 0 for no limit. If the backend
+	 *         does not answer in time, the slave responds with exception SLAVE
+	 *         OR SERVER BUSY or with the last known values.
+	 */
+	public int getReadBudget() {
+		return readBudget;
+	}
+
+	public void setReadBudget(int readBudget) {
+		this.readBudget = readBudget;
+	}
+
+	/**
+	 * @return true if the values of the last successful read of the same
+	 *         request are returned if the backend does not answer in time
+	 */
+	public boolean isStaleReadAllowed() {
+		return staleReadAllowed;
+	}
+
+	public void setStaleReadAllowed(boolean staleReadAllowed) {
+		this.staleReadAllowed = staleReadAllowed;
+	}
+
+	/**
+	 * @return the number of consecutive reads exceeding the read budget after
+	 *         which the backend is not called for the open time or 0 for
+	 *         never shedding the backend
+	 */
+	public int getCircuitBreakerThreshold() {
+		return circuitBreakerThreshold;
+	}
+
+	public void setCircuitBreakerThreshold(int circuitBreakerThreshold) {
+		this.circuitBreakerThreshold = circuitBreakerThreshold;
+	}
+
+	/**
+	 * @return the time in ms for which a shed backend is not called before it
+	 *         is probed again
+	 */
+	public int getCircuitBreakerOpenTime() {
+		return circuitBreakerOpenTime;
+	}
+
+	public void setCircuitBreakerOpenTime(int circuitBreakerOpenTime) {
+		this.circuitBreakerOpenTime = circuitBreakerOpenTime;
+	}
+
+	/**
+	 * @return the max. number of requests per second and client or 0 for no
+	 *         limit. Further requests are rejected with exception SLAVE OR
+	 *         SERVER BUSY.
+	 */
+	public int getClientRequestRate() {
+		return clientRequestRate;
+	}
+
+	public void setClientRequestRate(int clientRequestRate) {
+		this.clientRequestRate = clientRequestRate;
+	}
+
+	/**
+	 * @return the time in ms after which a connection without requests is
+	 *         closed or 0 for never. Only applies to multiplexed connections.
+	 */
+	public int getConnectionIdleTimeout() {
+		return connectionIdleTimeout;
+	}
+
+	public void setConnectionIdleTimeout(int connectionIdleTimeout) {
+		this.connectionIdleTimeout = connectionIdleTimeout;
+	}
+
+	/**
+	 * @return the min. time in ms without requests after which the most idle
+	 *         connection is closed for a new connection if the max. connection
+	 *         count has been reached or 0 for rejecting new connections. Only
+	 *         applies to multiplexed connections.
+	 */
+	public int getConnectionEvictionTime() {
+		return connectionEvictionTime;
+	}
+
+	public void setConnectionEvictionTime(int connectionEvictionTime) {
+		this.connectionEvictionTime = connectionEvictionTime;
+	}
+
+	/**
+	 * @return the time in s without data after which TCP keepalive probes are
+	 *         sent or 0 for no keepalive. A connection is closed if 3 probes
+	 *         sent in intervals of a third of the time are not answered.
+	 */
+	public int getKeepAliveTime() {
+		return keepAliveTime;
+	}
+
+	public void setKeepAliveTime(int keepAliveTime) {
+		this.keepAliveTime = keepAliveTime;
+	}
+
+	/**
+	 * @return the number of listeners binding the port (SO_REUSEPORT), each
+	 *         served by a thread of its own. The kernel distributes the
+	 *         connections among them. The slave processor must be thread safe
+	 *         if more than one listener is used.
+	 */
+	public int getListenerCount() {
+		return listenerCount;
+	}
+
+	public void setListenerCount(int listenerCount) {
+		this.listenerCount = listenerCount;
+	}
+
+	/**
+	 * @return the tap capturing the requests and responses or null. Requests
+	 *         served natively are not captured.
+	 */
+	public CaptureTap getCaptureTap() {
+		return captureTap;
+	}
+
+	public void setCaptureTap(CaptureTap captureTap) {
+		this.captureTap = captureTap;
+	}
+}
@@ -2,7 +2,7 @@ package havis.util.modbus.slave;
 
 import java.util.Date;
 
-import havis.util.modbus.ModbusMapping;
+import havis.util.modbus.RegisterMapping;
 
 public interface ModbusSlaveProcessor {
 
@@ -10,7 +10,7 @@ public interface ModbusSlaveProcessor {
 
 	void disconnect() throws ModbusSlaveException;
 
-	void read(int slaveId, short functionCode, int address, int addressQuantity, ModbusMapping mapping) throws ModbusSlaveException;
+	void read(int slaveId, short functionCode, int address, int addressQuantity, RegisterMapping mapping) throws ModbusSlaveException;
 
-	void write(int slaveId, short functionCode, int address, int addressQuantity, Date timeStamp, ModbusMapping mapping) throws ModbusSlaveException;
+	void write(int slaveId, short functionCode, int address, int addressQuantity, Date timeStamp, RegisterMapping mapping) throws ModbusSlaveException;
 }
\ No newline at end of file
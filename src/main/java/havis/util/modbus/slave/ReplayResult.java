@@ -0,0 +1,91 @@
+package havis.util.modbus.slave;
+
+import java.util.Arrays;
+
+/**
+ * Result of a replay by {@link CaptureReplay}. The latency of a request is
+ * measured from sending the segment completing the request until its response
+ * has been received.
+ */
+public class ReplayResult {
+
+	private final int requestCount;
+	private final int responseCount;
+	private final int exceptionCount;
+	// duration in ns
+	private final long duration;
+	// sorted latencies in ns
+	private final long[] latencies;
+
+	ReplayResult(int requestCount, int responseCount, int exceptionCount, long duration, long[] latencies) {
+		this.requestCount = requestCount;
+		this.responseCount = responseCount;
+		this.exceptionCount = exceptionCount;
+		this.duration = duration;
+		this.latencies = latencies;
+		Arrays.sort(this.latencies);
+	}
+
+	/**
+	 * @return the number of sent requests
+	 */
+	public int getRequestCount() {
+		return requestCount;
+	}
+
+	/**
+	 * @return the number of received responses including exception responses
+	 */
+	public int getResponseCount() {
+		return responseCount;
+	}
+
+	/**
+	 * @return the number of received exception responses
+	 */
+	public int getExceptionCount() {
+		return exceptionCount;
+	}
+
+	/**
+	 * @return the time in ms from sending the first request until the last
+	 *         response has been received
+	 */
+	public double getDuration() {
+		return duration / 1e6;
+	}
+
+	/**
+	 * @return the number of responses per second
+	 */
+	public double getThroughput() {
+		return duration > 0 ? responseCount * 1e9 / duration : 0;
+	}
+
+	/**
+	 * @param percentile
+	 *            the percentile (0-100)
+	 * @return the latency in us of the percentile or 0 if no response has been
+	 *         received
+	 */
+	public double getLatency(double percentile) {
+		if (latencies.length == 0) {
+			return 0;
+		}
+		int index = (int) Math.ceil(percentile / 100 * latencies.length) - 1;
+		return latencies[Math.max(0, Math.min(index, latencies.length - 1))] / 1e3;
+	}
+
+	/**
+	 * @return the max. latency in us
+	 */
+	public double getMaxLatency() {
+		return getLatency(100);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("requests=%d, responses=%d, exceptions=%d, duration=%.1f ms, throughput=%.1f/s, latency: p50=%.1f us, p99=%.1f us, max=%.1f us",
+				requestCount, responseCount, exceptionCount, getDuration(), getThroughput(), getLatency(50), getLatency(99), getMaxLatency());
+	}
+}
@@ -0,0 +1,38 @@
+package havis.util.modbus.slave;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Distributes requests to a fixed number of worker threads. Requests with the
+ * same key are always processed by the same worker in the order of their
+ * arrival.
+ */
+class RequestDispatcher {
+
+	private final ExecutorService[] workers;
+
+	RequestDispatcher(int threadCount) {
+		workers = new ExecutorService[threadCount];
+		for (int i = 0; i < threadCount; i++) {
+			workers[i] = Executors.newSingleThreadExecutor();
+		}
+	}
+
+	void dispatch(int key, Runnable task) {
+		workers[(key & Integer.MAX_VALUE) % workers.length].execute(task);
+	}
+
+	/**
+	 * Processes all dispatched requests and stops the workers
+	 */
+	void shutdown() throws InterruptedException {
+		for (ExecutorService worker : workers) {
+			worker.shutdown();
+		}
+		for (ExecutorService worker : workers) {
+			worker.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		}
+	}
+}
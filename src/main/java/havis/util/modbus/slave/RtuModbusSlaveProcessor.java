@@ -1,5 +1,7 @@
 package havis.util.modbus.slave;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.Date;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -10,9 +12,8 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import havis.util.modbus.ModbusBase;
-import havis.util.modbus.ModbusMapping;
-import havis.util.modbus.UInt16Array;
-import havis.util.modbus.UInt8Array;
+import havis.util.modbus.RegisterMapping;
+import havis.util.modbus.rtu.RtuMaster;
 import havis.util.modbus.slave.ModbusSlave;
 import havis.util.modbus.slave.ModbusSlaveException;
 import havis.util.modbus.slave.ModbusSlaveProcessor;
@@ -24,19 +25,46 @@ public class RtuModbusSlaveProcessor implements ModbusSlaveProcessor {
 
 	private ExecutorService threadPool;
 	private Future<?> future;
+	private ModbusServer server;
 	private Lock lock = new ReentrantLock();
 
 	private ModbusBase context;
+	private RtuMaster master;
 	private int maxConnectionCount;
+	private ModbusSlaveConfiguration configuration = new ModbusSlaveConfiguration();
 
 	public RtuModbusSlaveProcessor(ModbusBase context, int maxConnectionCount) {
 		this.context = context;
 		this.maxConnectionCount = maxConnectionCount;
 	}
 
+	/**
+	 * Uses the Java RTU master instead of a native context
+	 */
+	public RtuModbusSlaveProcessor(RtuMaster master, int maxConnectionCount) {
+		this.master = master;
+		this.maxConnectionCount = maxConnectionCount;
+	}
+
+	/**
+	 * @return the slave of the last start, e.g. for reading the metrics of its
+	 *         write stage
+	 */
+	public ModbusSlave getSlave() {
+		return slave;
+	}
+
+	public ModbusSlaveConfiguration getConfiguration() {
+		return configuration;
+	}
+
+	public void setConfiguration(ModbusSlaveConfiguration configuration) {
+		this.configuration = configuration;
+	}
+
 	public void start(final int port) {
 
-		slave = new ModbusSlave(this, maxConnectionCount);
+		slave = new ModbusSlave(this, maxConnectionCount, configuration);
 		threadPool = Executors.newFixedThreadPool(1);
 		future = threadPool.submit(new Runnable() {
 			@Override
@@ -51,6 +79,16 @@ public class RtuModbusSlaveProcessor implements ModbusSlaveProcessor {
 		});
 	}
 
+	/**
+	 * Starts the slave on a port served by the event loop of a shared server
+	 * instead of a thread of its own
+	 */
+	public void start(ModbusServer server, int port) throws ModbusSlaveException {
+		slave = new ModbusSlave(this, maxConnectionCount, configuration);
+		server.open(slave, port);
+		this.server = server;
+	}
+
 	public void stop(int openCloseTimeout) throws ModbusSlaveException {
 		try {
 			lock.lock();
@@ -65,11 +103,23 @@ public class RtuModbusSlaveProcessor implements ModbusSlaveProcessor {
 				}
 				threadPool.shutdown();
 			}
+			if (server != null) {
+				try {
+					server.close(slave, openCloseTimeout);
+				} catch (ModbusSlaveException e) {
+					log.log(Level.SEVERE, "Cannot close modbus slave", e);
+				}
+				server = null;
+			}
 		} finally {
 			lock.unlock();
 		}
 	}
 
+	private boolean isRunning() {
+		return server != null || future != null && !threadPool.isShutdown();
+	}
+
 	@Override
 	public void connect() throws ModbusSlaveException {
 
@@ -81,14 +131,24 @@ public class RtuModbusSlaveProcessor implements ModbusSlaveProcessor {
 	}
 
 	@Override
-	public void read(int slaveId, short functionCode, int address, int addressQuantity, ModbusMapping mapping)
+	public void read(int slaveId, short functionCode, int address, int addressQuantity, RegisterMapping mapping)
 			throws ModbusSlaveException {
-
+		if (master != null) {
+			lock.lock();
+			try {
+				if (isRunning()) {
+					readFromMaster(slaveId, functionCode, address, addressQuantity, mapping);
+				}
+			} finally {
+				lock.unlock();
+			}
+			return;
+		}
 		synchronized (context) {
 			lock.lock();
 
 			try {
-				if (future != null && !threadPool.isShutdown()) {
+				if (isRunning()) {
 					// set slaveId
 					if (slaveId >= 0 && context.setSlave(slaveId) < 0) {
 						String msg = "Unable to set slaveId " + slaveId + " : " + context.getErrNo() + " "
@@ -96,83 +156,45 @@ public class RtuModbusSlaveProcessor implements ModbusSlaveProcessor {
 						throw new ModbusSlaveException(msg);
 					}
 
-					UInt8Array bits = null;
-					UInt8Array bitsTmp = null;
-					UInt16Array registers = null;
-					UInt16Array registersTmp = null;
-					try {
-						// if bits shall be read
-						if (functionCode == ModbusBase.MODBUS_FC_READ_COILS // 1
-								|| functionCode == ModbusBase.MODBUS_FC_READ_DISCRETE_INPUTS) { // 2
-							// read values
-							bitsTmp = new UInt8Array(addressQuantity);
-							int bitCount;
-							if (functionCode == ModbusBase.MODBUS_FC_READ_DISCRETE_INPUTS) {
-								bits = UInt8Array.frompointer(mapping.getTabInputBits());
-								bitCount = context.readInputBits(address, addressQuantity, bitsTmp.cast());
-							} else {
-								bits = UInt8Array.frompointer(mapping.getTabBits());
-								bitCount = context.readBits(address, addressQuantity, bitsTmp.cast());
-							}
-							if (bitCount < 1) {
-								throw new ModbusSlaveException(
-										"Unable to read " + addressQuantity + " bits at " + address + ": "
-												+ context.getErrNo() + " " + context.strError(context.getErrNo()));
-							}
-							if (log.isLoggable(Level.FINE)) {
-								for (int i = 0; i < bitCount; i++) {
-									log.log(Level.FINE, "Read " + (address + i) + ": " + bitsTmp.getitem(i));
-								}
-							}
-							// write values to mapping
-							for (int i = 0; i < addressQuantity; i++) {
-								bits.setitem(address + i, bitsTmp.getitem(i));
-							}
-						} else if (functionCode == ModbusBase.MODBUS_FC_READ_HOLDING_REGISTERS // 3
-								|| functionCode == ModbusBase.MODBUS_FC_READ_INPUT_REGISTERS) { // 4
-							// read values
-							registersTmp = new UInt16Array(addressQuantity);
-							int registerCount;
-							if (functionCode == ModbusBase.MODBUS_FC_READ_INPUT_REGISTERS) {
-								registers = UInt16Array.frompointer(mapping.getTabInputRegisters());
-								registerCount = context.readInputRegisters(address, addressQuantity,
-										registersTmp.cast());
-							} else {
-								registers = UInt16Array.frompointer(mapping.getTabRegisters());
-								registerCount = context.readRegisters(address, addressQuantity, registersTmp.cast());
-							}
-							if (registerCount < 1) {
-								throw new ModbusSlaveException(
-										"Unable to read " + addressQuantity + " registers at " + address + ": "
-												+ context.getErrNo() + " " + context.strError(context.getErrNo()));
-							}
-							if (log.isLoggable(Level.FINE)) {
-								for (int i = 0; i < registerCount; i++) {
-									log.log(Level.FINE, "Read " + (address + i) + ": 0x"
-											+ String.format("%04X", registersTmp.getitem(i)));
-								}
-							}
-							// write values to mapping
-							for (int i = 0; i < addressQuantity; i++) {
-								registers.setitem(address + i, registersTmp.getitem(i));
-							}
-						} else {
-							throw new ModbusSlaveException("Invalid function code for reading values: " + functionCode
-									+ " (supported: 1, 2, 3, 4");
+					// if bits shall be read
+					if (functionCode == ModbusBase.MODBUS_FC_READ_COILS // 1
+							|| functionCode == ModbusBase.MODBUS_FC_READ_DISCRETE_INPUTS) { // 2
+						// read values directly into the mapping
+						ByteBuffer bits = slice(
+								mapping.getBitsBuffer(functionCode == ModbusBase.MODBUS_FC_READ_DISCRETE_INPUTS), address);
+						int bitCount = readBits(functionCode == ModbusBase.MODBUS_FC_READ_DISCRETE_INPUTS, address,
+								addressQuantity, bits);
+						if (bitCount < 1) {
+							throw new ModbusSlaveException(
+									"Unable to read " + addressQuantity + " bits at " + address + ": "
+											+ context.getErrNo() + " " + context.strError(context.getErrNo()));
 						}
-					} finally {
-						if (bitsTmp != null) {
-							bitsTmp.delete();
-							if (bits != null) {
-								bits.delete();
+						if (log.isLoggable(Level.FINE)) {
+							for (int i = 0; i < bitCount; i++) {
+								log.log(Level.FINE, "Read " + (address + i) + ": " + bits.get(i));
 							}
 						}
-						if (registersTmp != null) {
-							registersTmp.delete();
-							if (registers != null) {
-								registers.delete();
+					} else if (functionCode == ModbusBase.MODBUS_FC_READ_HOLDING_REGISTERS // 3
+							|| functionCode == ModbusBase.MODBUS_FC_READ_INPUT_REGISTERS) { // 4
+						// read values directly into the mapping
+						ByteBuffer registers = slice(
+								mapping.getRegistersBuffer(functionCode == ModbusBase.MODBUS_FC_READ_INPUT_REGISTERS), address * 2);
+						int registerCount = readRegisters(functionCode == ModbusBase.MODBUS_FC_READ_INPUT_REGISTERS,
+								address, addressQuantity, registers);
+						if (registerCount < 1) {
+							throw new ModbusSlaveException(
+									"Unable to read " + addressQuantity + " registers at " + address + ": "
+											+ context.getErrNo() + " " + context.strError(context.getErrNo()));
+						}
+						if (log.isLoggable(Level.FINE)) {
+							for (int i = 0; i < registerCount; i++) {
+								log.log(Level.FINE, "Read " + (address + i) + ": 0x"
+										+ String.format("%04X", registers.getShort(i * 2)));
 							}
 						}
+					} else {
+						throw new ModbusSlaveException("Invalid function code for reading values: " + functionCode
+								+ " (supported: 1, 2, 3, 4");
 					}
 				}
 			} finally {
@@ -183,7 +205,11 @@ public class RtuModbusSlaveProcessor implements ModbusSlaveProcessor {
 
 	@Override
 	public void write(int slaveId, short functionCode, int address, int addressQuantity, Date timeStamp,
-			ModbusMapping mapping) throws ModbusSlaveException {
+			RegisterMapping mapping) throws ModbusSlaveException {
+		if (master != null) {
+			writeToMaster(slaveId, functionCode, address, addressQuantity, mapping);
+			return;
+		}
 		synchronized (context) {
 			// set slaveId
 			if (slaveId >= 0 && context.setSlave(slaveId) < 0) {
@@ -191,70 +217,172 @@ public class RtuModbusSlaveProcessor implements ModbusSlaveProcessor {
 						+ context.strError(context.getErrNo());
 				throw new ModbusSlaveException(msg);
 			}
-			UInt8Array bits = null;
-			UInt8Array bitsTmp = null;
-			UInt16Array registers = null;
-			UInt16Array registersTmp = null;
-			try {
-				if (functionCode == ModbusBase.MODBUS_FC_WRITE_SINGLE_COIL // 5
-						|| functionCode == ModbusBase.MODBUS_FC_WRITE_MULTIPLE_COILS) { // 15
-					bits = UInt8Array.frompointer(mapping.getTabBits());
-					if (log.isLoggable(Level.FINE)) {
-						for (int i = 0; i < addressQuantity; i++) {
-							log.log(Level.FINE, "Writing " + (address + i) + ": " + bits.getitem(address + i));
-						}
-					}
-					// write values
-					if (functionCode == ModbusBase.MODBUS_FC_WRITE_SINGLE_COIL) {
-						for (int i = 0; i < addressQuantity; i++) {
-							context.writeBit(address + i, bits.getitem(address + i));
-						}
-					} else if (functionCode == ModbusBase.MODBUS_FC_WRITE_MULTIPLE_COILS) {
-						bitsTmp = new UInt8Array(addressQuantity);
-						for (int i = 0; i < addressQuantity; i++) {
-							bitsTmp.setitem(i, bits.getitem(address + i));
-						}
-						context.writeBits(address, addressQuantity, bitsTmp.cast());
+			if (functionCode == ModbusBase.MODBUS_FC_WRITE_SINGLE_COIL // 5
+					|| functionCode == ModbusBase.MODBUS_FC_WRITE_MULTIPLE_COILS) { // 15
+				ByteBuffer bits = slice(mapping.getBitsBuffer(false /* input */), address);
+				if (log.isLoggable(Level.FINE)) {
+					for (int i = 0; i < addressQuantity; i++) {
+						log.log(Level.FINE, "Writing " + (address + i) + ": " + bits.get(i));
 					}
-				} else if (functionCode == ModbusBase.MODBUS_FC_WRITE_SINGLE_REGISTER // 6
-						|| functionCode == ModbusBase.MODBUS_FC_WRITE_MULTIPLE_REGISTERS) { // 16
-					registers = UInt16Array.frompointer(mapping.getTabRegisters());
-					if (log.isLoggable(Level.FINE)) {
-						for (int i = 0; i < addressQuantity; i++) {
-							log.log(Level.FINE, "Writing " + (address + i) + ": 0x"
-									+ String.format("%04X", registers.getitem(address + i)));
-						}
-					}
-					// write values
-					if (functionCode == ModbusBase.MODBUS_FC_WRITE_SINGLE_REGISTER) {
-						for (int i = 0; i < addressQuantity; i++) {
-							context.writeRegister(address + i, registers.getitem(address + i));
-						}
-					} else if (functionCode == ModbusBase.MODBUS_FC_WRITE_MULTIPLE_REGISTERS) {
-						registersTmp = new UInt16Array(addressQuantity);
-						for (int i = 0; i < addressQuantity; i++) {
-							registersTmp.setitem(i, registers.getitem(address + i));
-						}
-						context.writeRegisters(address, addressQuantity, registersTmp.cast());
+				}
+				// write values directly from the mapping
+				if (functionCode == ModbusBase.MODBUS_FC_WRITE_SINGLE_COIL) {
+					for (int i = 0; i < addressQuantity; i++) {
+						context.writeBit(address + i, bits.get(i));
 					}
-				} else {
-					throw new ModbusSlaveException(
-							"Invalid function code for writing values: " + functionCode + " (supported: 5, 6, 15, 16)");
+				} else if (functionCode == ModbusBase.MODBUS_FC_WRITE_MULTIPLE_COILS) {
+					writeBits(address, addressQuantity, bits);
 				}
-			} finally {
-				if (bits != null) {
-					bits.delete();
-					if (bitsTmp != null) {
-						bitsTmp.delete();
+			} else if (functionCode == ModbusBase.MODBUS_FC_WRITE_SINGLE_REGISTER // 6
+					|| functionCode == ModbusBase.MODBUS_FC_WRITE_MULTIPLE_REGISTERS) { // 16
+				ByteBuffer registers = slice(mapping.getRegistersBuffer(false /* input */), address * 2);
+				if (log.isLoggable(Level.FINE)) {
+					for (int i = 0; i < addressQuantity; i++) {
+						log.log(Level.FINE, "Writing " + (address + i) + ": 0x"
+								+ String.format("%04X", registers.getShort(i * 2)));
 					}
 				}
-				if (registers != null) {
-					registers.delete();
-					if (registersTmp != null) {
-						registersTmp.delete();
+				// write values directly from the mapping
+				if (functionCode == ModbusBase.MODBUS_FC_WRITE_SINGLE_REGISTER) {
+					for (int i = 0; i < addressQuantity; i++) {
+						context.writeRegister(address + i, registers.getShort(i * 2) & 0xFFFF);
 					}
+				} else if (functionCode == ModbusBase.MODBUS_FC_WRITE_MULTIPLE_REGISTERS) {
+					writeRegisters(address, addressQuantity, registers);
+				}
+			} else {
+				throw new ModbusSlaveException(
+						"Invalid function code for writing values: " + functionCode + " (supported: 5, 6, 15, 16)");
+			}
+		}
+	}
+
+	private void readFromMaster(int slaveId, short functionCode, int address, int addressQuantity,
+			RegisterMapping mapping) throws ModbusSlaveException {
+		int unitId = slaveId >= 0 ? slaveId : 1;
+		if (functionCode == ModbusBase.MODBUS_FC_READ_COILS // 1
+				|| functionCode == ModbusBase.MODBUS_FC_READ_DISCRETE_INPUTS) { // 2
+			boolean input = functionCode == ModbusBase.MODBUS_FC_READ_DISCRETE_INPUTS;
+			boolean[] values = new boolean[addressQuantity];
+			if (input) {
+				master.readInputBits(unitId, address, values);
+			} else {
+				master.readBits(unitId, address, values);
+			}
+			byte[] bits = new byte[addressQuantity];
+			for (int i = 0; i < addressQuantity; i++) {
+				bits[i] = (byte) (values[i] ? 1 : 0);
+			}
+			mapping.setBits(input, address, bits);
+		} else if (functionCode == ModbusBase.MODBUS_FC_READ_HOLDING_REGISTERS // 3
+				|| functionCode == ModbusBase.MODBUS_FC_READ_INPUT_REGISTERS) { // 4
+			boolean input = functionCode == ModbusBase.MODBUS_FC_READ_INPUT_REGISTERS;
+			short[] registers = new short[addressQuantity];
+			if (input) {
+				master.readInputRegisters(unitId, address, registers);
+			} else {
+				master.readRegisters(unitId, address, registers);
+			}
+			mapping.setRegisters(input, address, registers);
+		} else {
+			throw new ModbusSlaveException("Invalid function code for reading values: " + functionCode
+					+ " (supported: 1, 2, 3, 4");
+		}
+	}
+
+	private void writeToMaster(int slaveId, short functionCode, int address, int addressQuantity,
+			RegisterMapping mapping) throws ModbusSlaveException {
+		int unitId = slaveId >= 0 ? slaveId : 1;
+		if (functionCode == ModbusBase.MODBUS_FC_WRITE_SINGLE_COIL // 5
+				|| functionCode == ModbusBase.MODBUS_FC_WRITE_MULTIPLE_COILS) { // 15
+			byte[] bits = new byte[addressQuantity];
+			mapping.getBits(false /* input */, address, bits);
+			boolean[] values = new boolean[addressQuantity];
+			for (int i = 0; i < addressQuantity; i++) {
+				values[i] = bits[i] != 0;
+			}
+			if (functionCode == ModbusBase.MODBUS_FC_WRITE_SINGLE_COIL) {
+				for (int i = 0; i < addressQuantity; i++) {
+					master.writeBit(unitId, address + i, values[i]);
+				}
+			} else {
+				master.writeBits(unitId, address, values);
+			}
+		} else if (functionCode == ModbusBase.MODBUS_FC_WRITE_SINGLE_REGISTER // 6
+				|| functionCode == ModbusBase.MODBUS_FC_WRITE_MULTIPLE_REGISTERS) { // 16
+			short[] registers = new short[addressQuantity];
+			mapping.getRegisters(false /* input */, address, registers);
+			if (functionCode == ModbusBase.MODBUS_FC_WRITE_SINGLE_REGISTER) {
+				for (int i = 0; i < addressQuantity; i++) {
+					master.writeRegister(unitId, address + i, registers[i] & 0xFFFF);
 				}
+			} else {
+				master.writeRegisters(unitId, address, registers);
 			}
+		} else {
+			throw new ModbusSlaveException(
+					"Invalid function code for writing values: " + functionCode + " (supported: 5, 6, 15, 16)");
 		}
 	}
-}
\ No newline at end of file
+
+	// the tables of heap mappings (e.g. of an in-memory transport) cannot be
+	// passed to the native master, they are copied by the array overloads
+
+	private int readBits(boolean input, int address, int addressQuantity, ByteBuffer bits) {
+		if (bits.isDirect()) {
+			return input ? context.readInputBits(address, addressQuantity, bits)
+					: context.readBits(address, addressQuantity, bits);
+		}
+		boolean[] values = new boolean[addressQuantity];
+		int bitCount = input ? context.readInputBits(address, values) : context.readBits(address, values);
+		for (int i = 0; i < bitCount; i++) {
+			bits.put(i, (byte) (values[i] ? 1 : 0));
+		}
+		return bitCount;
+	}
+
+	private int readRegisters(boolean input, int address, int addressQuantity, ByteBuffer registers) {
+		if (registers.isDirect()) {
+			return input ? context.readInputRegisters(address, addressQuantity, registers)
+					: context.readRegisters(address, addressQuantity, registers);
+		}
+		short[] values = new short[addressQuantity];
+		int registerCount = input ? context.readInputRegisters(address, values) : context.readRegisters(address, values);
+		for (int i = 0; i < registerCount; i++) {
+			registers.putShort(i * 2, values[i]);
+		}
+		return registerCount;
+	}
+
+	private int writeBits(int address, int addressQuantity, ByteBuffer bits) {
+		if (bits.isDirect()) {
+			return context.writeBits(address, addressQuantity, bits);
+		}
+		boolean[] values = new boolean[addressQuantity];
+		for (int i = 0; i < addressQuantity; i++) {
+			values[i] = bits.get(i) != 0;
+		}
+		return context.writeBits(address, values);
+	}
+
+	private int writeRegisters(int address, int addressQuantity, ByteBuffer registers) {
+		if (registers.isDirect()) {
+			return context.writeRegisters(address, addressQuantity, registers);
+		}
+		short[] values = new short[addressQuantity];
+		for (int i = 0; i < addressQuantity; i++) {
+			values[i] = registers.getShort(i * 2);
+		}
+		return context.writeRegisters(address, values);
+	}
+
+	/**
+	 * @return a view of a table of the mapping starting at an offset (in
+	 *         bytes) in native byte order. The master calls write to and read
+	 *         from direct tables without copies.
+	 */
+	private ByteBuffer slice(ByteBuffer table, int offset) {
+		table.position(offset);
+		return table.slice().order(ByteOrder.nativeOrder());
+	}
+}
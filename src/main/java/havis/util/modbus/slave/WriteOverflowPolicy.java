@@ -0,0 +1,24 @@
+package havis.util.modbus.slave;
+
+/**
+ * Behaviour of a {@link ModbusSlave} if a client writes while the queue of
+ * the asynchronous write stage is full
+ */
+public enum WriteOverflowPolicy {
+	/**
+	 * The slave waits for a free entry before it responds
+	 */
+	BLOCK,
+	/**
+	 * The write is rejected with exception SLAVE OR SERVER BUSY. The client
+	 * has to repeat it.
+	 */
+	SERVER_BUSY,
+	/**
+	 * The slave responds with exception ACKNOWLEDGE and queues the write to an
+	 * overflow entry without waiting. The write is applied later. If the
+	 * overflow entries (as many as the capacity) are also in use, the write is
+	 * rejected with exception SLAVE OR SERVER BUSY.
+	 */
+	ACKNOWLEDGE
+}
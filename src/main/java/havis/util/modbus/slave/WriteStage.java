@@ -0,0 +1,157 @@
+package havis.util.modbus.slave;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Applies the writes of clients to the backend in a thread of its own and in
+ * the order of their arrival. The number of queued writes is limited by the
+ * capacity. The latency of a write is measured from its acceptance until it
+ * has been applied.
+ */
+public class WriteStage {
+
+	private static final Logger log = Logger.getLogger(WriteStage.class.getName());
+
+	private final int capacity;
+	private final Semaphore entries;
+	// entries for acknowledged writes beyond the capacity
+	private final Semaphore overflowEntries;
+	private final ExecutorService worker = Executors.newSingleThreadExecutor();
+
+	private final LongAdder appliedCount = new LongAdder();
+	private final LongAdder rejectedCount = new LongAdder();
+	private final LongAdder latencySum = new LongAdder();
+	private final AtomicLong maxLatency = new AtomicLong();
+
+	WriteStage(int capacity) {
+		this.capacity = capacity;
+		entries = new Semaphore(capacity);
+		overflowEntries = new Semaphore(capacity);
+	}
+
+	/**
+	 * Reserves an entry for a write without waiting
+	 *
+	 * @return false if the queue is full
+	 */
+	boolean tryReserve() {
+		return entries.tryAcquire();
+	}
+
+	/**
+	 * Reserves an overflow entry for an acknowledged write without waiting
+	 *
+	 * @return false if the overflow entries are also in use
+	 */
+	boolean tryReserveOverflow() {
+		return overflowEntries.tryAcquire();
+	}
+
+	/**
+	 * Waits for a free entry
+	 */
+	void reserve() throws InterruptedException {
+		entries.acquire();
+	}
+
+	/**
+	 * Releases a reserved entry which is not used
+	 */
+	void cancel(boolean overflow) {
+		(overflow ? overflowEntries : entries).release();
+	}
+
+	void rejected() {
+		rejectedCount.increment();
+	}
+
+	/**
+	 * Queues a write for a reserved entry
+	 *
+	 * @param overflow
+	 *            true if an overflow entry has been reserved
+	 */
+	void submit(final Runnable write, boolean overflow) {
+		final Semaphore entries = overflow ? overflowEntries : this.entries;
+		final long acceptTime = System.nanoTime();
+		worker.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					write.run();
+				} catch (Exception e) {
+					log.log(Level.SEVERE, "Cannot apply write", e);
+				} finally {
+					entries.release();
+					long latency = System.nanoTime() - acceptTime;
+					appliedCount.increment();
+					latencySum.add(latency);
+					long max;
+					while (latency > (max = maxLatency.get()) && !maxLatency.compareAndSet(max, latency)) {
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Runs a task after the queued writes without reserving an entry
+	 */
+	void execute(Runnable task) {
+		worker.execute(task);
+	}
+
+	/**
+	 * Applies all queued writes and stops the thread
+	 */
+	void shutdown() throws InterruptedException {
+		worker.shutdown();
+		worker.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * @return the number of queued writes including the acknowledged writes
+	 *         and the write which is currently applied
+	 */
+	public int getQueueDepth() {
+		return 2 * capacity - entries.availablePermits() - overflowEntries.availablePermits();
+	}
+
+	public long getAppliedCount() {
+		return appliedCount.sum();
+	}
+
+	/**
+	 * @return the number of writes which have been rejected with exception
+	 *         SLAVE OR SERVER BUSY
+	 */
+	public long getRejectedCount() {
+		return rejectedCount.sum();
+	}
+
+	/**
+	 * @return the average latency of the applied writes in ns
+	 */
+	public long getAverageLatency() {
+		long count = appliedCount.sum();
+		return count == 0 ? 0 : latencySum.sum() / count;
+	}
+
+	/**
+	 * @return the max. latency of the applied writes in ns
+	 */
+	public long getMaxLatency() {
+		return maxLatency.get();
+	}
+}
@@ -1,21 +1,147 @@
-%module Modbus
+%module(directors="1") Modbus
 %{
 #include "../../../src/main/cpp/modbus_mapping.h"
 #include "../../../src/main/cpp/modbus_base.h"
 #include "../../../src/main/cpp/modbus_rtu.h"
+#include "../../../src/main/cpp/modbus_request_handler.h"
 #include "../../../src/main/cpp/modbus_tcppi.h"
+#include "../../../src/main/cpp/modbus_selector.h"
 %}
  
 %include "carrays.i"
 %include "stdint.i"
+%include "arrays_java.i"
 %array_class(uint8_t, UInt8Array);
 %array_class(uint16_t, UInt16Array);
 %array_class(int, IntArray);
+// the decoded request is copied to a Java array in one call
+%apply int[] { int* returnHeader };
+
+// bulk copies between the tables of a mapping and Java arrays: the array is
+// pinned (or copied once) by the JVM instead of one call per value
+%typemap(jni) (int8_t* bulkValues, int bulkLength) "jbyteArray"
+%typemap(jtype) (int8_t* bulkValues, int bulkLength) "byte[]"
+%typemap(jstype) (int8_t* bulkValues, int bulkLength) "byte[]"
+%typemap(javain) (int8_t* bulkValues, int bulkLength) "$javainput"
+%typemap(in) (int8_t* bulkValues, int bulkLength) {
+  if (!$input) {
+    SWIG_JavaThrowException(jenv, SWIG_JavaNullPointerException, "null array");
+    return $null;
+  }
+  $2 = JCALL1(GetArrayLength, jenv, $input);
+  $1 = (int8_t*) JCALL2(GetPrimitiveArrayCritical, jenv, $input, 0);
+  if (!$1) {
+    return $null;
+  }
+}
+%typemap(freearg) (int8_t* bulkValues, int bulkLength) {
+  JCALL3(ReleasePrimitiveArrayCritical, jenv, $input, $1, 0);
+}
+%typemap(jni) (int16_t* bulkValues, int bulkLength) "jshortArray"
+%typemap(jtype) (int16_t* bulkValues, int bulkLength) "short[]"
+%typemap(jstype) (int16_t* bulkValues, int bulkLength) "short[]"
+%typemap(javain) (int16_t* bulkValues, int bulkLength) "$javainput"
+%typemap(in) (int16_t* bulkValues, int bulkLength) {
+  if (!$input) {
+    SWIG_JavaThrowException(jenv, SWIG_JavaNullPointerException, "null array");
+    return $null;
+  }
+  $2 = JCALL1(GetArrayLength, jenv, $input);
+  $1 = (int16_t*) JCALL2(GetPrimitiveArrayCritical, jenv, $input, 0);
+  if (!$1) {
+    return $null;
+  }
+}
+%typemap(freearg) (int16_t* bulkValues, int bulkLength) {
+  JCALL3(ReleasePrimitiveArrayCritical, jenv, $input, $1, 0);
+}
+
+// master reads and writes with Java arrays: the values are copied with one
+// call per array. The arrays are not pinned because the calls block until the
+// response has been received.
+%define MODBUS_ARRAY_TYPEMAPS(CTYPE, JNITYPE, JTYPE, JNIELEM, NAME)
+%typemap(jni) (CTYPE* readValues, int readLength), (CTYPE* writeValues, int writeLength) #JNITYPE
+%typemap(jtype) (CTYPE* readValues, int readLength), (CTYPE* writeValues, int writeLength) #JTYPE
+%typemap(jstype) (CTYPE* readValues, int readLength), (CTYPE* writeValues, int writeLength) #JTYPE
+%typemap(javain) (CTYPE* readValues, int readLength), (CTYPE* writeValues, int writeLength) "$javainput"
+%typemap(in) (CTYPE* readValues, int readLength) {
+  if (!$input) {
+    SWIG_JavaThrowException(jenv, SWIG_JavaNullPointerException, "null array");
+    return $null;
+  }
+  $2 = JCALL1(GetArrayLength, jenv, $input);
+  $1 = new CTYPE[$2 > 0 ? $2 : 1];
+}
+%typemap(in) (CTYPE* writeValues, int writeLength) {
+  if (!$input) {
+    SWIG_JavaThrowException(jenv, SWIG_JavaNullPointerException, "null array");
+    return $null;
+  }
+  $2 = JCALL1(GetArrayLength, jenv, $input);
+  $1 = new CTYPE[$2 > 0 ? $2 : 1];
+  JCALL4(Get##NAME##ArrayRegion, jenv, $input, 0, $2, (JNIELEM*) $1);
+}
+%typemap(argout) (CTYPE* readValues, int readLength) {
+  if (result > 0) {
+    JCALL4(Set##NAME##ArrayRegion, jenv, $input, 0, result, (JNIELEM*) $1);
+  }
+}
+%typemap(freearg) (CTYPE* readValues, int readLength), (CTYPE* writeValues, int writeLength) {
+  delete[] $1;
+}
+%enddef
+MODBUS_ARRAY_TYPEMAPS(uint8_t, jbooleanArray, boolean[], jboolean, Boolean)
+MODBUS_ARRAY_TYPEMAPS(int16_t, jshortArray, short[], jshort, Short)
+
+// master reads and writes with direct ByteBuffers without any copy
+%typemap(jni) (void* directValues, int directCapacity) "jobject"
+%typemap(jtype) (void* directValues, int directCapacity) "java.nio.ByteBuffer"
+%typemap(jstype) (void* directValues, int directCapacity) "java.nio.ByteBuffer"
+%typemap(javain) (void* directValues, int directCapacity) "$javainput"
+%typemap(in) (void* directValues, int directCapacity) {
+  $1 = $input ? JCALL1(GetDirectBufferAddress, jenv, $input) : 0;
+  if (!$1) {
+    SWIG_JavaThrowException(jenv, SWIG_JavaIllegalArgumentException, "no direct buffer");
+    return $null;
+  }
+  $2 = (int) JCALL1(GetDirectBufferCapacity, jenv, $input);
+}
+
+// the tables of a mapping are returned as direct ByteBuffers
+%ignore ModbusTable;
+%typemap(jni) ModbusTable "jobject"
+%typemap(jtype) ModbusTable "java.nio.ByteBuffer"
+%typemap(jstype) ModbusTable "java.nio.ByteBuffer"
+%typemap(javaout) ModbusTable {
+    return $jnicall;
+  }
+%typemap(out) ModbusTable {
+  $result = JCALL2(NewDirectByteBuffer, jenv, $1.address, $1.capacity);
+}
+%typemap(javacode) ModbusMapping %{
+  /**
+   * @return a view of a register table in native byte order, valid until the
+   *         mapping is freed
+   */
+  public java.nio.ShortBuffer getRegistersView(boolean input) {
+    return getRegistersBuffer(input).order(java.nio.ByteOrder.nativeOrder()).asShortBuffer();
+  }
+%}
+
+// the native classes implement the interfaces of the pure Java
+// implementations (e.g. for tests without the library)
+%typemap(javainterfaces) ModbusMapping "havis.util.modbus.RegisterMapping"
+%typemap(javainterfaces) ModbusBase "havis.util.modbus.ModbusTransport"
+
+// the request handler of the native serve loop is implemented in Java
+%feature("director") ModbusRequestHandler;
 
 %include "src/main/cpp/modbus_mapping.h"
 %include "src/main/cpp/modbus_base.h"
 %include "src/main/cpp/modbus_rtu.h"
+%include "src/main/cpp/modbus_request_handler.h"
 %include "src/main/cpp/modbus_tcppi.h"
+%include "src/main/cpp/modbus_selector.h"
 
 %pragma(java) jniclasscode=%{
   static {
@@ -1,4 +1,5 @@
 module havis.util.modbus {
     exports havis.util.modbus;
+    exports havis.util.modbus.rtu;
     exports havis.util.modbus.slave;
 }
\ No newline at end of file
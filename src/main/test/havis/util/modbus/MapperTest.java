@@ -0,0 +1,39 @@
+package havis.util.modbus;
+
+import java.nio.ShortBuffer;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MapperTest {
+
+	@Test
+	public void cachedEncodingOfChangedField() throws Exception {
+		HeapMapping mapping = new HeapMapping(0, 0, 4, 0);
+		ShortBuffer registers = mapping.getRegistersView(false);
+		Mapper mapper = new Mapper();
+		Field field = new Field(RegisterType.HOLDING_REGISTERS, DataType.STRING, 1, 2);
+		String[] value = new String[] { "AB" };
+
+		mapper.set(registers, field, value, "test");
+		Assert.assertEquals((short) 0x4142, registers.get(1));
+		Assert.assertEquals((short) 0x0000, registers.get(2));
+
+		// the same value is encoded again after the field has been changed in
+		// place
+		field.setByteSwap(true);
+		mapper.set(registers, field, value, "test");
+		Assert.assertEquals((short) 0x4241, registers.get(1));
+
+		field.setByteSwap(false);
+		field.setPadding(StringPadding.SPACE);
+		mapper.set(registers, field, value, "test");
+		Assert.assertEquals((short) 0x4142, registers.get(1));
+		Assert.assertEquals((short) 0x2020, registers.get(2));
+
+		// a modified array of the backend is not taken for the cached value
+		value[0] = "CD";
+		mapper.set(registers, field, value, "test");
+		Assert.assertEquals((short) 0x4344, registers.get(1));
+	}
+}
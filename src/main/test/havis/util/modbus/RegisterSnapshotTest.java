@@ -0,0 +1,84 @@
+package havis.util.modbus;
+
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RegisterSnapshotTest {
+
+	@Test
+	public void reload() throws Exception {
+		Path path = Files.createTempFile("snapshot", ".bin");
+		try {
+			RegisterSnapshot snapshot = new RegisterSnapshot(path);
+			snapshot.set(RegisterType.HOLDING_REGISTERS, 100, 3, new int[] { 1, 0xFFFF, 3 });
+			snapshot.set(RegisterType.COILS, 5, 1, new int[] { 1 });
+			snapshot.close();
+
+			snapshot = new RegisterSnapshot(path);
+			Assert.assertTrue(snapshot.isKnown(RegisterType.HOLDING_REGISTERS, 100, 3));
+			Assert.assertFalse(snapshot.isKnown(RegisterType.HOLDING_REGISTERS, 100, 4));
+			Assert.assertFalse(snapshot.isKnown(RegisterType.INPUT_REGISTERS, 100, 1));
+			int[] values = new int[3];
+			snapshot.get(RegisterType.HOLDING_REGISTERS, 100, 3, values);
+			Assert.assertArrayEquals(new int[] { 1, 0xFFFF, 3 }, values);
+			snapshot.get(RegisterType.COILS, 5, 1, values);
+			Assert.assertEquals(1, values[0]);
+			snapshot.close();
+		} finally {
+			Files.deleteIfExists(path);
+		}
+	}
+
+	@Test
+	public void truncatedTail() throws Exception {
+		Path path = Files.createTempFile("snapshot", ".bin");
+		try {
+			RegisterSnapshot snapshot = new RegisterSnapshot(path);
+			snapshot.set(RegisterType.HOLDING_REGISTERS, 0, 1, new int[] { 1 });
+			snapshot.flush();
+			snapshot.set(RegisterType.HOLDING_REGISTERS, 0, 1, new int[] { 2 });
+			snapshot.close();
+
+			// cut the second record
+			try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+				file.setLength(file.length() - 10);
+			}
+
+			snapshot = new RegisterSnapshot(path);
+			int[] values = new int[1];
+			snapshot.get(RegisterType.HOLDING_REGISTERS, 0, 1, values);
+			Assert.assertEquals(1, values[0]);
+			snapshot.close();
+			Assert.assertEquals(8 + RegisterSnapshot.RECORD_LENGTH, Files.size(path));
+		} finally {
+			Files.deleteIfExists(path);
+		}
+	}
+
+	@Test
+	public void compact() throws Exception {
+		Path path = Files.createTempFile("snapshot", ".bin");
+		try {
+			RegisterSnapshot snapshot = new RegisterSnapshot(path);
+			snapshot.setCompactionFactor(2);
+			for (int i = 0; i < 10; i++) {
+				snapshot.set(RegisterType.INPUT_REGISTERS, 7, 1, new int[] { i });
+				snapshot.flush();
+				Assert.assertTrue(Files.size(path) <= 8 + 2 * RegisterSnapshot.RECORD_LENGTH);
+			}
+			snapshot.close();
+
+			snapshot = new RegisterSnapshot(path);
+			int[] values = new int[1];
+			snapshot.get(RegisterType.INPUT_REGISTERS, 7, 1, values);
+			Assert.assertEquals(9, values[0]);
+			snapshot.close();
+		} finally {
+			Files.deleteIfExists(path);
+		}
+	}
+}
@@ -0,0 +1,96 @@
+package havis.util.modbus;
+
+import java.nio.ShortBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class StringCodecTest {
+
+	private final StringCodec codec = StringCodec.get();
+
+	private Field field(int quantity) {
+		return new Field(RegisterType.HOLDING_REGISTERS, DataType.STRING, 0, quantity);
+	}
+
+	private short[] encode(Field field, String... values) {
+		ShortBuffer registers = ShortBuffer.allocate(field.getAddressQuantity());
+		codec.encode(values, field, registers, 0, field.getAddressQuantity());
+		return registers.array();
+	}
+
+	private String decode(Field field, short... words) {
+		return codec.decode(ShortBuffer.wrap(words), 0, words.length, field);
+	}
+
+	@Test
+	public void charset() {
+		Field field = field(1);
+		// default: UTF-8
+		Assert.assertArrayEquals(new short[] { (short) 0xC3A9 }, encode(field, "\u00E9"));
+		Assert.assertEquals("\u00E9", decode(field, (short) 0xC3A9));
+
+		field.setCharset(StandardCharsets.ISO_8859_1);
+		Assert.assertArrayEquals(new short[] { (short) 0xE961 }, encode(field, "\u00E9a"));
+		Assert.assertEquals("\u00E9a", decode(field, (short) 0xE961));
+
+		// unmappable characters are replaced
+		field.setCharset(StandardCharsets.US_ASCII);
+		Assert.assertArrayEquals(new short[] { 0x3F61 }, encode(field, "\u00E9a"));
+
+		field = field(2);
+		field.setCharset(StandardCharsets.UTF_16BE);
+		Assert.assertArrayEquals(new short[] { 0x0041, 0x00E9 }, encode(field, "A\u00E9"));
+		Assert.assertEquals("A\u00E9", decode(field, (short) 0x0041, (short) 0x00E9));
+	}
+
+	@Test
+	public void padding() {
+		Field field = field(3);
+		// values are concatenated and padded with NUL by default
+		Assert.assertArrayEquals(new short[] { 0x4142, 0x4300, 0x0000 }, encode(field, "AB", null, "C"));
+		// no padding: the string keeps the trailing bytes
+		Assert.assertEquals("ABC\0 \0", decode(field, (short) 0x4142, (short) 0x4300, (short) 0x2000));
+
+		field.setPadding(StringPadding.NUL);
+		Assert.assertEquals("ABC\0 ", decode(field, (short) 0x4142, (short) 0x4300, (short) 0x2000));
+		Assert.assertEquals("AB", decode(field, (short) 0x4142, (short) 0x0000, (short) 0x0000));
+
+		field.setPadding(StringPadding.SPACE);
+		Assert.assertArrayEquals(new short[] { 0x4142, 0x4320, 0x2020 }, encode(field, "ABC"));
+		// NUL and SPACE are trimmed
+		Assert.assertEquals("ABC", decode(field, (short) 0x4142, (short) 0x4300, (short) 0x2000));
+		Assert.assertEquals(" A", decode(field, (short) 0x2041, (short) 0x2020, (short) 0x2020));
+		Assert.assertEquals("", decode(field, (short) 0x2020, (short) 0x2020, (short) 0x2020));
+	}
+
+	@Test
+	public void byteSwap() {
+		Field field = field(2);
+		field.setByteSwap(true);
+		Assert.assertArrayEquals(new short[] { 0x4241, 0x0043 }, encode(field, "ABC"));
+		Assert.assertEquals("ABC\0", decode(field, (short) 0x4241, (short) 0x0043));
+		field.setPadding(StringPadding.NUL);
+		Assert.assertEquals("ABC", decode(field, (short) 0x4241, (short) 0x0043));
+	}
+
+	@Test
+	public void truncation() {
+		Field field = field(2);
+		field.setPadding(StringPadding.NUL);
+		// values exceeding the registers are truncated
+		Assert.assertArrayEquals(new short[] { 0x4142, 0x4344 }, encode(field, "ABCDEF"));
+		Assert.assertArrayEquals(new short[] { 0x4142, 0x4344 }, encode(field, "AB", "CD", "EF"));
+
+		// a multi-byte character is not split: e acute needs 2 bytes, 1 is left
+		Assert.assertArrayEquals(new short[] { 0x4142, 0x4300 }, encode(field, "ABC\u00E9"));
+		Assert.assertEquals("ABC", decode(field, encode(field, "ABC\u00E9")));
+		// a character of 4 bytes (surrogate pair) fits exactly
+		Assert.assertEquals("\uD83D\uDE00", decode(field, encode(field, "\uD83D\uDE00")));
+		// but not after another character
+		Assert.assertArrayEquals(new short[] { 0x4100, 0x0000 }, encode(field, "A\uD83D\uDE00"));
+		// the euro sign needs 3 bytes
+		Assert.assertEquals("A\u20AC", decode(field, encode(field, "A\u20AC\u20AC")));
+	}
+}
@@ -0,0 +1,190 @@
+package havis.util.modbus.rtu;
+
+import java.util.Arrays;
+import java.util.Date;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import havis.util.modbus.RegisterMapping;
+import havis.util.modbus.RegisterType;
+import havis.util.modbus.slave.ModbusSlaveException;
+import havis.util.modbus.slave.ModbusSlaveProcessor;
+
+public class RtuTest {
+
+	@Test
+	public void crc() {
+		byte[] frame = { 0x01, 0x03, 0x00, 0x00, 0x00, 0x0A };
+		int crc = Crc16.compute(frame, 0, frame.length);
+		// sent low byte first: C5 CD
+		Assert.assertEquals(0xC5, crc & 0xFF);
+		Assert.assertEquals(0xCD, crc >> 8);
+	}
+
+	@Test
+	public void masterSlave() throws Exception {
+		MemoryRtuChannel[] channels = MemoryRtuChannel.pair();
+		final int[] holding = new int[16];
+		final int[] coils = new int[16];
+		RtuSlave slave = new RtuSlave(new RtuFramer(channels[1], 115200), 7, new RtuRequestHandler() {
+			@Override
+			public void read(int unitId, RegisterType type, int address, int quantity, int[] values)
+					throws ModbusSlaveException {
+				int[] table = getTable(type);
+				if (address + quantity > table.length) {
+					throw new ModbusSlaveException("ILLEGAL DATA ADDRESS");
+				}
+				System.arraycopy(table, address, values, 0, quantity);
+			}
+
+			@Override
+			public void write(int unitId, RegisterType type, int address, int quantity, int[] values)
+					throws ModbusSlaveException {
+				int[] table = getTable(type);
+				if (address + quantity > table.length) {
+					throw new ModbusSlaveException("ILLEGAL DATA ADDRESS");
+				}
+				System.arraycopy(values, 0, table, address, quantity);
+			}
+
+			private int[] getTable(RegisterType type) throws ModbusSlaveException {
+				switch (type) {
+				case COILS:
+					return coils;
+				case HOLDING_REGISTERS:
+					return holding;
+				default:
+					throw new ModbusSlaveException("ILLEGAL FUNCTION");
+				}
+			}
+		});
+		Thread thread = new Thread(slave);
+		thread.start();
+		try {
+			RtuMaster master = new RtuMaster(new RtuFramer(channels[0], 115200));
+
+			master.writeRegisters(7, 2, new short[] { 1, (short) 0xFFFF, 3 });
+			master.writeRegister(7, 5, 0x1234);
+			Assert.assertArrayEquals(new int[] { 0, 0, 1, 0xFFFF, 3, 0x1234 }, Arrays.copyOf(holding, 6));
+			short[] registers = new short[4];
+			master.readRegisters(7, 2, registers);
+			Assert.assertArrayEquals(new short[] { 1, (short) 0xFFFF, 3, 0x1234 }, registers);
+
+			master.writeBits(7, 1, new boolean[] { true, false, true, true, false, false, false, false, true });
+			master.writeBit(7, 12, true);
+			boolean[] bits = new boolean[12];
+			master.readBits(7, 1, bits);
+			Assert.assertEquals(Arrays.toString(new boolean[] { true, false, true, true, false, false, false, false, true,
+					false, false, true }), Arrays.toString(bits));
+
+			try {
+				master.readRegisters(7, 15, new short[2]);
+				Assert.fail("Exception expected");
+			} catch (ModbusSlaveException e) {
+				Assert.assertEquals("ILLEGAL DATA ADDRESS", e.getMessage());
+			}
+			try {
+				master.readInputRegisters(7, 0, new short[1]);
+				Assert.fail("Exception expected");
+			} catch (ModbusSlaveException e) {
+				Assert.assertEquals("ILLEGAL FUNCTION", e.getMessage());
+			}
+
+			// broadcast is applied without a response
+			master.setTurnaroundDelay(20);
+			master.writeRegister(0, 0, 42);
+			master.setResponseTimeout(100);
+			try {
+				// other units do not respond
+				master.readRegisters(8, 0, new short[1]);
+				Assert.fail("Timeout expected");
+			} catch (ModbusSlaveException e) {
+			}
+			Assert.assertEquals(42, holding[0]);
+		} finally {
+			slave.close();
+			thread.join();
+			channels[0].close();
+			channels[1].close();
+		}
+	}
+
+	@Test
+	public void framesByArrivalTime() throws Exception {
+		MemoryRtuChannel[] channels = MemoryRtuChannel.pair();
+		try {
+			RtuFramer sender = new RtuFramer(channels[0], 115200);
+			RtuFramer receiver = new RtuFramer(channels[1], 115200);
+			sender.send(new byte[] { 1, 3, 0, 0 }, 4);
+			Thread.sleep(20);
+			sender.send(new byte[] { 2, 6, 0, 1, 0, 2 }, 6);
+			// both frames are buffered before the first one is read
+			Thread.sleep(20);
+			byte[] frame = new byte[RtuFramer.MAX_ADU_LENGTH];
+			Assert.assertEquals(4, receiver.receive(frame, 0));
+			Assert.assertEquals(1, frame[0]);
+			Assert.assertEquals(6, receiver.receive(frame, 0));
+			Assert.assertEquals(2, frame[0]);
+			Assert.assertEquals(-1, receiver.receive(frame, 0));
+			Assert.assertEquals(0, receiver.getCrcErrorCount());
+		} finally {
+			channels[0].close();
+			channels[1].close();
+		}
+	}
+
+	@Test
+	public void processorSlave() throws Exception {
+		MemoryRtuChannel[] channels = MemoryRtuChannel.pair();
+		final short[] holding = new short[16];
+		RtuSlave slave = new RtuSlave(new RtuFramer(channels[1], 115200), 3,
+				new ProcessorRequestHandler(new ModbusSlaveProcessor() {
+					@Override
+					public void connect() throws ModbusSlaveException {
+					}
+
+					@Override
+					public void disconnect() throws ModbusSlaveException {
+					}
+
+					@Override
+					public void read(int slaveId, short functionCode, int address, int addressQuantity,
+							RegisterMapping mapping) throws ModbusSlaveException {
+						if (address + addressQuantity > holding.length) {
+							throw new ModbusSlaveException("ILLEGAL DATA ADDRESS");
+						}
+						mapping.setRegisters(false, address, Arrays.copyOfRange(holding, address, address + addressQuantity));
+					}
+
+					@Override
+					public void write(int slaveId, short functionCode, int address, int addressQuantity,
+							Date timeStamp, RegisterMapping mapping) throws ModbusSlaveException {
+						short[] values = new short[addressQuantity];
+						mapping.getRegisters(false, address, values);
+						System.arraycopy(values, 0, holding, address, addressQuantity);
+					}
+				}));
+		Thread thread = new Thread(slave);
+		thread.start();
+		try {
+			RtuMaster master = new RtuMaster(new RtuFramer(channels[0], 115200));
+			master.writeRegisters(3, 1, new short[] { 10, 20 });
+			Assert.assertArrayEquals(new short[] { 0, 10, 20, 0 }, Arrays.copyOf(holding, 4));
+			short[] registers = new short[2];
+			master.readRegisters(3, 2, registers);
+			Assert.assertArrayEquals(new short[] { 20, 0 }, registers);
+			try {
+				master.readRegisters(3, 15, new short[2]);
+				Assert.fail("Exception expected");
+			} catch (ModbusSlaveException e) {
+				Assert.assertEquals("ILLEGAL DATA ADDRESS", e.getMessage());
+			}
+		} finally {
+			slave.close();
+			thread.join();
+			channels[0].close();
+			channels[1].close();
+		}
+	}
+}
@@ -0,0 +1,81 @@
+package havis.util.modbus.slave;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CaptureTest {
+
+	@Test
+	public void captureReplay() throws Exception {
+		ByteArrayOutputStream file = new ByteArrayOutputStream();
+		CaptureTap tap = new CaptureTap(file, 1024);
+		for (int i = 0; i < 3; i++) {
+			// read holding registers 0-1 by two clients
+			byte[] request = { 0, (byte) i, 0, 0, 0, 6, 1, 3, 0, 0, 0, 2 };
+			tap.record(5 + i % 2, 502, false, request, 0, request.length);
+			byte[] response = { 0, (byte) i, 0, 0, 0, 7, 1, 3, 4, 0, 1, 0, 2 };
+			tap.record(5 + i % 2, 502, true, response, 0, response.length);
+		}
+		// dropped due to the full buffer
+		tap.record(5, 502, false, new byte[1024], 0, 1024);
+		tap.close();
+		Assert.assertEquals(6, tap.getRecordCount());
+		Assert.assertEquals(1, tap.getDroppedCount());
+
+		CaptureReplay replay = new CaptureReplay(new ByteArrayInputStream(file.toByteArray()), 502);
+		Assert.assertEquals(2, replay.getConnectionCount());
+		Assert.assertEquals(3, replay.getRequestCount());
+
+		final ServerSocket server = new ServerSocket(0);
+		Thread responder = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					for (int i = 0; i < 2; i++) {
+						final Socket socket = server.accept();
+						new Thread(new Runnable() {
+							@Override
+							public void run() {
+								respond(socket);
+							}
+						}).start();
+					}
+				} catch (IOException e) {
+				}
+			}
+		});
+		responder.start();
+		try {
+			ReplayResult result = replay.replay("localhost", server.getLocalPort(), 0);
+			Assert.assertEquals(3, result.getRequestCount());
+			Assert.assertEquals(3, result.getResponseCount());
+			Assert.assertEquals(3, result.getExceptionCount());
+			Assert.assertTrue(result.getMaxLatency() >= result.getLatency(50));
+		} finally {
+			server.close();
+			responder.join();
+		}
+	}
+
+	private void respond(Socket socket) {
+		try {
+			DataInputStream in = new DataInputStream(socket.getInputStream());
+			OutputStream out = socket.getOutputStream();
+			byte[] request = new byte[12];
+			while (true) {
+				in.readFully(request);
+				// ILLEGAL FUNCTION
+				out.write(new byte[] { request[0], request[1], 0, 0, 0, 3, request[6], (byte) (request[7] | 0x80), 1 });
+			}
+		} catch (IOException e) {
+		}
+	}
+}
@@ -0,0 +1,112 @@
+package havis.util.modbus.slave;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import havis.util.modbus.DataType;
+import havis.util.modbus.Field;
+import havis.util.modbus.RegisterType;
+
+public class ChangeCountersTest {
+
+	@Test
+	public void validation() {
+		for (int[] args : new int[][] { { 0, 0 }, { -1, 0 }, { 1, -1 }, { 1, 0x10000 } }) {
+			try {
+				new ChangeCounters(RegisterType.HOLDING_REGISTERS, args[0], args[1]);
+				Assert.fail("Exception expected for " + Arrays.toString(args));
+			} catch (IllegalArgumentException e) {
+			}
+		}
+		// one counter per block of the address space
+		Assert.assertEquals(0x10000, new ChangeCounters(RegisterType.HOLDING_REGISTERS, 1, 0).getCount());
+		Assert.assertEquals(6554, new ChangeCounters(RegisterType.HOLDING_REGISTERS, 10, 0).getCount());
+		// limited by the input registers after the base address
+		Assert.assertEquals(16, new ChangeCounters(RegisterType.HOLDING_REGISTERS, 1, 0xFFF0).getCount());
+		Assert.assertEquals(1, new ChangeCounters(RegisterType.HOLDING_REGISTERS, 0x10000, 0xFFFF).getCount());
+	}
+
+	@Test
+	public void blocks() {
+		ChangeCounters counters = new ChangeCounters(RegisterType.HOLDING_REGISTERS, 10, 100);
+		Assert.assertFalse(counters.contains(99, 1));
+		Assert.assertTrue(counters.contains(100, 1));
+		Assert.assertTrue(counters.contains(100, 6554));
+		Assert.assertFalse(counters.contains(100, 6555));
+		Assert.assertTrue(counters.contains(6653, 1));
+		Assert.assertFalse(counters.contains(6654, 1));
+		Assert.assertFalse(counters.overlaps(90, 10));
+		Assert.assertTrue(counters.overlaps(90, 11));
+		Assert.assertTrue(counters.overlaps(6653, 1));
+		Assert.assertFalse(counters.overlaps(6654, 1));
+
+		Assert.assertEquals(0, counters.getBlockAddress(100));
+		Assert.assertEquals(20, counters.getBlockAddress(102));
+
+		// a field at 25-34 covers the blocks 2 and 3
+		Field field = new Field(RegisterType.HOLDING_REGISTERS, DataType.USHORT, 25, 10);
+		counters.update(field, new int[] { 1 });
+		Assert.assertEquals(0, counters.get(2));
+		counters.update(field, new int[] { 1 });
+		Assert.assertEquals(0, counters.get(2));
+		counters.update(field, new int[] { 2 });
+		Assert.assertEquals(0, counters.get(1));
+		Assert.assertEquals(1, counters.get(2));
+		Assert.assertEquals(1, counters.get(3));
+		Assert.assertEquals(0, counters.get(4));
+
+		// the first values after clearing are not counted
+		counters.clear();
+		counters.update(field, new int[] { 3 });
+		Assert.assertEquals(1, counters.get(2));
+
+		// the counters wrap around
+		for (int i = 0; i < 0xFFFF; i++) {
+			counters.changed(20, 1);
+		}
+		Assert.assertEquals(0, counters.get(2));
+		Assert.assertEquals(1, counters.get(3));
+
+		// the range is limited to the counters
+		counters.changed(0xFFFF, 1);
+		Assert.assertEquals(1, counters.get(6553));
+	}
+
+	@Test
+	public void overlappingFields() {
+		FieldModbusSlaveProcessor processor = new FieldModbusSlaveProcessor(Collections.singletonList(
+				new Field(RegisterType.INPUT_REGISTERS, DataType.USHORT, 8, 4))) {
+			@Override
+			public Object read(Field field) throws ModbusSlaveException {
+				return new int[field.getAddressQuantity()];
+			}
+
+			@Override
+			public void write(Field field, Object value) throws ModbusSlaveException {
+			}
+		};
+		try {
+			// counters at 10-19
+			processor.setChangeCounters(new ChangeCounters(RegisterType.HOLDING_REGISTERS, 6554, 10));
+			Assert.fail("Exception expected");
+		} catch (IllegalArgumentException e) {
+		}
+		Assert.assertNull(processor.getChangeCounters());
+
+		// holding registers at the counter addresses do not overlap
+		ChangeCounters counters = new ChangeCounters(RegisterType.HOLDING_REGISTERS, 6554, 12);
+		processor.setChangeCounters(counters);
+		processor.setFields(Arrays.asList(new Field(RegisterType.INPUT_REGISTERS, DataType.USHORT, 8, 4),
+				new Field(RegisterType.HOLDING_REGISTERS, DataType.USHORT, 12, 4)));
+		try {
+			processor.setFields(Collections.singletonList(new Field(RegisterType.INPUT_REGISTERS, DataType.USHORT, 21, 1)));
+			Assert.fail("Exception expected");
+		} catch (IllegalArgumentException e) {
+		}
+		// the fields have not been replaced
+		Assert.assertEquals(2, processor.getFieldTable().getFields().size());
+	}
+}
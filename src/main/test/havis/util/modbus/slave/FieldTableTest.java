@@ -0,0 +1,60 @@
+package havis.util.modbus.slave;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import havis.util.modbus.DataType;
+import havis.util.modbus.Field;
+import havis.util.modbus.RegisterType;
+
+public class FieldTableTest {
+
+	@Test
+	public void indexOf() {
+		// fields at 2-3 and 4 (adjacent) and 8-10 after a gap, passed unsorted
+		Field field1 = new Field(RegisterType.HOLDING_REGISTERS, DataType.USHORT, 8, 3);
+		Field field2 = new Field(RegisterType.HOLDING_REGISTERS, DataType.USHORT, 2, 2);
+		Field field3 = new Field(RegisterType.HOLDING_REGISTERS, DataType.USHORT, 4, 1);
+		FieldTable table = new FieldTable(Arrays.asList(field1, field2, field3), 1);
+		FieldTable.Index index = table.getIndex(RegisterType.HOLDING_REGISTERS);
+		Assert.assertArrayEquals(new Field[] { field2, field3, field1 }, index.fields);
+		Assert.assertEquals(11, index.bound);
+
+		// before the first field
+		Assert.assertEquals(0, index.indexOf(0));
+		// at the start of a field
+		Assert.assertEquals(0, index.indexOf(2));
+		Assert.assertEquals(2, index.indexOf(8));
+		// inside a field
+		Assert.assertEquals(0, index.indexOf(3));
+		Assert.assertEquals(2, index.indexOf(9));
+		// at the end of a field (exclusive), which is the start of the next
+		Assert.assertEquals(1, index.indexOf(4));
+		// at the end of a field followed by a gap
+		Assert.assertEquals(2, index.indexOf(5));
+		// in a gap
+		Assert.assertEquals(2, index.indexOf(7));
+		// after the last field
+		Assert.assertEquals(3, index.indexOf(11));
+		Assert.assertEquals(3, index.indexOf(0xFFFF));
+	}
+
+	@Test
+	public void emptyIndex() {
+		FieldTable table = new FieldTable(
+				Collections.singletonList(new Field(RegisterType.COILS, DataType.BOOLEAN, 0, 4)), 1);
+		Assert.assertNull(table.getIndex(RegisterType.HOLDING_REGISTERS));
+		Assert.assertEquals(0, table.getIndex(RegisterType.COILS).indexOf(0));
+		Assert.assertEquals(1, table.getIndex(RegisterType.COILS).indexOf(4));
+
+		table = new FieldTable(null, 0);
+		Assert.assertTrue(table.getFields().isEmpty());
+		Assert.assertEquals(0, table.getSize());
+		for (RegisterType type : RegisterType.values()) {
+			Assert.assertNull(table.getIndex(type));
+		}
+	}
+}
@@ -0,0 +1,150 @@
+package havis.util.modbus.slave;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import havis.util.modbus.DataType;
+import havis.util.modbus.Field;
+import havis.util.modbus.RegisterType;
+
+public class InMemoryTransportTest {
+
+	@Test
+	public void readWrite() {
+		List<Field> fields = Arrays.asList(new Field[] { //
+				new Field(RegisterType.HOLDING_REGISTERS, DataType.SHORT, 0, 2), //
+				new Field(RegisterType.HOLDING_REGISTERS, DataType.FLOAT, 2, 2), //
+				new Field(RegisterType.INPUT_REGISTERS, DataType.STRING, 0, 2), //
+				new Field(RegisterType.COILS, DataType.BOOLEAN, 0, 3) //
+		});
+		final Map<Field, Object> values = new HashMap<>();
+		values.put(fields.get(0), new short[] { 1, -2 });
+		values.put(fields.get(1), new float[] { 1.5f });
+		values.put(fields.get(2), new String[] { "AB" });
+		values.put(fields.get(3), new boolean[] { true, false, true });
+		FieldModbusSlaveProcessor processor = new FieldModbusSlaveProcessor(fields) {
+			@Override
+			public Object read(Field field) throws ModbusSlaveException {
+				return values.get(field);
+			}
+
+			@Override
+			public void write(Field field, Object value) throws ModbusSlaveException {
+				values.put(field, value);
+			}
+		};
+		InMemoryTransport transport = new InMemoryTransport(processor);
+
+		short[] registers = new short[4];
+		Assert.assertEquals(4, transport.readRegisters(0, registers));
+		// float with the high word first
+		Assert.assertArrayEquals(new short[] { 1, -2, 0x3FC0, 0 }, registers);
+		Assert.assertEquals(2, transport.readInputRegisters(0, registers = new short[2]));
+		Assert.assertArrayEquals(new short[] { 0x4142, 0 }, registers);
+		boolean[] bits = new boolean[3];
+		Assert.assertEquals(3, transport.readBits(0, bits));
+		Assert.assertEquals(Arrays.toString(new boolean[] { true, false, true }), Arrays.toString(bits));
+
+		Assert.assertEquals(2, transport.writeRegisters(2, new short[] { (short) 0xC000, 0 }));
+		Assert.assertEquals(-2.0f, ((float[]) values.get(fields.get(1)))[0], 0);
+
+		Assert.assertEquals(-1, transport.readRegisters(3, new short[2]));
+		Assert.assertEquals("ILLEGAL DATA ADDRESS", transport.getLastError());
+		Assert.assertEquals(-1, transport.readInputBits(0, new boolean[1]));
+		Assert.assertEquals("ILLEGAL FUNCTION", transport.getLastError());
+	}
+
+	@Test
+	public void writeAll() {
+		final List<Field> fields = Arrays.asList(new Field[] { //
+				new Field(RegisterType.HOLDING_REGISTERS, DataType.SHORT, 0, 1), //
+				new Field(RegisterType.HOLDING_REGISTERS, DataType.SHORT, 1, 2), //
+				new Field(RegisterType.HOLDING_REGISTERS, DataType.SHORT, 3, 1) //
+		});
+		final Map<Field, Object> backend = new HashMap<>();
+		final List<Map<Field, Object>> transactions = new ArrayList<>();
+		FieldModbusSlaveProcessor processor = new FieldModbusSlaveProcessor(fields) {
+			@Override
+			public Object read(Field field) throws ModbusSlaveException {
+				Object value = backend.get(field);
+				return value != null ? value : new short[field.getAddressQuantity()];
+			}
+
+			@Override
+			public void write(Field field, Object value) throws ModbusSlaveException {
+				Assert.fail("Unexpected write of a single field");
+			}
+
+			@Override
+			public void writeAll(Map<Field, Object> changed) throws ModbusSlaveException {
+				transactions.add(changed);
+				backend.putAll(changed);
+			}
+		};
+		InMemoryTransport transport = new InMemoryTransport(processor);
+
+		// all fields in one transaction
+		Assert.assertEquals(4, transport.writeRegisters(0, new short[] { 1, 2, 3, 4 }));
+		Assert.assertEquals(1, transactions.size());
+		Assert.assertEquals(fields, new ArrayList<>(transactions.get(0).keySet()));
+
+		// unchanged values
+		Assert.assertEquals(4, transport.writeRegisters(0, new short[] { 1, 2, 3, 4 }));
+		Assert.assertEquals(1, transactions.size());
+
+		// value equal to the value read from the backend
+		Assert.assertEquals(1, transport.readRegisters(0, new short[1]));
+		Assert.assertEquals(1, transport.writeRegisters(0, new short[] { 1 }));
+		Assert.assertEquals(1, transactions.size());
+
+		// partially written field completed by the backend
+		backend.put(fields.get(1), new short[] { 6, 3 });
+		Assert.assertEquals(2, transport.writeRegisters(2, new short[] { 5, 4 }));
+		Assert.assertEquals(2, transactions.size());
+		Assert.assertEquals(1, transactions.get(1).size());
+		Assert.assertArrayEquals(new short[] { 6, 5 }, (short[]) transactions.get(1).get(fields.get(1)));
+	}
+
+	@Test
+	public void writeAfterBackendChange() {
+		final Field field = new Field(RegisterType.HOLDING_REGISTERS, DataType.SHORT, 0, 1);
+		final short[] backend = new short[1];
+		final List<Map<Field, Object>> transactions = new ArrayList<>();
+		FieldModbusSlaveProcessor processor = new FieldModbusSlaveProcessor(Arrays.asList(field)) {
+			@Override
+			public Object read(Field field) throws ModbusSlaveException {
+				return backend.clone();
+			}
+
+			@Override
+			public void write(Field field, Object value) throws ModbusSlaveException {
+				backend[0] = ((short[]) value)[0];
+			}
+
+			@Override
+			public void writeAll(Map<Field, Object> changed) throws ModbusSlaveException {
+				transactions.add(changed);
+				super.writeAll(changed);
+			}
+		};
+		InMemoryTransport transport = new InMemoryTransport(processor);
+
+		Assert.assertEquals(1, transport.writeRegisters(0, new short[] { 5 }));
+		Assert.assertEquals(1, transactions.size());
+		// changed by the backend and read by the client
+		backend[0] = 7;
+		short[] registers = new short[1];
+		Assert.assertEquals(1, transport.readRegisters(0, registers));
+		Assert.assertEquals(7, registers[0]);
+		// the same write again reaches the backend
+		Assert.assertEquals(1, transport.writeRegisters(0, new short[] { 5 }));
+		Assert.assertEquals(2, transactions.size());
+		Assert.assertEquals(5, backend[0]);
+	}
+}